@@ -29,6 +29,10 @@ public class AggregatedStatistic {
     @Column(name = "computed_at")
     private LocalDateTime computedAt;
 
+    // HyperLogLog registers of the cell's distinct players, see PlayerSketch
+    @Column(name = "player_sketch")
+    private byte[] playerSketch;
+
     // Getters and setters
 
 
@@ -0,0 +1,54 @@
+package org.tekkenstats.aggregations;
+
+import lombok.Data;
+
+@Data
+public class AggregatedStatisticDelta {
+    private int gameVersion;
+    private String characterId;
+    private int danRank;
+    private String category;
+    private int regionId;
+    private int areaId;
+
+    // Signed changes to apply on top of the stored aggregate
+    private int wins;
+    private int losses;
+    private int players;
+    private int replays;
+
+    // Players entering the cell, merged into its sketch; players leaving cannot be removed from a sketch
+    private PlayerSketch addedPlayers;
+
+    public AggregatedStatisticDelta(int gameVersion, String characterId, int danRank, String category, int regionId, int areaId)
+    {
+        this.gameVersion = gameVersion;
+        this.characterId = characterId;
+        this.danRank = danRank;
+        this.category = category;
+        this.regionId = regionId;
+        this.areaId = areaId;
+    }
+
+    public void add(PlayerCharacterData data, int sign)
+    {
+        this.wins += sign * data.getWins();
+        this.losses += sign * data.getLosses();
+        this.replays += sign * data.getTotalPlays();
+        this.players += sign;
+
+        if (sign > 0)
+        {
+            if (addedPlayers == null)
+            {
+                addedPlayers = new PlayerSketch();
+            }
+            addedPlayers.addHash(data.getPlayerHash());
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return wins == 0 && losses == 0 && players == 0 && replays == 0;
+    }
+}
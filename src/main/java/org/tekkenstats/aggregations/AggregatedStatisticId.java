@@ -55,12 +55,14 @@ public class AggregatedStatisticId implements Serializable {
 
         return gameVersion == that.gameVersion &&
                 danRank == that.danRank &&
+                regionId == that.regionId &&
+                areaId == that.areaId &&
                 Objects.equals(characterId, that.characterId) &&
                 Objects.equals(category, that.category);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(gameVersion, characterId, danRank, category);
+        return Objects.hash(gameVersion, characterId, danRank, category, regionId, areaId);
     }
 }
@@ -0,0 +1,17 @@
+package org.tekkenstats.aggregations;
+
+/**
+ * Row filter of a scan over the recent battle store. Battles are scanned once per side,
+ * so the character, opponent, rank and region filters apply to the side being counted;
+ * null fields do not filter.
+ */
+public record BattleScanFilter(
+        long since,
+        Integer characterId,
+        Integer opponentCharacterId,
+        Integer stageId,
+        Integer minDanRank,
+        Integer maxDanRank,
+        Integer regionId)
+{
+}
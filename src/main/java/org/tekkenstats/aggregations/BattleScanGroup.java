@@ -0,0 +1,10 @@
+package org.tekkenstats.aggregations;
+
+// The column a recent battle scan groups its counted sides by
+public enum BattleScanGroup {
+    CHARACTER,
+    OPPONENT,
+    STAGE,
+    DAN_RANK,
+    REGION
+}
@@ -0,0 +1,66 @@
+package org.tekkenstats.aggregations;
+
+/**
+ * Per-group counters of a recent battle scan, indexed by the group key
+ * (character id, stage id, dan rank or region id).
+ */
+public class BattleScanResult {
+
+    private final long[] games;
+    private final long[] wins;
+    private final long[] roundsWon;
+    private final long[] roundsLost;
+
+    public BattleScanResult(int keys)
+    {
+        this.games = new long[keys];
+        this.wins = new long[keys];
+        this.roundsWon = new long[keys];
+        this.roundsLost = new long[keys];
+    }
+
+    public void add(int key, boolean won, int sideRoundsWon, int sideRoundsLost)
+    {
+        games[key]++;
+        if (won) wins[key]++;
+        roundsWon[key] += sideRoundsWon;
+        roundsLost[key] += sideRoundsLost;
+    }
+
+    public BattleScanResult merge(BattleScanResult other)
+    {
+        for (int key = 0; key < games.length; key++)
+        {
+            games[key] += other.games[key];
+            wins[key] += other.wins[key];
+            roundsWon[key] += other.roundsWon[key];
+            roundsLost[key] += other.roundsLost[key];
+        }
+        return this;
+    }
+
+    public int keys()
+    {
+        return games.length;
+    }
+
+    public long gamesAt(int key)
+    {
+        return games[key];
+    }
+
+    public long winsAt(int key)
+    {
+        return wins[key];
+    }
+
+    public long roundsWonAt(int key)
+    {
+        return roundsWon[key];
+    }
+
+    public long roundsLostAt(int key)
+    {
+        return roundsLost[key];
+    }
+}
@@ -0,0 +1,31 @@
+package org.tekkenstats.aggregations;
+
+// Per-side battle values tracked by the quantile sketches
+public enum DistributionMetric {
+    RATING("rating"),               // rating after the battle, rating before plus its change
+    TEKKEN_POWER("tekken_power");
+
+    private final String name;
+
+    DistributionMetric(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public static DistributionMetric fromName(String name)
+    {
+        for (DistributionMetric metric : values())
+        {
+            if (metric.name.equalsIgnoreCase(name))
+            {
+                return metric;
+            }
+        }
+        throw new IllegalArgumentException("Unknown metric: " + name);
+    }
+}
@@ -0,0 +1,79 @@
+package org.tekkenstats.aggregations;
+
+/**
+ * Approximate access frequency of keys (count-min sketch with 4-bit counters), used as the
+ * admission filter of TinyLFU caches. Each key maps to one counter in each of four rows and its
+ * frequency is the smallest of them, so it is only ever overestimated. Counters saturate at 15,
+ * and once the number of recorded accesses reaches ten times the width every counter is halved,
+ * which lets the sketch forget keys that used to be popular.
+ * Not thread safe.
+ */
+public class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int samples;
+
+    // width is rounded up to a power of two
+    public FrequencySketch(int width)
+    {
+        int size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        this.counters = new byte[ROWS][size];
+        this.mask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    public void increment(Object key)
+    {
+        int hash = key.hashCode();
+        boolean incremented = false;
+        for (int row = 0; row < ROWS; row++)
+        {
+            int index = index(hash, row);
+            if (counters[row][index] < MAX_COUNT)
+            {
+                counters[row][index]++;
+                incremented = true;
+            }
+        }
+
+        if (incremented && ++samples >= sampleSize)
+        {
+            reset();
+        }
+    }
+
+    public int frequency(Object key)
+    {
+        int hash = key.hashCode();
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++)
+        {
+            frequency = Math.min(frequency, counters[row][index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private int index(int hash, int row)
+    {
+        long mixed = (hash + SEEDS[row]) * SEEDS[row];
+        return (int) (mixed ^ (mixed >>> 32)) & mask;
+    }
+
+    private void reset()
+    {
+        for (byte[] row : counters)
+        {
+            for (int i = 0; i < row.length; i++)
+            {
+                row[i] >>= 1;
+            }
+        }
+        samples /= 2;
+    }
+}
@@ -0,0 +1,97 @@
+package org.tekkenstats.aggregations;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Character-vs-character results of one game version and rank band, held as dense square int arrays.
+ * Character ids are small non-negative integers and serve as their own indices;
+ * cell (character, opponent) counts the games character played against opponent from character's side.
+ */
+public class MatchupMatrix {
+
+    private int capacity = 64;
+    private int[] wins = new int[capacity * capacity];
+    private int[] losses = new int[capacity * capacity];
+
+    public void record(int characterId, int opponentCharacterId, boolean won)
+    {
+        ensureCapacity(Math.max(characterId, opponentCharacterId) + 1);
+
+        int index = characterId * capacity + opponentCharacterId;
+        if (won)
+        {
+            wins[index]++;
+        }
+        else
+        {
+            losses[index]++;
+        }
+    }
+
+    public void merge(MatchupMatrix other)
+    {
+        ensureCapacity(other.capacity);
+        other.forEachCell(index -> {
+            int character = index / other.capacity;
+            int opponent = index % other.capacity;
+            int target = character * capacity + opponent;
+            wins[target] += other.wins[index];
+            losses[target] += other.losses[index];
+        });
+    }
+
+    // Visits the index of every cell with at least one game
+    public void forEachCell(IntConsumer action)
+    {
+        for (int index = 0; index < wins.length; index++)
+        {
+            if (wins[index] != 0 || losses[index] != 0)
+            {
+                action.accept(index);
+            }
+        }
+    }
+
+    public int characterAt(int index)
+    {
+        return index / capacity;
+    }
+
+    public int opponentAt(int index)
+    {
+        return index % capacity;
+    }
+
+    public int winsAt(int index)
+    {
+        return wins[index];
+    }
+
+    public int lossesAt(int index)
+    {
+        return losses[index];
+    }
+
+    private void ensureCapacity(int characters)
+    {
+        if (characters <= capacity)
+        {
+            return;
+        }
+
+        int newCapacity = capacity;
+        while (characters > newCapacity) newCapacity *= 2;
+
+        int[] newWins = new int[newCapacity * newCapacity];
+        int[] newLosses = new int[newCapacity * newCapacity];
+        for (int character = 0; character < capacity; character++)
+        {
+            System.arraycopy(wins, character * capacity, newWins, character * newCapacity, capacity);
+            System.arraycopy(losses, character * capacity, newLosses, character * newCapacity, capacity);
+        }
+
+        wins = newWins;
+        losses = newLosses;
+        capacity = newCapacity;
+    }
+}
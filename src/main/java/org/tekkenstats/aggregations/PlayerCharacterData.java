@@ -12,6 +12,8 @@ public class PlayerCharacterData {
     private int gameVersion;
     private Integer regionID;
     private Integer areaID;
+    // hashtextextended(player_id, 0), see PlayerSketch
+    private long playerHash;
 
     public PlayerCharacterData(String characterId, int danRank, int wins, int losses, int totalPlays, int regionID, int areaID)
     {
@@ -24,5 +26,13 @@ public class PlayerCharacterData {
         this.areaID = areaID;
     }
 
+    // Decides a player's main character, ties resolve to the lowest character id
+    public boolean isPlayedMoreThan(PlayerCharacterData other)
+    {
+        return other == null
+                || totalPlays > other.totalPlays
+                || (totalPlays == other.totalPlays && characterId.compareTo(other.characterId) < 0);
+    }
+
     // Constructor, getters, and setters
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+package org.tekkenstats.aggregations;
+
+/**
+ * HyperLogLog sketch of distinct players, mergeable across statistics cells.
+ * Player hashes come from Postgres' hashtextextended(player_id, 0) rather than a Java hash,
+ * so that sketches assembled here match the ones the database builds and merges (hll_merge
+ * in player-sketches.sql).
+ */
+public class PlayerSketch {
+
+    public static final int PRECISION = 10;
+    public static final int REGISTERS = 1 << PRECISION;
+
+    private final byte[] registers;
+
+    public PlayerSketch()
+    {
+        this.registers = new byte[REGISTERS];
+    }
+
+    private PlayerSketch(byte[] registers)
+    {
+        this.registers = registers;
+    }
+
+    public static PlayerSketch fromBytes(byte[] bytes)
+    {
+        return bytes == null ? new PlayerSketch() : new PlayerSketch(bytes.clone());
+    }
+
+    // The low bits pick the register, the rank is the position of the first set bit in the remaining 54
+    public void addHash(long hash)
+    {
+        int index = (int) (hash & (REGISTERS - 1));
+        long remaining = hash >>> PRECISION;
+        setRegister(index, Long.numberOfLeadingZeros(remaining) - PRECISION + 1);
+    }
+
+    public void setRegister(int index, int rank)
+    {
+        if (rank > registers[index])
+        {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    public PlayerSketch merge(PlayerSketch other)
+    {
+        for (int i = 0; i < REGISTERS; i++)
+        {
+            setRegister(i, other.registers[i]);
+        }
+        return this;
+    }
+
+    // Whether merging the other sketch into this one would leave it unchanged
+    public boolean covers(PlayerSketch other)
+    {
+        for (int i = 0; i < REGISTERS; i++)
+        {
+            if (other.registers[i] > registers[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public double estimate()
+    {
+        double harmonic = 0;
+        int zeros = 0;
+        for (byte register : registers)
+        {
+            harmonic += Math.pow(2, -register);
+            if (register == 0) zeros++;
+        }
+
+        double estimate = (0.7213 / (1 + 1.079 / REGISTERS)) * REGISTERS * REGISTERS / harmonic;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0)
+        {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return estimate;
+    }
+
+    public byte[] toBytes()
+    {
+        return registers.clone();
+    }
+}
@@ -0,0 +1,175 @@
+package org.tekkenstats.aggregations;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch with relative accuracy guarantees (DDSketch).
+ * Positive values are counted in logarithmic buckets, bucket i covering (gamma^(i-1), gamma^i],
+ * so any quantile is answered within {@link #RELATIVE_ACCURACY} of the true value, memory grows
+ * with the logarithm of the value range and two sketches merge by adding bucket counts.
+ * Values of zero or below share a single bucket.
+ */
+public class QuantileSketch {
+
+    public static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    private long zeroCount;
+    // counts[i] is the count of bucket minIndex + i
+    private int minIndex;
+    private long[] counts = new long[0];
+    private long count;
+
+    public void add(double value)
+    {
+        count++;
+        if (value <= 0)
+        {
+            zeroCount++;
+            return;
+        }
+
+        int index = (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+        ensureRange(index);
+        counts[index - minIndex]++;
+    }
+
+    public QuantileSketch merge(QuantileSketch other)
+    {
+        zeroCount += other.zeroCount;
+        count += other.count;
+
+        if (other.counts.length > 0)
+        {
+            ensureRange(other.minIndex);
+            ensureRange(other.minIndex + other.counts.length - 1);
+            for (int i = 0; i < other.counts.length; i++)
+            {
+                counts[other.minIndex + i - minIndex] += other.counts[i];
+            }
+        }
+        return this;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    // quantile in [0, 1], NaN for an empty sketch
+    public double quantile(double quantile)
+    {
+        if (count == 0)
+        {
+            return Double.NaN;
+        }
+
+        long rank = (long) Math.floor(quantile * (count - 1));
+        if (rank < zeroCount)
+        {
+            return 0;
+        }
+
+        long seen = zeroCount;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen > rank)
+            {
+                // midpoint of the bucket in relative terms, which bounds the error by the relative accuracy
+                return 2 * Math.pow(GAMMA, minIndex + i) / (1 + GAMMA);
+            }
+        }
+        return 2 * Math.pow(GAMMA, minIndex + counts.length - 1) / (1 + GAMMA);
+    }
+
+    /**
+     * Serializes the sketch as varints: zero count, first bucket index (zigzag), bucket count,
+     * then every bucket count. Sketches of ratings or Tekken Power take a few hundred bytes.
+     */
+    public byte[] toBytes()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + counts.length * 2);
+        writeVarLong(out, zeroCount);
+        writeVarLong(out, (minIndex << 1) ^ (minIndex >> 31));
+        writeVarLong(out, counts.length);
+        for (long bucketCount : counts)
+        {
+            writeVarLong(out, bucketCount);
+        }
+        return out.toByteArray();
+    }
+
+    public static QuantileSketch fromBytes(byte[] bytes)
+    {
+        QuantileSketch sketch = new QuantileSketch();
+        if (bytes == null)
+        {
+            return sketch;
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        sketch.zeroCount = readVarLong(in);
+        int zigzag = (int) readVarLong(in);
+        sketch.minIndex = (zigzag >>> 1) ^ -(zigzag & 1);
+        sketch.counts = new long[(int) readVarLong(in)];
+
+        sketch.count = sketch.zeroCount;
+        for (int i = 0; i < sketch.counts.length; i++)
+        {
+            sketch.counts[i] = readVarLong(in);
+            sketch.count += sketch.counts[i];
+        }
+        return sketch;
+    }
+
+    private void ensureRange(int index)
+    {
+        if (counts.length == 0)
+        {
+            minIndex = index;
+            counts = new long[1];
+            return;
+        }
+
+        if (index < minIndex)
+        {
+            long[] grown = new long[counts.length + (minIndex - index)];
+            System.arraycopy(counts, 0, grown, minIndex - index, counts.length);
+            counts = grown;
+            minIndex = index;
+        }
+        else if (index >= minIndex + counts.length)
+        {
+            counts = Arrays.copyOf(counts, index - minIndex + 1);
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in)
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+}
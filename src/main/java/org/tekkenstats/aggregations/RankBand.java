@@ -0,0 +1,36 @@
+package org.tekkenstats.aggregations;
+
+/**
+ * The dan rank bands used across the statistics endpoints, named like the rank categories
+ * of the winrate queries in AggregatedStatisticsRepository. The ranks each band covers are
+ * configured, see RankBandBoundaries.
+ */
+public enum RankBand {
+    LOW_RANK("lowRank"),        // Beginner to Eliminator by default
+    MEDIUM_RANK("mediumRank"),  // Garyu to Bushin
+    HIGH_RANK("highRank");      // Tekken God and above
+
+    private final String name;
+
+    RankBand(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public static RankBand fromName(String name)
+    {
+        for (RankBand band : values())
+        {
+            if (band.name.equalsIgnoreCase(name))
+            {
+                return band;
+            }
+        }
+        throw new IllegalArgumentException("Unknown rank band: " + name);
+    }
+}
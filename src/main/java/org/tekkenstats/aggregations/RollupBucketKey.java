@@ -0,0 +1,8 @@
+package org.tekkenstats.aggregations;
+
+/**
+ * Identity of one character_rollups_hourly / character_rollups_daily row.
+ */
+public record RollupBucketKey(long bucketStart, int gameVersion, String characterId, int danRank, int regionId)
+{
+}
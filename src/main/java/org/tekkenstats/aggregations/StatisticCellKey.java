@@ -0,0 +1,13 @@
+package org.tekkenstats.aggregations;
+
+/**
+ * Identity of one aggregated_statistics cell. Unlike {@link AggregatedStatisticId} this is a plain
+ * value type meant for in-memory grouping.
+ */
+public record StatisticCellKey(int gameVersion, String characterId, int danRank, String category, int regionId, int areaId)
+{
+    public static StatisticCellKey of(int gameVersion, PlayerCharacterData data, String category)
+    {
+        return new StatisticCellKey(gameVersion, data.getCharacterId(), data.getDanRank(), category, data.getRegionID(), data.getAreaID());
+    }
+}
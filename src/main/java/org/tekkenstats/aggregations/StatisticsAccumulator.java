@@ -0,0 +1,349 @@
+package org.tekkenstats.aggregations;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Partial 'standard' and 'overall' aggregates for one game version, held as a dense counter cube.
+ * Characters, dan ranks and (region, area) locations are mapped to small ordinals as they are seen,
+ * and every cell's counters live in flat primitive arrays indexed by
+ * ((category * characters + character) * danRanks + danRank) * locations + location.
+ * Rows must arrive grouped by player, only the current player's rows are buffered.
+ */
+public class StatisticsAccumulator {
+
+    private static final String[] CATEGORIES = {"standard", "overall"};
+    private static final int STANDARD = 0;
+    private static final int OVERALL = 1;
+
+    // region and area ids below this resolve through array lookups instead of a boxed map key
+    private static final int MAX_LOOKUP_ID = 4096;
+
+    private final int gameVersion;
+
+    // ordinal dictionaries
+    private final Map<String, Integer> characterOrdinals = new HashMap<>();
+    private final List<String> characterIds = new ArrayList<>();
+    private int[][] locationLookup = new int[0][];
+    private final Map<Long, Integer> outOfRangeLocationOrdinals = new HashMap<>();
+    private final List<int[]> locations = new ArrayList<>();
+    private int danRankCount;
+
+    // cube dimensions and counters
+    private int characterCapacity = 64;
+    private int danRankCapacity = 32;
+    private int locationCapacity = 16;
+    private int[] wins;
+    private int[] losses;
+    private int[] players;
+
+    // rows of the player currently being streamed
+    private String currentPlayerId;
+    private int bufferedRows;
+    private int[] bufferedCharacters = new int[8];
+    private int[] bufferedDanRanks = new int[8];
+    private int[] bufferedLocations = new int[8];
+    private int[] bufferedWins = new int[8];
+    private int[] bufferedLosses = new int[8];
+
+    public StatisticsAccumulator(int gameVersion)
+    {
+        this.gameVersion = gameVersion;
+        allocate();
+    }
+
+    public void accept(String playerId, String characterId, int danRank, int wins, int losses, int regionId, int areaId)
+    {
+        if (!playerId.equals(currentPlayerId))
+        {
+            finishPlayer();
+            currentPlayerId = playerId;
+        }
+
+        if (bufferedRows == bufferedCharacters.length)
+        {
+            growBuffer();
+        }
+
+        bufferedCharacters[bufferedRows] = characterOrdinal(characterId);
+        bufferedDanRanks[bufferedRows] = danRankOrdinal(danRank);
+        bufferedLocations[bufferedRows] = locationOrdinal(regionId, areaId);
+        bufferedWins[bufferedRows] = wins;
+        bufferedLosses[bufferedRows] = losses;
+        bufferedRows++;
+    }
+
+    // Flushes the last streamed player, call once the input is exhausted
+    public void finish()
+    {
+        finishPlayer();
+        currentPlayerId = null;
+    }
+
+    public StatisticsAccumulator merge(StatisticsAccumulator other)
+    {
+        other.finish();
+        finish();
+
+        // the two cubes assign ordinals independently, so cells are translated through their values
+        for (int category = 0; category < CATEGORIES.length; category++)
+        {
+            for (int character = 0; character < other.characterIds.size(); character++)
+            {
+                for (int danRank = 0; danRank < other.danRankCount; danRank++)
+                {
+                    for (int location = 0; location < other.locations.size(); location++)
+                    {
+                        int otherIndex = other.cellIndex(category, character, danRank, location);
+                        if (other.players[otherIndex] == 0)
+                        {
+                            continue;
+                        }
+
+                        int[] regionAndArea = other.locations.get(location);
+                        int index = cellIndex(category,
+                                characterOrdinal(other.characterIds.get(character)),
+                                danRankOrdinal(danRank),
+                                locationOrdinal(regionAndArea[0], regionAndArea[1]));
+
+                        wins[index] += other.wins[otherIndex];
+                        losses[index] += other.losses[otherIndex];
+                        players[index] += other.players[otherIndex];
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    public int getGameVersion()
+    {
+        return gameVersion;
+    }
+
+    public int cellCount()
+    {
+        int count = 0;
+        for (int cellPlayers : players)
+        {
+            if (cellPlayers > 0) count++;
+        }
+        return count;
+    }
+
+    public List<AggregatedStatistic> toAggregatedStatistics(LocalDateTime computedAt)
+    {
+        List<AggregatedStatistic> statistics = new ArrayList<>();
+
+        for (int category = 0; category < CATEGORIES.length; category++)
+        {
+            for (int character = 0; character < characterIds.size(); character++)
+            {
+                for (int danRank = 0; danRank < danRankCount; danRank++)
+                {
+                    for (int location = 0; location < locations.size(); location++)
+                    {
+                        int index = cellIndex(category, character, danRank, location);
+                        if (players[index] == 0)
+                        {
+                            continue;
+                        }
+
+                        int[] regionAndArea = locations.get(location);
+                        AggregatedStatistic stat = new AggregatedStatistic(new AggregatedStatisticId(
+                                gameVersion,
+                                characterIds.get(character),
+                                danRank,
+                                CATEGORIES[category],
+                                regionAndArea[0],
+                                regionAndArea[1]));
+                        stat.setTotalWins(wins[index]);
+                        stat.setTotalLosses(losses[index]);
+                        stat.setTotalReplays(wins[index] + losses[index]);
+                        stat.setTotalPlayers(players[index]);
+                        stat.setComputedAt(computedAt);
+                        statistics.add(stat);
+                    }
+                }
+            }
+        }
+        return statistics;
+    }
+
+    private void finishPlayer()
+    {
+        if (bufferedRows == 0)
+        {
+            return;
+        }
+
+        int main = 0;
+        for (int row = 0; row < bufferedRows; row++)
+        {
+            // one row per player and character, so every row is one distinct player in its cell
+            addToCell(OVERALL, row);
+
+            if (row > 0 && isPlayedMoreThan(row, main))
+            {
+                main = row;
+            }
+        }
+        addToCell(STANDARD, main);
+
+        bufferedRows = 0;
+    }
+
+    // ties resolve to the lowest character id, matching PlayerCharacterData.isPlayedMoreThan
+    private boolean isPlayedMoreThan(int row, int other)
+    {
+        int plays = bufferedWins[row] + bufferedLosses[row];
+        int otherPlays = bufferedWins[other] + bufferedLosses[other];
+        return plays > otherPlays
+                || (plays == otherPlays
+                    && characterIds.get(bufferedCharacters[row]).compareTo(characterIds.get(bufferedCharacters[other])) < 0);
+    }
+
+    private void addToCell(int category, int row)
+    {
+        int index = cellIndex(category, bufferedCharacters[row], bufferedDanRanks[row], bufferedLocations[row]);
+        wins[index] += bufferedWins[row];
+        losses[index] += bufferedLosses[row];
+        players[index]++;
+    }
+
+    private int cellIndex(int category, int character, int danRank, int location)
+    {
+        return ((category * characterCapacity + character) * danRankCapacity + danRank) * locationCapacity + location;
+    }
+
+    private int characterOrdinal(String characterId)
+    {
+        Integer ordinal = characterOrdinals.get(characterId);
+        if (ordinal == null)
+        {
+            ordinal = characterIds.size();
+            characterOrdinals.put(characterId, ordinal);
+            characterIds.add(characterId);
+            ensureCapacity();
+        }
+        return ordinal;
+    }
+
+    // dan ranks are already small non-negative integers, so the rank is its own ordinal
+    private int danRankOrdinal(int danRank)
+    {
+        if (danRank >= danRankCount)
+        {
+            danRankCount = danRank + 1;
+            ensureCapacity();
+        }
+        return danRank;
+    }
+
+    // areas are nested in regions, so the pair shares one dimension instead of a sparse region x area plane
+    private int locationOrdinal(int regionId, int areaId)
+    {
+        if (regionId < 0 || regionId >= MAX_LOOKUP_ID || areaId < 0 || areaId >= MAX_LOOKUP_ID)
+        {
+            long key = ((long) regionId << 32) | (areaId & 0xFFFFFFFFL);
+            Integer ordinal = outOfRangeLocationOrdinals.get(key);
+            if (ordinal == null)
+            {
+                ordinal = newLocation(regionId, areaId);
+                outOfRangeLocationOrdinals.put(key, ordinal);
+            }
+            return ordinal;
+        }
+
+        if (regionId >= locationLookup.length)
+        {
+            locationLookup = Arrays.copyOf(locationLookup, regionId + 1);
+        }
+        int[] areas = locationLookup[regionId];
+        if (areas == null || areaId >= areas.length)
+        {
+            int oldLength = areas == null ? 0 : areas.length;
+            areas = areas == null ? new int[areaId + 1] : Arrays.copyOf(areas, Math.max(areaId + 1, oldLength * 2));
+            Arrays.fill(areas, oldLength, areas.length, -1);
+            locationLookup[regionId] = areas;
+        }
+
+        if (areas[areaId] < 0)
+        {
+            areas[areaId] = newLocation(regionId, areaId);
+        }
+        return areas[areaId];
+    }
+
+    private int newLocation(int regionId, int areaId)
+    {
+        int ordinal = locations.size();
+        locations.add(new int[]{regionId, areaId});
+        ensureCapacity();
+        return ordinal;
+    }
+
+    private void ensureCapacity()
+    {
+        int newCharacterCapacity = characterCapacity;
+        int newDanRankCapacity = danRankCapacity;
+        int newLocationCapacity = locationCapacity;
+
+        while (characterIds.size() > newCharacterCapacity) newCharacterCapacity *= 2;
+        while (danRankCount > newDanRankCapacity) newDanRankCapacity *= 2;
+        // locations are the only open-ended dimension, so they grow more gently
+        while (locations.size() > newLocationCapacity) newLocationCapacity += Math.max(16, newLocationCapacity / 2);
+
+        if (newCharacterCapacity == characterCapacity
+                && newDanRankCapacity == danRankCapacity
+                && newLocationCapacity == locationCapacity)
+        {
+            return;
+        }
+
+        int[] oldWins = wins;
+        int[] oldLosses = losses;
+        int[] oldPlayers = players;
+        int oldCharacterCapacity = characterCapacity;
+        int oldDanRankCapacity = danRankCapacity;
+        int oldLocationCapacity = locationCapacity;
+
+        characterCapacity = newCharacterCapacity;
+        danRankCapacity = newDanRankCapacity;
+        locationCapacity = newLocationCapacity;
+        allocate();
+
+        for (int category = 0; category < CATEGORIES.length; category++)
+        {
+            for (int character = 0; character < oldCharacterCapacity; character++)
+            {
+                for (int danRank = 0; danRank < oldDanRankCapacity; danRank++)
+                {
+                    int oldBase = ((category * oldCharacterCapacity + character) * oldDanRankCapacity + danRank) * oldLocationCapacity;
+                    int newBase = cellIndex(category, character, danRank, 0);
+                    System.arraycopy(oldWins, oldBase, wins, newBase, oldLocationCapacity);
+                    System.arraycopy(oldLosses, oldBase, losses, newBase, oldLocationCapacity);
+                    System.arraycopy(oldPlayers, oldBase, players, newBase, oldLocationCapacity);
+                }
+            }
+        }
+    }
+
+    private void allocate()
+    {
+        int cells = CATEGORIES.length * characterCapacity * danRankCapacity * locationCapacity;
+        wins = new int[cells];
+        losses = new int[cells];
+        players = new int[cells];
+    }
+
+    private void growBuffer()
+    {
+        int size = bufferedCharacters.length * 2;
+        bufferedCharacters = Arrays.copyOf(bufferedCharacters, size);
+        bufferedDanRanks = Arrays.copyOf(bufferedDanRanks, size);
+        bufferedLocations = Arrays.copyOf(bufferedLocations, size);
+        bufferedWins = Arrays.copyOf(bufferedWins, size);
+        bufferedLosses = Arrays.copyOf(bufferedLosses, size);
+    }
+}
@@ -0,0 +1,35 @@
+package org.tekkenstats.aggregations;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * What a request reads: the newest published generation of every game version, see
+ * StatisticsGenerationService. {@link #generation()} is the newest of them, which changes
+ * whenever any game version is republished, so it identifies the whole view.
+ */
+public record StatisticsGeneration(long generation, NavigableMap<Integer, Long> versionGenerations)
+{
+    public static final StatisticsGeneration EMPTY = new StatisticsGeneration(0, Collections.emptyNavigableMap());
+
+    public static StatisticsGeneration of(Map<Integer, Long> versionGenerations)
+    {
+        NavigableMap<Integer, Long> versions = new TreeMap<>(versionGenerations);
+        long newest = versions.values().stream().mapToLong(Long::longValue).max().orElse(0);
+        return new StatisticsGeneration(newest, Collections.unmodifiableNavigableMap(versions));
+    }
+
+    // generation holding the given game version, 0 (matching no rows) when it was never published
+    public long generationOf(int gameVersion)
+    {
+        return versionGenerations.getOrDefault(gameVersion, 0L);
+    }
+
+    // generation holding the newest game version, 0 when nothing was published yet
+    public long latestVersionGeneration()
+    {
+        return versionGenerations.isEmpty() ? 0 : versionGenerations.lastEntry().getValue();
+    }
+}
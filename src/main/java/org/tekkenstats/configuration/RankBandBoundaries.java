@@ -0,0 +1,46 @@
+package org.tekkenstats.configuration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.tekkenstats.aggregations.RankBand;
+
+/**
+ * The dan ranks each {@link RankBand} covers, from the statistics.rank-bands properties. Every
+ * place assigning bands, in Java or in SQL, goes through here so they cannot disagree.
+ */
+@Component
+public class RankBandBoundaries {
+
+    private final int mediumRankMin;
+    private final int highRankMin;
+
+    public RankBandBoundaries(
+            @Value("${statistics.rank-bands.medium-rank-min:15}") int mediumRankMin,
+            @Value("${statistics.rank-bands.high-rank-min:25}") int highRankMin)
+    {
+        if (mediumRankMin <= 0 || highRankMin <= mediumRankMin)
+        {
+            throw new IllegalStateException("Rank band boundaries must increase, got mediumRank from " +
+                    mediumRankMin + " and highRank from " + highRankMin);
+        }
+        this.mediumRankMin = mediumRankMin;
+        this.highRankMin = highRankMin;
+    }
+
+    public RankBand of(int danRank)
+    {
+        if (danRank >= highRankMin)
+        {
+            return RankBand.HIGH_RANK;
+        }
+        return danRank >= mediumRankMin ? RankBand.MEDIUM_RANK : RankBand.LOW_RANK;
+    }
+
+    // SQL expression giving the band name of a dan rank column, the boundaries are integers and inlined
+    public String sqlCase(String danRankColumn)
+    {
+        return "CASE WHEN " + danRankColumn + " >= " + highRankMin + " THEN '" + RankBand.HIGH_RANK.getName() + "' " +
+                "WHEN " + danRankColumn + " >= " + mediumRankMin + " THEN '" + RankBand.MEDIUM_RANK.getName() + "' " +
+                "ELSE '" + RankBand.LOW_RANK.getName() + "' END";
+    }
+}
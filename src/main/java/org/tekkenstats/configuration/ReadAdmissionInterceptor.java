@@ -0,0 +1,168 @@
+package org.tekkenstats.configuration;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for the read endpoints. At most max-concurrent requests run at once, and a
+ * request beyond that waits up to queue-timeout-ms for a slot before it is turned away with 503.
+ * Requests are turned away at once, without queueing, while the database is the bottleneck:
+ * when too many threads are waiting for a Hikari connection, or when the recent request latency
+ * (an exponentially weighted average over the admitted requests) is above the threshold.
+ * While the latency is above it, a request is still admitted whenever no other one is running,
+ * so the average keeps being updated and admission recovers with the database.
+ */
+@Component
+public class ReadAdmissionInterceptor implements HandlerInterceptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadAdmissionInterceptor.class);
+
+    private static final String ADMITTED_AT = ReadAdmissionInterceptor.class.getName() + ".admittedAt";
+    private static final double LATENCY_WEIGHT = 0.1;
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    private final boolean enabled;
+    private final Semaphore slots;
+    private final int maxConcurrent;
+    private final long queueTimeoutMs;
+    private final int maxThreadsAwaitingConnection;
+    private final long latencyThresholdMs;
+    // null when the data source is not a Hikari pool
+    private final HikariDataSource hikariDataSource;
+
+    // guarded by the interceptor itself
+    private double latencyAverageMs;
+
+    private final Counter shedQueueFull;
+    private final Counter shedPoolWait;
+    private final Counter shedLatency;
+
+    public ReadAdmissionInterceptor(
+            DataSource dataSource,
+            MeterRegistry meterRegistry,
+            @Value("${read-admission.enabled:true}") boolean enabled,
+            @Value("${read-admission.max-concurrent:64}") int maxConcurrent,
+            @Value("${read-admission.queue-timeout-ms:200}") long queueTimeoutMs,
+            @Value("${read-admission.max-threads-awaiting-connection:20}") int maxThreadsAwaitingConnection,
+            @Value("${read-admission.latency-threshold-ms:1000}") long latencyThresholdMs)
+    {
+        this.enabled = enabled;
+        this.slots = new Semaphore(maxConcurrent, true);
+        this.maxConcurrent = maxConcurrent;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.maxThreadsAwaitingConnection = maxThreadsAwaitingConnection;
+        this.latencyThresholdMs = latencyThresholdMs;
+        this.hikariDataSource = hikariDataSource(dataSource);
+
+        shedQueueFull = Counter.builder("read.admission.shed").tag("reason", "queue_timeout").register(meterRegistry);
+        shedPoolWait = Counter.builder("read.admission.shed").tag("reason", "connection_wait").register(meterRegistry);
+        shedLatency = Counter.builder("read.admission.shed").tag("reason", "latency").register(meterRegistry);
+        Gauge.builder("read.admission.latency.average", this, ReadAdmissionInterceptor::latencyAverage)
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception
+    {
+        if (!enabled)
+        {
+            return true;
+        }
+
+        if (threadsAwaitingConnection() > maxThreadsAwaitingConnection)
+        {
+            shedPoolWait.increment();
+            return reject(request, response, "connection wait");
+        }
+
+        if (latencyAverage() > latencyThresholdMs)
+        {
+            // only a probe while nothing runs, concurrent probes may slip through but stay few
+            if (slots.availablePermits() < maxConcurrent || !slots.tryAcquire())
+            {
+                shedLatency.increment();
+                return reject(request, response, "latency");
+            }
+        }
+        else if (!slots.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS))
+        {
+            shedQueueFull.increment();
+            return reject(request, response, "queue timeout");
+        }
+
+        request.setAttribute(ADMITTED_AT, System.nanoTime());
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex)
+    {
+        Object admittedAt = request.getAttribute(ADMITTED_AT);
+        if (admittedAt == null)
+        {
+            return;
+        }
+        request.removeAttribute(ADMITTED_AT);
+        slots.release();
+
+        double elapsedMs = (System.nanoTime() - (long) admittedAt) / 1_000_000.0;
+        synchronized (this)
+        {
+            latencyAverageMs += LATENCY_WEIGHT * (elapsedMs - latencyAverageMs);
+        }
+    }
+
+    private boolean reject(HttpServletRequest request, HttpServletResponse response, String reason)
+    {
+        logger.warn("Shedding request {} ({})", request.getRequestURI(), reason);
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        return false;
+    }
+
+    private synchronized double latencyAverage()
+    {
+        return latencyAverageMs;
+    }
+
+    private int threadsAwaitingConnection()
+    {
+        // the pool bean only exists once the pool has started
+        HikariPoolMXBean pool = hikariDataSource == null ? null : hikariDataSource.getHikariPoolMXBean();
+        return pool == null ? 0 : pool.getThreadsAwaitingConnection();
+    }
+
+    private static HikariDataSource hikariDataSource(DataSource dataSource)
+    {
+        try
+        {
+            if (dataSource.isWrapperFor(HikariDataSource.class))
+            {
+                return dataSource.unwrap(HikariDataSource.class);
+            }
+        }
+        catch (SQLException e)
+        {
+            logger.warn("Could not inspect the connection pool, read admission ignores connection waits: ", e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,44 @@
+package org.tekkenstats.configuration;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer
+{
+    private final ReadAdmissionInterceptor readAdmissionInterceptor;
+
+    public WebConfig(ReadAdmissionInterceptor readAdmissionInterceptor)
+    {
+        this.readAdmissionInterceptor = readAdmissionInterceptor;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry)
+    {
+        // the pre-serialized statistics responses are served from memory and need no admission,
+        // and live clients stay connected, so they would hold a slot for as long as they listen
+        registry.addInterceptor(readAdmissionInterceptor)
+                .addPathPatterns("/statistics/**", "/player-stats/**", "/analytics/**")
+                .excludePathPatterns(
+                        "/statistics/top-winrates",
+                        "/statistics/top-popularity",
+                        "/statistics/gameVersions",
+                        "/statistics/generation",
+                        "/statistics/rankDistribution/**",
+                        "/statistics/winrate-changes",
+                        "/statistics/live");
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer)
+    {
+        // streamed responses (the exports) write from these threads, mostly blocked on the client or the database
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("streaming-thread: ");
+        executor.setVirtualThreads(true);
+        configurer.setTaskExecutor(executor);
+    }
+}
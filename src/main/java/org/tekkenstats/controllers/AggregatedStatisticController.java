@@ -4,21 +4,38 @@ package org.tekkenstats.controllers;
 import jakarta.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.tekkenstats.aggregations.DistributionMetric;
+import org.tekkenstats.aggregations.QuantileSketch;
+import org.tekkenstats.aggregations.RankBand;
+import org.tekkenstats.aggregations.StatisticsGeneration;
 import org.tekkenstats.dtos.*;
 import org.tekkenstats.interfaces.CharacterWinrateProjection;
 import org.tekkenstats.interfaces.PopularCharacterProjection;
-import org.tekkenstats.interfaces.RankDistributionProjection;
 import org.tekkenstats.mappers.enumsMapper;
 import org.tekkenstats.models.TekkenStatsSummary;
 import org.tekkenstats.repositories.AggregatedStatisticsRepository;
 import org.tekkenstats.repositories.TekkenStatsSummaryRepository;
+import org.tekkenstats.services.LiveStatisticsBroadcaster;
+import org.tekkenstats.services.MatchupService;
+import org.tekkenstats.services.PlayerSketchService;
+import org.tekkenstats.services.RequestCoalescer;
+import org.tekkenstats.services.ValueDistributionService;
+import org.tekkenstats.services.StatisticsGenerationService;
+import org.tekkenstats.services.StatisticsRecomputeScheduler;
+import org.tekkenstats.services.StatisticsResponseCache;
+import org.tekkenstats.services.StatisticsRollupService;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 @RestController
@@ -28,17 +45,49 @@ public class AggregatedStatisticController
 
     private final TekkenStatsSummaryRepository tekkenStatsSummaryRepository;
     private final AggregatedStatisticsRepository aggregatedStatisticsRepository;
+    private final StatisticsRollupService statisticsRollupService;
+    private final StatisticsRecomputeScheduler statisticsRecomputeScheduler;
+    private final StatisticsGenerationService statisticsGenerationService;
+    private final StatisticsResponseCache statisticsResponseCache;
+    private final MatchupService matchupService;
+    private final PlayerSketchService playerSketchService;
+    private final ValueDistributionService valueDistributionService;
+    private final RequestCoalescer requestCoalescer;
+    private final LiveStatisticsBroadcaster liveStatisticsBroadcaster;
     private final enumsMapper enumsMapper;
 
     private static final Logger logger = LoggerFactory.getLogger(AggregatedStatisticController.class);
 
+    // above the size of the roster, so larger limits return the same rows and would only add cache entries
+    private static final int MAX_LIMIT = 50;
+
+    private static final Set<String> RANK_DISTRIBUTION_CATEGORIES = Set.of("standard", "overall");
+
     public AggregatedStatisticController(
             TekkenStatsSummaryRepository tekkenStatsSummaryRepository,
             AggregatedStatisticsRepository aggregatedStatisticsRepository,
+            StatisticsRollupService statisticsRollupService,
+            StatisticsRecomputeScheduler statisticsRecomputeScheduler,
+            StatisticsGenerationService statisticsGenerationService,
+            StatisticsResponseCache statisticsResponseCache,
+            MatchupService matchupService,
+            PlayerSketchService playerSketchService,
+            ValueDistributionService valueDistributionService,
+            RequestCoalescer requestCoalescer,
+            LiveStatisticsBroadcaster liveStatisticsBroadcaster,
             enumsMapper enumsMapper)
     {
         this.tekkenStatsSummaryRepository = tekkenStatsSummaryRepository;
         this.aggregatedStatisticsRepository = aggregatedStatisticsRepository;
+        this.statisticsRollupService = statisticsRollupService;
+        this.statisticsRecomputeScheduler = statisticsRecomputeScheduler;
+        this.statisticsGenerationService = statisticsGenerationService;
+        this.statisticsResponseCache = statisticsResponseCache;
+        this.matchupService = matchupService;
+        this.playerSketchService = playerSketchService;
+        this.valueDistributionService = valueDistributionService;
+        this.requestCoalescer = requestCoalescer;
+        this.liveStatisticsBroadcaster = liveStatisticsBroadcaster;
         this.enumsMapper = enumsMapper;
     }
 
@@ -47,47 +96,43 @@ public class AggregatedStatisticController
     public ResponseEntity<TekkenStatsSummaryDTO> getPlayerCount(HttpServletRequest request) throws InterruptedException
     {
         logger.info("Received request for stats summary");
-         return tekkenStatsSummaryRepository.getTekkenStatsSummary()
+         return requestCoalescer.coalesce("stats-summary", tekkenStatsSummaryRepository::getTekkenStatsSummary)
                  .map(this::convertToDTO)
                  .map(ResponseEntity::ok)
                  .orElse(ResponseEntity.notFound().build());
 
     }
 
+    // Server-sent events instead of polling: "summary" when the counts above change, "generation" when new statistics are served
+    @GetMapping(value = "/live", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<SseEmitter> getLiveStatistics()
+    {
+        logger.info("Received subscription to live statistics");
+
+        SseEmitter emitter = liveStatisticsBroadcaster.subscribe();
+        if (emitter == null)
+        {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.ok(emitter);
+    }
+
+    // The endpoints below serve pre-serialized responses rebuilt on every statistics publish, see StatisticsResponseCache
     @GetMapping("/top-winrates")
     @CrossOrigin(origins = "http://localhost:3000")
-    public ResponseEntity<CharacterWinratesDTO> getTop5Winrates() {
-        logger.info("Fetching top 5 character winrates");
+    public ResponseEntity<byte[]> getTopWinrates(@RequestParam(defaultValue = "5") int limit, HttpServletRequest request) {
+        logger.info("Fetching top {} character winrates", limit);
+
+        if (limit < 1)
+        {
+            return ResponseEntity.badRequest().build();
+        }
 
         try {
-            // Get high rank winrates
-            Map<String, Double> highRankWinrates = aggregatedStatisticsRepository
-                    .findTop5CharactersByWinrateInHighRank()
-                    .stream()
-                    .collect(Collectors.toMap(
-                            projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
-                            CharacterWinrateProjection::getWinratePercentage
-                    ));
-
-            Map<String, Double> mediumRankWinrates = aggregatedStatisticsRepository
-                    .findTop5CharactersByWinrateInMediumRanks()
-                    .stream()
-                    .collect(Collectors.toMap(
-                            projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
-                            CharacterWinrateProjection::getWinratePercentage
-                    ));
-
-            // Get low rank winrates
-            Map<String, Double> lowRankWinrates = aggregatedStatisticsRepository
-                    .findTop5CharactersByWinrateInLowRanks()
-                    .stream()
-                    .collect(Collectors.toMap(
-                            projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
-                            CharacterWinrateProjection::getWinratePercentage
-                    ));
-
-            CharacterWinratesDTO response = new CharacterWinratesDTO(highRankWinrates, mediumRankWinrates, lowRankWinrates);
-            return ResponseEntity.ok(response);
+            int cappedLimit = Math.min(limit, MAX_LIMIT);
+            return statisticsResponseCache.respond("top-winrates?limit=" + cappedLimit, request,
+                    generation -> buildTopWinrates(generation, cappedLimit));
 
         } catch (Exception e) {
             logger.error("Error fetching character winrates", e);
@@ -97,38 +142,18 @@ public class AggregatedStatisticController
 
     @GetMapping("/top-popularity")
     @CrossOrigin(origins = "http://localhost:3000")
-    public ResponseEntity<CharacterPopularityDTO> getTop5CharacterPopularity() {
-        logger.info("Fetching top 5 popular characters");
+    public ResponseEntity<byte[]> getTopCharacterPopularity(@RequestParam(defaultValue = "5") int limit, HttpServletRequest request) {
+        logger.info("Fetching top {} popular characters", limit);
+
+        if (limit < 1)
+        {
+            return ResponseEntity.badRequest().build();
+        }
 
         try {
-            // Get high rank popularity
-            Map<String, Long> highRankPopularity = aggregatedStatisticsRepository
-                    .findPopularCharactersInHighRanks()
-                    .stream()
-                    .collect(Collectors.toMap(
-                            projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
-                            PopularCharacterProjection::getTotalWins
-                    ));
-
-            Map<String, Long> mediumRankPopularity = aggregatedStatisticsRepository
-                    .findPopularCharactersInMediumRanks()
-                    .stream()
-                    .collect(Collectors.toMap(
-                            projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
-                            PopularCharacterProjection::getTotalWins
-                    ));
-
-            // Get low rank winrates
-            Map<String, Long> lowRankPopularity = aggregatedStatisticsRepository
-                    .findPopularCharactersInLowRanks()
-                    .stream()
-                    .collect(Collectors.toMap(
-                            projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
-                            PopularCharacterProjection::getTotalWins
-                    ));
-
-            CharacterPopularityDTO response = new CharacterPopularityDTO(highRankPopularity, mediumRankPopularity, lowRankPopularity);
-            return ResponseEntity.ok(response);
+            int cappedLimit = Math.min(limit, MAX_LIMIT);
+            return statisticsResponseCache.respond("top-popularity?limit=" + cappedLimit, request,
+                    generation -> buildTopCharacterPopularity(generation, cappedLimit));
 
         } catch (Exception e) {
             logger.error("Error fetching character popularity statistics", e);
@@ -138,74 +163,309 @@ public class AggregatedStatisticController
 
     @GetMapping("/gameVersions")
     @CrossOrigin(origins = "http://localhost:3000")
-    public ResponseEntity<List<Integer>> getGameVersions(HttpServletRequest request) throws InterruptedException
+    public ResponseEntity<byte[]> getGameVersions(HttpServletRequest request) throws InterruptedException
     {
         logger.info("Received request for gameVerions");
-        return aggregatedStatisticsRepository.getGameVersions()
-                .map(ResponseEntity::ok)
-                .orElse(ResponseEntity.notFound().build());
+        return statisticsResponseCache.respond("gameVersions", request,
+                generation -> new ArrayList<>(generation.versionGenerations().keySet()));
+    }
+
+    // The statistics generation new requests are pinned to, for clients and caches to key on
+    @GetMapping("/generation")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<StatisticsGenerationDTO> getGeneration()
+    {
+        logger.info("Received request for statistics generation");
+        StatisticsGeneration generation = statisticsGenerationService.current();
+        return ResponseEntity.ok(new StatisticsGenerationDTO(generation.generation(), generation.versionGenerations()));
     }
 
     @GetMapping("/rankDistribution/{gameVersion}/{category}")
     @CrossOrigin(origins = "http://localhost:3000")
-    public ResponseEntity<rankDistributionDTO> getRankDistribution(
+    public ResponseEntity<byte[]> getRankDistribution(
             @PathVariable int gameVersion,
-            @PathVariable String category)
+            @PathVariable String category,
+            HttpServletRequest request)
     {
 
         logger.info("Fetching rank distribution for version: {} and category: {}", gameVersion, category);
 
-        return Optional.of(aggregatedStatisticsRepository.getRankDistribution(gameVersion, category))
-                .map(this::convertToDTO)
-                .map(ResponseEntity::ok)
-                .orElse(ResponseEntity.notFound().build());
+        // every distinct path would otherwise get its own cache entry
+        if (!RANK_DISTRIBUTION_CATEGORIES.contains(category))
+        {
+            return ResponseEntity.badRequest().build();
+        }
+        if (!statisticsGenerationService.current().versionGenerations().containsKey(gameVersion))
+        {
+            return ResponseEntity.notFound().build();
+        }
+
+        return statisticsResponseCache.respond("rankDistribution/" + gameVersion + "/" + category, request, generation -> {
+            rankDistributionDTO dto = new rankDistributionDTO();
+            dto.setRankDistribution(playerSketchService.getRankDistribution(generation.generationOf(gameVersion), category));
+            return dto;
+        });
+    }
+
+    // Distinct players over any set of versions, ranks, characters or a region, from merged player sketches
+    @GetMapping("/distinct-players")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<DistinctPlayersDTO> getDistinctPlayers(
+            @RequestParam List<Integer> gameVersions,
+            @RequestParam(defaultValue = "overall") String category,
+            @RequestParam(required = false) String characterId,
+            @RequestParam(required = false) Integer minRank,
+            @RequestParam(required = false) Integer maxRank,
+            @RequestParam(required = false) Integer regionId)
+    {
+        logger.info("Estimating distinct players for versions: {} and category: {}", gameVersions, category);
+
+        try {
+            double estimate = requestCoalescer.coalesce(
+                    "distinct-players:" + gameVersions + ":" + category + ":" + characterId + ":" + minRank + ":" + maxRank + ":" + regionId,
+                    () -> playerSketchService.estimateDistinctPlayers(gameVersions, category, characterId, minRank, maxRank, regionId));
+            return ResponseEntity.ok(new DistinctPlayersDTO(gameVersions, category, Math.round(estimate)));
+
+        } catch (Exception e) {
+            logger.error("Error estimating distinct players", e);
+            return ResponseEntity.internalServerError().build();
+        }
     }
 
 
     @GetMapping("/winrate-changes")
     @CrossOrigin(origins = "http://localhost:3000")
-    public ResponseEntity<Map<String, List<RankWinrateChangesDTO>>> getWinrateChanges() {
+    public ResponseEntity<byte[]> getWinrateChanges(@RequestParam(defaultValue = "2") int limit, HttpServletRequest request) {
         logger.info("Fetching character winrate changes");
 
+        if (limit < 1)
+        {
+            return ResponseEntity.badRequest().build();
+        }
+
         try {
-            List<Object[]> results = aggregatedStatisticsRepository.getWinrateChanges();
+            int cappedLimit = Math.min(limit, MAX_LIMIT);
+            return statisticsResponseCache.respond("winrate-changes?limit=" + cappedLimit, request,
+                    generation -> buildWinrateChanges(generation, cappedLimit));
 
-            List<RankWinrateChangesDTO> changes = results.stream()
-                    .map(result -> {
-                        RankWinrateChangesDTO dto = new RankWinrateChangesDTO();
-                        dto.setCharacterId(enumsMapper.getCharacterName((String) result[0]));
-                        dto.setRankCategory((String) result[1]);
-                        dto.setChange((Double) result[2]);
-                        dto.setTrend((String) result[3]);
-                        return dto;
-                    })
-                    .collect(Collectors.toList());
+        } catch (Exception e) {
+            logger.error("Error fetching character winrate changes", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
 
-            Map<String, List<RankWinrateChangesDTO>> groupedChanges =
-                    RankWinrateChangesDTO.groupByRankCategory(changes);
+    // window is "patch" or a rolling window such as "24h" / "7d", served from time-bucketed rollups
+    @GetMapping("/windowed/{window}")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<WindowStatisticsDTO> getWindowedStatistics(
+            @PathVariable String window,
+            @RequestParam(required = false) Integer gameVersion,
+            @RequestParam(required = false) Integer minRank,
+            @RequestParam(required = false) Integer maxRank,
+            @RequestParam(required = false) Integer regionId)
+    {
+        logger.info("Fetching windowed statistics for window: {}, version: {}", window, gameVersion);
 
-            return ResponseEntity.ok(groupedChanges);
+        try {
+            // names are mapped inside the shared computation, the response is complete once shared
+            WindowStatisticsDTO response = requestCoalescer.coalesce(
+                    "windowed:" + window + ":" + gameVersion + ":" + minRank + ":" + maxRank + ":" + regionId,
+                    () -> {
+                        WindowStatisticsDTO statistics = statisticsRollupService.getWindowStatistics(window, gameVersion, minRank, maxRank, regionId);
+                        statistics.getCharacters().forEach(character ->
+                                character.setCharacterId(enumsMapper.getCharacterName(character.getCharacterId())));
+                        return statistics;
+                    });
+            return ResponseEntity.ok(response);
 
+        } catch (IllegalArgumentException e) {
+            logger.warn("Rejected windowed statistics request: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
         } catch (Exception e) {
-            logger.error("Error fetching character winrate changes", e);
+            logger.error("Error fetching windowed statistics", e);
             return ResponseEntity.internalServerError().build();
         }
     }
+    // rankBand is lowRank, mediumRank or highRank, omitted for every rank combined
+    @GetMapping("/matchups")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<MatchupMatrixDTO> getMatchups(
+            @RequestParam(required = false) Integer gameVersion,
+            @RequestParam(required = false) String rankBand)
+    {
+        logger.info("Fetching matchups for version: {} and rank band: {}", gameVersion, rankBand);
 
+        try {
+            MatchupMatrixDTO response = requestCoalescer.coalesce("matchups:" + gameVersion + ":" + rankBand, () -> {
+                MatchupMatrixDTO matchups = matchupService.getMatchups(gameVersion, rankBand);
+                matchups.getMatchups().forEach(matchup -> {
+                    matchup.setCharacterId(enumsMapper.getCharacterName(matchup.getCharacterId()));
+                    matchup.setOpponentCharacterId(enumsMapper.getCharacterName(matchup.getOpponentCharacterId()));
+                });
+                return matchups;
+            });
+            return ResponseEntity.ok(response);
+
+        } catch (IllegalArgumentException e) {
+            logger.warn("Rejected matchups request: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            logger.error("Error fetching matchups", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @GetMapping("/freshness")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<List<StatisticsFreshnessDTO>> getFreshness()
+    {
+        logger.info("Fetching statistics freshness");
+
+        try {
+            return ResponseEntity.ok(statisticsRecomputeScheduler.getFreshness());
+
+        } catch (Exception e) {
+            logger.error("Error fetching statistics freshness", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    // metric is rating or tekken_power; e.g. percentiles=90 with characterId set answers "what rating is top 10%"
+    @GetMapping("/percentiles")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<PercentilesDTO> getPercentiles(
+            @RequestParam int gameVersion,
+            @RequestParam(defaultValue = "rating") String metric,
+            @RequestParam(required = false) String characterId,
+            @RequestParam(required = false) String rankBand,
+            @RequestParam(defaultValue = "10,25,50,75,90,99") List<Double> percentiles)
+    {
+        logger.info("Fetching {} percentiles for version: {}, character: {}, rank band: {}", metric, gameVersion, characterId, rankBand);
+
+        try {
+            RankBand band = rankBand == null ? null : RankBand.fromName(rankBand);
+            DistributionMetric distributionMetric = DistributionMetric.fromName(metric);
+            // the merged sketch is only read below, so concurrent requests can share it
+            QuantileSketch sketch = requestCoalescer.coalesce(
+                    "percentiles:" + gameVersion + ":" + distributionMetric.getName() + ":" + characterId + ":" + band,
+                    () -> valueDistributionService.getDistribution(gameVersion, distributionMetric, characterId, band));
+
+            if (sketch.getCount() == 0)
+            {
+                return ResponseEntity.notFound().build();
+            }
+
+            Map<Double, Double> values = new TreeMap<>();
+            for (Double percentile : percentiles)
+            {
+                if (percentile < 0 || percentile > 100)
+                {
+                    return ResponseEntity.badRequest().build();
+                }
+                values.put(percentile, sketch.quantile(percentile / 100.0));
+            }
+
+            return ResponseEntity.ok(new PercentilesDTO(
+                    gameVersion,
+                    metric,
+                    characterId == null ? null : enumsMapper.getCharacterName(characterId),
+                    band == null ? null : band.getName(),
+                    sketch.getCount(),
+                    values));
+
+        } catch (IllegalArgumentException e) {
+            logger.warn("Rejected percentiles request: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            logger.error("Error fetching percentiles", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
 
 
-    private rankDistributionDTO convertToDTO(List<RankDistributionProjection> projections)
+    private CharacterWinratesDTO buildTopWinrates(StatisticsGeneration generation, int limit)
     {
-        rankDistributionDTO dto = new rankDistributionDTO();
-        Map<Integer, Double> distribution = projections.stream()
+        long latest = generation.latestVersionGeneration();
+
+        // Get high rank winrates
+        Map<String, Double> highRankWinrates = aggregatedStatisticsRepository
+                .findTopCharactersByWinrate(latest, RankBand.HIGH_RANK.getName(), limit)
+                .stream()
                 .collect(Collectors.toMap(
-                        RankDistributionProjection::getRank,
-                        RankDistributionProjection::getPercentage
+                        projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
+                        CharacterWinrateProjection::getWinratePercentage
                 ));
-        dto.setRankDistribution(distribution);
-        return dto;
+
+        Map<String, Double> mediumRankWinrates = aggregatedStatisticsRepository
+                .findTopCharactersByWinrate(latest, RankBand.MEDIUM_RANK.getName(), limit)
+                .stream()
+                .collect(Collectors.toMap(
+                        projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
+                        CharacterWinrateProjection::getWinratePercentage
+                ));
+
+        // Get low rank winrates
+        Map<String, Double> lowRankWinrates = aggregatedStatisticsRepository
+                .findTopCharactersByWinrate(latest, RankBand.LOW_RANK.getName(), limit)
+                .stream()
+                .collect(Collectors.toMap(
+                        projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
+                        CharacterWinrateProjection::getWinratePercentage
+                ));
+
+        return new CharacterWinratesDTO(highRankWinrates, mediumRankWinrates, lowRankWinrates);
     }
 
+    private CharacterPopularityDTO buildTopCharacterPopularity(StatisticsGeneration generation, int limit)
+    {
+        long latest = generation.latestVersionGeneration();
+
+        // Get high rank popularity
+        Map<String, Long> highRankPopularity = aggregatedStatisticsRepository
+                .findPopularCharacters(latest, RankBand.HIGH_RANK.getName(), limit)
+                .stream()
+                .collect(Collectors.toMap(
+                        projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
+                        PopularCharacterProjection::getTotalWins
+                ));
+
+        Map<String, Long> mediumRankPopularity = aggregatedStatisticsRepository
+                .findPopularCharacters(latest, RankBand.MEDIUM_RANK.getName(), limit)
+                .stream()
+                .collect(Collectors.toMap(
+                        projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
+                        PopularCharacterProjection::getTotalWins
+                ));
+
+        // Get low rank winrates
+        Map<String, Long> lowRankPopularity = aggregatedStatisticsRepository
+                .findPopularCharacters(latest, RankBand.LOW_RANK.getName(), limit)
+                .stream()
+                .collect(Collectors.toMap(
+                        projection -> enumsMapper.getCharacterName(projection.getCharacterId()),
+                        PopularCharacterProjection::getTotalWins
+                ));
+
+        return new CharacterPopularityDTO(highRankPopularity, mediumRankPopularity, lowRankPopularity);
+    }
+
+    private Map<String, List<RankWinrateChangesDTO>> buildWinrateChanges(StatisticsGeneration generation, int limit)
+    {
+        List<Object[]> results = aggregatedStatisticsRepository.getWinrateChanges(generation.latestVersionGeneration(), limit);
+
+        List<RankWinrateChangesDTO> changes = results.stream()
+                .map(result -> {
+                    RankWinrateChangesDTO dto = new RankWinrateChangesDTO();
+                    dto.setCharacterId(enumsMapper.getCharacterName((String) result[0]));
+                    dto.setRankCategory((String) result[1]);
+                    dto.setChange((Double) result[2]);
+                    dto.setTrend((String) result[3]);
+                    return dto;
+                })
+                .collect(Collectors.toList());
+
+        return RankWinrateChangesDTO.groupByRankCategory(changes);
+    }
 
     private TekkenStatsSummaryDTO convertToDTO(TekkenStatsSummary tekkenStatsSummary)
     {
@@ -0,0 +1,110 @@
+package org.tekkenstats.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.tekkenstats.aggregations.BattleScanFilter;
+import org.tekkenstats.aggregations.BattleScanGroup;
+import org.tekkenstats.aggregations.BattleScanResult;
+import org.tekkenstats.dtos.BattleScanDTO;
+import org.tekkenstats.dtos.BattleScanGroupDTO;
+import org.tekkenstats.mappers.enumsMapper;
+import org.tekkenstats.services.RecentBattleStore;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Ad-hoc slicing of recent battles, served from the node-local {@link RecentBattleStore}
+ * instead of the battles table.
+ */
+@RestController
+@RequestMapping("/analytics")
+public class BattleAnalyticsController
+{
+    private final RecentBattleStore recentBattleStore;
+    private final enumsMapper enumsMapper;
+
+    private static final Logger logger = LoggerFactory.getLogger(BattleAnalyticsController.class);
+
+    public BattleAnalyticsController(RecentBattleStore recentBattleStore, enumsMapper enumsMapper)
+    {
+        this.recentBattleStore = recentBattleStore;
+        this.enumsMapper = enumsMapper;
+    }
+
+    // groupBy is one of character, opponent, stage, dan_rank or region; hours is capped at the store's retention
+    @GetMapping("/battles")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<BattleScanDTO> scanRecentBattles(
+            @RequestParam(defaultValue = "character") String groupBy,
+            @RequestParam(required = false) Integer hours,
+            @RequestParam(required = false) Integer characterId,
+            @RequestParam(required = false) Integer opponentCharacterId,
+            @RequestParam(required = false) Integer stageId,
+            @RequestParam(required = false) Integer minRank,
+            @RequestParam(required = false) Integer maxRank,
+            @RequestParam(required = false) Integer regionId)
+    {
+        if (!recentBattleStore.isEnabled())
+        {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+
+        BattleScanGroup group;
+        try {
+            group = BattleScanGroup.valueOf(groupBy.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Rejected recent battle scan with groupBy: {}", groupBy);
+            return ResponseEntity.badRequest().build();
+        }
+
+        long window = hours == null
+                ? recentBattleStore.getRetentionSeconds()
+                : Math.min(hours * 3600L, recentBattleStore.getRetentionSeconds());
+        long since = Instant.now().getEpochSecond() - window;
+
+        long startTime = System.currentTimeMillis();
+        BattleScanResult result = recentBattleStore.scan(
+                new BattleScanFilter(since, characterId, opponentCharacterId, stageId, minRank, maxRank, regionId), group);
+        long endTime = System.currentTimeMillis();
+        logger.info("Scanned recent battles grouped by {}: {} ms", group, (endTime - startTime));
+
+        List<BattleScanGroupDTO> groups = new ArrayList<>();
+        for (int key = 0; key < result.keys(); key++)
+        {
+            long games = result.gamesAt(key);
+            if (games == 0)
+            {
+                continue;
+            }
+            long wins = result.winsAt(key);
+            groups.add(new BattleScanGroupDTO(
+                    key,
+                    groupName(group, key),
+                    games,
+                    wins,
+                    games - wins,
+                    Math.round(wins * 10000.0 / games) / 100.0,
+                    result.roundsWonAt(key),
+                    result.roundsLostAt(key)));
+        }
+
+        return ResponseEntity.ok(new BattleScanDTO(group.name().toLowerCase(Locale.ROOT), since, recentBattleStore.size(), groups));
+    }
+
+    private String groupName(BattleScanGroup group, int key)
+    {
+        return switch (group)
+        {
+            case CHARACTER, OPPONENT -> enumsMapper.getCharacterName(String.valueOf(key));
+            case STAGE -> enumsMapper.getStageName(String.valueOf(key));
+            case DAN_RANK -> enumsMapper.getDanName(String.valueOf(key));
+            case REGION -> String.valueOf(key);
+        };
+    }
+}
@@ -0,0 +1,133 @@
+package org.tekkenstats.controllers;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.tekkenstats.services.ExportService;
+import org.tekkenstats.services.StatisticsResponseCache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Bulk downloads for analysis, streamed straight from the database by {@link ExportService}.
+ * format is ndjson or csv; the response is gzipped when the client accepts it. An export may
+ * stream for up to timeout-minutes, other async requests keep the server's default timeout.
+ */
+@RestController
+@RequestMapping("/export")
+public class ExportController
+{
+    private static final String RETRY_AFTER_SECONDS = "30";
+
+    private final ExportService exportService;
+
+    @Value("${export.timeout-minutes:60}")
+    private long timeoutMinutes;
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportController.class);
+
+    public ExportController(ExportService exportService)
+    {
+        this.exportService = exportService;
+    }
+
+    // from and to are epoch seconds, to is exclusive
+    @GetMapping("/battles")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<StreamingResponseBody> exportBattles(
+            @RequestParam long from,
+            @RequestParam long to,
+            @RequestParam(required = false) Integer gameVersion,
+            @RequestParam(required = false) Integer characterId,
+            @RequestParam(defaultValue = "ndjson") String format,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            HttpServletRequest request)
+    {
+        logger.info("Exporting battles from {} to {}, version: {}, character: {}", from, to, gameVersion, characterId);
+
+        if (to <= from)
+        {
+            return ResponseEntity.badRequest().build();
+        }
+        return export("battles", format, acceptEncoding, request,
+                exportFormat -> exportService.exportBattles(from, to, gameVersion, characterId, exportFormat, StatisticsResponseCache.acceptsGzip(acceptEncoding)));
+    }
+
+    @GetMapping("/aggregated-statistics")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<StreamingResponseBody> exportAggregatedStatistics(
+            @RequestParam(required = false) Integer gameVersion,
+            @RequestParam(required = false) String category,
+            @RequestParam(defaultValue = "ndjson") String format,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            HttpServletRequest request)
+    {
+        logger.info("Exporting aggregated statistics, version: {}, category: {}", gameVersion, category);
+
+        return export("aggregated_statistics", format, acceptEncoding, request,
+                exportFormat -> exportService.exportAggregatedStatistics(gameVersion, category, exportFormat, StatisticsResponseCache.acceptsGzip(acceptEncoding)));
+    }
+
+    @GetMapping("/character-stats")
+    @CrossOrigin(origins = "http://localhost:3000")
+    public ResponseEntity<StreamingResponseBody> exportCharacterStats(
+            @RequestParam(required = false) Integer gameVersion,
+            @RequestParam(required = false) String characterId,
+            @RequestParam(defaultValue = "ndjson") String format,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            HttpServletRequest request)
+    {
+        logger.info("Exporting character stats, version: {}, character: {}", gameVersion, characterId);
+
+        return export("character_stats", format, acceptEncoding, request,
+                exportFormat -> exportService.exportCharacterStats(gameVersion, characterId, exportFormat, StatisticsResponseCache.acceptsGzip(acceptEncoding)));
+    }
+
+    private ResponseEntity<StreamingResponseBody> export(
+            String name,
+            String format,
+            String acceptEncoding,
+            HttpServletRequest request,
+            Function<ExportService.Format, StreamingResponseBody> exporter)
+    {
+        try {
+            ExportService.Format exportFormat = ExportService.Format.fromName(format);
+            StreamingResponseBody body = exporter.apply(exportFormat);
+            if (body == null)
+            {
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                        .build();
+            }
+
+            // the async request is already set up, the body starts streaming with this timeout
+            WebAsyncUtils.getAsyncManager(request).getAsyncWebRequest().setTimeout(TimeUnit.MINUTES.toMillis(timeoutMinutes));
+
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType(exportFormat.getContentType() + ";charset=UTF-8"))
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + name + "." + exportFormat.getName() + "\"")
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (StatisticsResponseCache.acceptsGzip(acceptEncoding))
+            {
+                response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+            }
+            return response.body(body);
+
+        } catch (IllegalArgumentException e) {
+            logger.warn("Rejected {} export: {}", name, e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            logger.error("Error starting {} export", name, e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BattleScanDTO {
+    private String groupBy;
+    // epoch seconds
+    private long since;
+    private int storedBattles;
+    private List<BattleScanGroupDTO> groups;
+}
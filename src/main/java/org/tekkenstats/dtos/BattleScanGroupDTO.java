@@ -0,0 +1,19 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BattleScanGroupDTO {
+    private int key;
+    private String name;
+    private long games;
+    private long wins;
+    private long losses;
+    private double winratePercentage;
+    private long roundsWon;
+    private long roundsLost;
+}
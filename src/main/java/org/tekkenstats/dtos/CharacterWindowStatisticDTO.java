@@ -0,0 +1,16 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CharacterWindowStatisticDTO {
+    private String characterId;
+    private long totalWins;
+    private long totalLosses;
+    private long totalReplays;
+    private double winratePercentage;
+}
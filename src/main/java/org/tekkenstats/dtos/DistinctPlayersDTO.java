@@ -0,0 +1,17 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DistinctPlayersDTO {
+    private List<Integer> gameVersions;
+    private String category;
+    // HyperLogLog estimate, about 3% standard error
+    private long estimatedPlayers;
+}
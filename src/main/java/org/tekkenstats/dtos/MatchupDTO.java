@@ -0,0 +1,16 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MatchupDTO {
+    private String characterId;
+    private String opponentCharacterId;
+    private long wins;
+    private long losses;
+    private double winratePercentage;
+}
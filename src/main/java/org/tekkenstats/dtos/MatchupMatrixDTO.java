@@ -0,0 +1,17 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MatchupMatrixDTO {
+    private Integer gameVersion;
+    // null when the matrix covers every rank band
+    private String rankBand;
+    private List<MatchupDTO> matchups;
+}
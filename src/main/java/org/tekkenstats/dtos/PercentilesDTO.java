@@ -0,0 +1,21 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PercentilesDTO {
+    private int gameVersion;
+    private String metric;
+    // null when the distribution covers every character or every rank band
+    private String character;
+    private String rankBand;
+    private long samples;
+    // percentile (0-100) to value, within 1% relative error
+    private Map<Double, Double> percentiles;
+}
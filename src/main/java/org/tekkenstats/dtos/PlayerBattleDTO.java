@@ -5,6 +5,8 @@ import lombok.Data;
 @Data
 public class PlayerBattleDTO
 {
+    private String battleId;
+    private long battleAt;
     private String date;
     private String player1Name;
     private Integer player1CharacterId;
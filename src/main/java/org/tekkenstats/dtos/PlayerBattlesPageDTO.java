@@ -0,0 +1,16 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PlayerBattlesPageDTO {
+    private List<PlayerBattleDTO> battles;
+    // pass as "before" to fetch the next, older page; null on the last page
+    private String nextCursor;
+}
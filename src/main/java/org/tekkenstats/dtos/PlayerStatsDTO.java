@@ -16,5 +16,7 @@ public class PlayerStatsDTO
     private long tekkenPower;
     private long latestBattle;
     private Map<CharacterStatsId, CharacterStatsDTO> characterStats;
+    // newest page of battles, older ones come from /player-stats/{player}/battles?before=battlesNextCursor
     private List<PlayerBattleDTO> battles;
+    private String battlesNextCursor;
 }
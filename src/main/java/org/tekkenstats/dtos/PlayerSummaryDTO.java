@@ -0,0 +1,19 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PlayerSummaryDTO {
+    private String playerId;
+    private String name;
+    private String tekkenId;
+    private Integer regionId;
+    private Long tekkenPower;
+    private Long latestBattle;
+    private String mainCharacter;
+    private String danRankName;
+}
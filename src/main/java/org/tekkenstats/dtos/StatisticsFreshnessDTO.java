@@ -0,0 +1,20 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StatisticsFreshnessDTO {
+    private int gameVersion;
+    // start of the last published recompute by any node, null if none ran yet
+    private LocalDateTime lastRecomputedAt;
+    // oldest ingested change not covered by a published recompute, null when up to date
+    private LocalDateTime pendingSince;
+    private long staleSeconds;
+    private boolean recomputing;
+}
@@ -0,0 +1,16 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StatisticsGenerationDTO {
+    private long generation;
+    // game version to the generation its statistics are read from
+    private Map<Integer, Long> gameVersions;
+}
@@ -0,0 +1,19 @@
+package org.tekkenstats.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WindowStatisticsDTO {
+    private String window;
+    private Integer gameVersion;
+    // epoch seconds, the start is rounded down to the bucket boundary that covers it
+    private long windowStart;
+    private long windowEnd;
+    private List<CharacterWindowStatisticDTO> characters;
+}
@@ -0,0 +1,12 @@
+package org.tekkenstats.events;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.tekkenstats.aggregations.StatisticsGeneration;
+
+@Data
+@AllArgsConstructor
+public class StatisticsPublishedEvent
+{
+    private StatisticsGeneration generation;
+}
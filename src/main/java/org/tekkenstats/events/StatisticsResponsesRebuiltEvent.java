@@ -0,0 +1,13 @@
+package org.tekkenstats.events;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.tekkenstats.aggregations.StatisticsGeneration;
+
+// The cached statistics responses are now served from this generation
+@Data
+@AllArgsConstructor
+public class StatisticsResponsesRebuiltEvent
+{
+    private StatisticsGeneration generation;
+}
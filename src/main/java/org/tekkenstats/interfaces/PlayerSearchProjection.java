@@ -0,0 +1,10 @@
+package org.tekkenstats.interfaces;
+
+public interface PlayerSearchProjection {
+    String getPlayerId();
+    String getName();
+    String getPolarisId();
+    Integer getRegionId();
+    String getMainCharacterId();
+    Integer getMainDanRank();
+}
@@ -5,7 +5,6 @@ import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
-import org.tekkenstats.mappers.enumsMapper;
 
 import java.util.*;
 
@@ -40,6 +39,16 @@ public class Player {
     @Column(name = "language")
     private String language;
 
+    // most played character of the newest game version played, maintained by ingest
+    @Column(name = "main_character_id")
+    private String mainCharacterId;
+
+    @Column(name = "main_dan_rank")
+    private Integer mainDanRank;
+
+    @Column(name = "main_game_version")
+    private Integer mainGameVersion;
+
     @OneToMany(mappedBy = "player", cascade = CascadeType.ALL, orphanRemoval = true)
     @ToString.Exclude
     @EqualsAndHashCode.Exclude
@@ -85,69 +94,6 @@ public class Player {
         }
     }
 
-    private Map<String, String> getMostPlayedCharacterInLatestVersion()
-    {
-        Map<String, String> result = new HashMap<>();
-
-        if (characterStats == null || characterStats.isEmpty()) {
-            result.put("characterId", "No Character Data");
-            result.put("danRank", "0");
-            return result;
-        }
-
-        // Find the latest version
-        int latestVersion = characterStats.keySet().stream()
-                .mapToInt(CharacterStatsId::getGameVersion)
-                .max()
-                .orElse(0);
-
-        // If no valid version found
-        if (latestVersion == 0) {
-            result.put("characterId", "No Character Data");
-            result.put("danRank", "0");
-            return result;
-        }
-
-        // Find the most played character in the latest version
-        return characterStats.entrySet().stream()
-                .filter(entry -> entry.getKey().getGameVersion() == latestVersion)
-                .max(Comparator.comparingInt(entry -> {
-                    CharacterStats stats = entry.getValue();
-                    return stats.getWins() + stats.getLosses();
-                }))
-                .map(entry -> {
-                    Map<String, String> map = new HashMap<>();
-                    map.put("characterId", entry.getKey().getCharacterId());
-                    map.put("danRank", String.valueOf(entry.getValue().getDanRank()));
-                    return map;
-                })
-                .orElseGet(() -> {
-                    Map<String, String> map = new HashMap<>();
-                    map.put("characterId", "No Character Data");
-                    map.put("danRank", "0");
-                    return map;
-                });
-    }
-
-    public Map<String, String> getMostPlayedCharacterInfo(enumsMapper mapper)
-    {
-        Map<String, String> stats = getMostPlayedCharacterInLatestVersion();
-        Map<String, String> result = new HashMap<>();
-
-        if (stats.get("characterId").equals("No Character Data"))
-        {
-            result.put("characterName", "No Character Data");
-            result.put("danRank", "N/A");
-        }
-        else
-        {
-            result.put("characterName", mapper.getCharacterName(stats.get("characterId")));
-            result.put("danRank", mapper.getDanName(stats.get("danRank")));
-        }
-
-        return result;
-    }
-
     public void setLatestBattle()
     {
         this.latestBattle = characterStats.values().stream()
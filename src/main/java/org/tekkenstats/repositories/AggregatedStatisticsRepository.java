@@ -1,9 +1,11 @@
 package org.tekkenstats.repositories;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import org.tekkenstats.aggregations.AggregatedStatistic;
 import org.tekkenstats.aggregations.AggregatedStatisticId;
 import org.tekkenstats.interfaces.CharacterWinrateProjection;
@@ -11,7 +13,6 @@ import org.tekkenstats.interfaces.PopularCharacterProjection;
 import org.tekkenstats.interfaces.RankDistributionProjection;
 
 import java.util.List;
-import java.util.Optional;
 
 @Repository
 public interface AggregatedStatisticsRepository extends JpaRepository<AggregatedStatistic, AggregatedStatisticId> {
@@ -21,231 +22,147 @@ public interface AggregatedStatisticsRepository extends JpaRepository<Aggregated
     @Query("SELECT COUNT(p) FROM Player p")
     long countPlayers();
 
+    // Computes the 'standard' cube (each player's most played character) entirely in Postgres
+    // into the shadow table, see AggregatedStatisticsPublisher.
+    // Ties resolve to the lowest character id, matching the JVM aggregation.
+    @Modifying
+    @Transactional
+    @Query(value = """
+            INSERT INTO aggregated_statistics_shadow (game_version, character_id, dan_rank, category, region_id, area_id,
+                total_wins, total_losses, total_players, total_replays, computed_at)
+            SELECT
+                :gameVersion,
+                m.character_id,
+                m.dan_rank,
+                'standard',
+                m.region_id,
+                m.area_id,
+                SUM(m.wins),
+                SUM(m.losses),
+                COUNT(*),
+                SUM(m.wins + m.losses),
+                NOW()
+            FROM (
+                SELECT DISTINCT ON (cs.player_id)
+                    cs.character_id,
+                    cs.dan_rank,
+                    cs.wins,
+                    cs.losses,
+                    p.region_id,
+                    p.area_id
+                FROM character_stats cs
+                JOIN players p ON cs.player_id = p.player_id
+                WHERE cs.game_version = :gameVersion
+                    AND p.region_id IS NOT NULL
+                    AND p.area_id IS NOT NULL
+                ORDER BY cs.player_id, (cs.wins + cs.losses) DESC, cs.character_id
+            ) m
+            GROUP BY m.character_id, m.dan_rank, m.region_id, m.area_id
+            """, nativeQuery = true)
+    int stageStandardStatistics(@Param("gameVersion") int gameVersion);
+
+    // Computes the 'overall' cube (every character a player has used) entirely in Postgres
+    // into the shadow table.
+    // A player has one row per character and version, so COUNT(*) is the distinct player count.
+    @Modifying
+    @Transactional
+    @Query(value = """
+            INSERT INTO aggregated_statistics_shadow (game_version, character_id, dan_rank, category, region_id, area_id,
+                total_wins, total_losses, total_players, total_replays, computed_at)
+            SELECT
+                :gameVersion,
+                cs.character_id,
+                cs.dan_rank,
+                'overall',
+                p.region_id,
+                p.area_id,
+                SUM(cs.wins),
+                SUM(cs.losses),
+                COUNT(*),
+                SUM(cs.wins + cs.losses),
+                NOW()
+            FROM character_stats cs
+            JOIN players p ON cs.player_id = p.player_id
+            WHERE cs.game_version = :gameVersion
+                AND p.region_id IS NOT NULL
+                AND p.area_id IS NOT NULL
+            GROUP BY cs.character_id, cs.dan_rank, p.region_id, p.area_id
+            """, nativeQuery = true)
+    int stageOverallStatistics(@Param("gameVersion") int gameVersion);
+
+    // The read queries below take the statistics generation pinned by the request, see StatisticsGenerationService
     @Query(value = """
             WITH total_players AS (
                 SELECT
                     SUM(total_players) AS total
-                FROM aggregated_statistics
-                WHERE game_version = :gameVersion
+                FROM aggregated_statistics_snapshots
+                WHERE generation = :generation
                 AND category = :category
             )
             SELECT
                 CAST(dan_rank AS int) as rank,
                 (SUM(total_players) * 100.0 / (SELECT total FROM total_players)) as percentage
-            FROM aggregated_statistics
-            WHERE game_version = :gameVersion
+            FROM aggregated_statistics_snapshots
+            WHERE generation = :generation
             AND category = :category
             GROUP BY dan_rank
             ORDER BY dan_rank
             """, nativeQuery = true)
-    List<RankDistributionProjection> getRankDistribution(@Param("gameVersion") int gameVersion, @Param("category") String category);
-
-    @Query(value = """
-            SELECT
-                a.character_id as characterId,
-                SUM(a.total_wins) as totalWins,
-                SUM(a.total_losses) as totalLosses,
-                ROUND(SUM(a.total_wins) * 100.0 / NULLIF(SUM(a.total_wins + a.total_losses), 0), 2) as winratePercentage
-            FROM aggregated_statistics a
-            INNER JOIN (
-                SELECT MAX(game_version) as version
-                FROM aggregated_statistics
-            ) lv ON a.game_version = lv.version
-            WHERE a.category = 'standard'
-                AND a.dan_rank BETWEEN 25 AND 29 --Tekken God and above
-            GROUP BY a.character_id
-            HAVING SUM(a.total_wins + a.total_losses) > 0
-            ORDER BY winratePercentage DESC
-            LIMIT 5
-            """, nativeQuery = true)
-    List<CharacterWinrateProjection> findTop5CharactersByWinrateInHighRank();
-
-    @Query(value = """
-            SELECT
-                a.character_id as characterId,
-                SUM(a.total_wins) as totalWins,
-                SUM(a.total_losses) as totalLosses,
-                ROUND(SUM(a.total_wins) * 100.0 / NULLIF(SUM(a.total_wins + a.total_losses), 0), 2) as winratePercentage
-            FROM aggregated_statistics a
-            INNER JOIN (
-                SELECT MAX(game_version) as version
-                FROM aggregated_statistics
-            ) lv ON a.game_version = lv.version
-            WHERE a.category = 'standard'
-                AND a.dan_rank BETWEEN 15 AND 24 --Between Garyu - Bushin
-            GROUP BY a.character_id
-            HAVING SUM(a.total_wins + a.total_losses) > 0
-            ORDER BY winratePercentage DESC
-            LIMIT 5
-            """, nativeQuery = true)
-    List<CharacterWinrateProjection> findTop5CharactersByWinrateInMediumRanks();
-
-    @Query(value = """
-            SELECT
-                a.character_id as characterId,
-                SUM(a.total_wins) as totalWins,
-                SUM(a.total_losses) as totalLosses,
-                ROUND(SUM(a.total_wins) * 100.0 / NULLIF(SUM(a.total_wins + a.total_losses), 0), 2) as winratePercentage
-            FROM aggregated_statistics a
-            INNER JOIN (
-                SELECT MAX(game_version) as version
-                FROM aggregated_statistics
-            ) lv ON a.game_version = lv.version
-            WHERE a.category = 'standard'
-                AND a.dan_rank BETWEEN 0 AND 14 --Beginner to Eliminator
-            GROUP BY a.character_id
-            HAVING SUM(a.total_wins + a.total_losses) > 0
-            ORDER BY winratePercentage DESC
-            LIMIT 5
-            """, nativeQuery = true)
-    List<CharacterWinrateProjection> findTop5CharactersByWinrateInLowRanks();
+    List<RankDistributionProjection> getRankDistribution(@Param("generation") long generation, @Param("category") String category);
 
+    // rank_band_statistics holds one rollup per generation, see AggregatedStatisticsPublisher.publishGeneration
     @Query(value = """
             SELECT
-                a.character_id as characterId,
-                SUM(a.total_wins) as totalWins,
-                SUM(a.total_losses) as totalLosses,
-                SUM(a.total_wins + a.total_losses) as totalBattles,
-                ROUND(SUM(a.total_wins) * 100.0 / NULLIF(SUM(a.total_wins + a.total_losses), 0), 2) as winratePercentage
-            FROM aggregated_statistics a
-            INNER JOIN (
-                SELECT MAX(game_version) as version
-                FROM aggregated_statistics
-            ) lv ON a.game_version = lv.version
-            WHERE a.category = 'standard'
-                AND a.dan_rank BETWEEN 25 AND 29
-            GROUP BY a.character_id
-            HAVING SUM(a.total_wins + a.total_losses) > 0
-            ORDER BY totalBattles DESC
-            LIMIT 5
+                r.character_id as characterId,
+                r.total_wins as totalWins,
+                r.total_losses as totalLosses,
+                r.winrate as winratePercentage
+            FROM rank_band_statistics r
+            WHERE r.generation = :generation
+                AND r.rank_band = :rankBand
+            ORDER BY r.winrate DESC, r.character_id
+            LIMIT :limit
             """, nativeQuery = true)
-    List<PopularCharacterProjection> findPopularCharactersInHighRanks();
+    List<CharacterWinrateProjection> findTopCharactersByWinrate(@Param("generation") long generation, @Param("rankBand") String rankBand, @Param("limit") int limit);
 
     @Query(value = """
             SELECT
-                a.character_id as characterId,
-                SUM(a.total_wins) as totalWins,
-                SUM(a.total_losses) as totalLosses,
-                SUM(a.total_wins + a.total_losses) as totalBattles,
-                ROUND(SUM(a.total_wins) * 100.0 / NULLIF(SUM(a.total_wins + a.total_losses), 0), 2) as winratePercentage
-            FROM aggregated_statistics a
-            INNER JOIN (
-                SELECT MAX(game_version) as version
-                FROM aggregated_statistics
-            ) lv ON a.game_version = lv.version
-            WHERE a.category = 'standard'
-                AND a.dan_rank BETWEEN 15 AND 24
-            GROUP BY a.character_id
-            HAVING SUM(a.total_wins + a.total_losses) > 0
-            ORDER BY totalBattles DESC
-            LIMIT 5
+                r.character_id as characterId,
+                r.total_wins as totalWins,
+                r.total_losses as totalLosses,
+                r.total_battles as totalBattles,
+                r.winrate as winratePercentage
+            FROM rank_band_statistics r
+            WHERE r.generation = :generation
+                AND r.rank_band = :rankBand
+            ORDER BY r.total_battles DESC, r.character_id
+            LIMIT :limit
             """, nativeQuery = true)
-    List<PopularCharacterProjection> findPopularCharactersInMediumRanks();
+    List<PopularCharacterProjection> findPopularCharacters(@Param("generation") long generation, @Param("rankBand") String rankBand, @Param("limit") int limit);
 
+    // The largest increases and decreases per rank band against the previous game version
     @Query(value = """
-            SELECT
-                a.character_id as characterId,
-                SUM(a.total_wins) as totalWins,
-                SUM(a.total_losses) as totalLosses,
-                SUM(a.total_wins + a.total_losses) as totalBattles,
-                ROUND(SUM(a.total_wins) * 100.0 / NULLIF(SUM(a.total_wins + a.total_losses), 0), 2) as winratePercentage
-            FROM aggregated_statistics a
-            INNER JOIN (
-                SELECT MAX(game_version) as version
-                FROM aggregated_statistics
-            ) lv ON a.game_version = lv.version
-            WHERE a.category = 'standard'
-                AND a.dan_rank BETWEEN 0 AND 14
-            GROUP BY a.character_id
-            HAVING SUM(a.total_wins + a.total_losses) > 0
-            ORDER BY totalBattles DESC
-            LIMIT 5
-            """, nativeQuery = true)
-    List<PopularCharacterProjection> findPopularCharactersInLowRanks();
-
-    @Query(value = """
-            WITH latest_versions AS (
-                SELECT DISTINCT game_version
-                FROM aggregated_statistics
-                ORDER BY game_version DESC
-                LIMIT 2
-            ),
-            version_winrates AS (
-                SELECT
-                    a.character_id,
-                    a.game_version,
-                    CASE
-                        WHEN dan_rank BETWEEN 25 AND 29 THEN 'highRank'
-                        WHEN dan_rank BETWEEN 15 AND 24 THEN 'mediumRank'
-                        WHEN dan_rank BETWEEN 0 AND 14 THEN 'lowRank'
-                    END as rank_category,
-                    SUM(a.total_wins) as total_wins,
-                    SUM(a.total_losses) as total_losses,
-                    ROUND(
-                        SUM(a.total_wins) * 100.0 / NULLIF(SUM(a.total_wins + a.total_losses), 0),
-                        2
-                    ) as winrate
-                FROM aggregated_statistics a
-                INNER JOIN latest_versions lv ON a.game_version = lv.game_version
-                WHERE a.category = 'standard'
-                GROUP BY
-                    a.character_id,
-                    a.game_version,
-                    CASE
-                        WHEN dan_rank BETWEEN 25 AND 29 THEN 'highRank'
-                        WHEN dan_rank BETWEEN 15 AND 24 THEN 'mediumRank'
-                        WHEN dan_rank BETWEEN 0 AND 14 THEN 'lowRank'
-                    END
-            ),
-            winrate_changes AS (
-                SELECT
-                    v1.character_id,
-                    v1.rank_category,
-                    v1.winrate as new_winrate,
-                    v2.winrate as old_winrate,
-                    (v1.winrate - v2.winrate) as winrate_change
-                FROM version_winrates v1
-                INNER JOIN version_winrates v2
-                    ON v1.character_id = v2.character_id
-                    AND v1.game_version > v2.game_version
-                    AND v1.rank_category = v2.rank_category
-                WHERE v1.winrate IS NOT NULL
-                    AND v2.winrate IS NOT NULL
-            ),
-            top_increases AS (
-                SELECT
-                    character_id,
-                    rank_category,
-                    winrate_change,
-                    'increase' as trend,
-                    ROW_NUMBER() OVER (PARTITION BY rank_category ORDER BY winrate_change DESC) as rn
-                FROM winrate_changes
-                WHERE winrate_change > 0
-            ),
-            top_decreases AS (
-                SELECT
-                    character_id,
-                    rank_category,
-                    winrate_change,
-                    'decrease' as trend,
-                    ROW_NUMBER() OVER (PARTITION BY rank_category ORDER BY winrate_change) as rn
-                FROM winrate_changes
-                WHERE winrate_change < 0
-            )
             SELECT
                 character_id as characterId,
-                rank_category as rankCategory,
+                rank_band as rankCategory,
                 CAST(ABS(winrate_change) AS DOUBLE PRECISION) as change,
                 trend
             FROM (
-                SELECT * FROM top_increases WHERE rn <= 2
-                UNION ALL
-                SELECT * FROM top_decreases WHERE rn <= 2
-            ) as "ti*td*"
-            ORDER BY rank_category DESC
+                SELECT
+                    character_id,
+                    rank_band,
+                    winrate_change,
+                    CASE WHEN winrate_change > 0 THEN 'increase' ELSE 'decrease' END as trend,
+                    ROW_NUMBER() OVER (
+                        PARTITION BY rank_band, winrate_change > 0
+                        ORDER BY ABS(winrate_change) DESC, character_id
+                    ) as rn
+                FROM rank_band_statistics
+                WHERE generation = :generation
+                    AND winrate_change <> 0
+            ) changes
+            WHERE rn <= :limit
+            ORDER BY rank_band DESC
             """, nativeQuery = true)
-    List<Object[]> getWinrateChanges();
-
-    @Query(value = "SELECT DISTINCT game_version FROM aggregated_statistics", nativeQuery = true)
-    Optional<List<Integer>> getGameVersions();
+    List<Object[]> getWinrateChanges(@Param("generation") long generation, @Param("limit") int limit);
 }
@@ -26,7 +26,23 @@ public interface BattleRepository extends JpaRepository<Battle, String> {
             ") AS combined_battles", nativeQuery = true)
     Set<String> findSurroundingBattleIds(@Param("timestamp") long timestamp);
 
-    @Query(value = "SELECT * FROM battles WHERE player1_id = :playerID OR player2_id = :playerID", nativeQuery = true)
+    @Query(value = "SELECT b.* FROM player_battles pb JOIN battles b ON b.battle_id = pb.battle_id " +
+            "WHERE pb.player_id = :playerID", nativeQuery = true)
     Optional<List<Battle>> findAllBattlesByPlayer(@Param("playerID") String playerID);
 
+    // Keyset page of a player's battles, newest first, strictly before the (battle_at, battle_id) cursor.
+    // One range scan of the player_battles primary key, then a primary key lookup per battle of the page.
+    @Query(value = """
+            SELECT b.* FROM player_battles pb
+            JOIN battles b ON b.battle_id = pb.battle_id
+            WHERE pb.player_id = :playerId AND (pb.battle_at, pb.battle_id) < (:beforeBattleAt, :beforeBattleId)
+            ORDER BY pb.battle_at DESC, pb.battle_id DESC
+            LIMIT :limit
+            """, nativeQuery = true)
+    List<Battle> findPlayerBattlesBefore(
+            @Param("playerId") String playerId,
+            @Param("beforeBattleAt") long beforeBattleAt,
+            @Param("beforeBattleId") String beforeBattleId,
+            @Param("limit") int limit);
+
 }
\ No newline at end of file
@@ -16,13 +16,6 @@ public interface CharacterStatsRepository extends JpaRepository<CharacterStats,
     @Query("SELECT DISTINCT c.id.gameVersion FROM CharacterStats c")
     Optional<List<Integer>> findAllGameVersions();
 
-    @Query("SELECT cs.id.playerId, cs.id.characterId, cs.danRank, cs.wins, cs.losses, " +
-            "p.regionId, p.areaId " +
-            "FROM CharacterStats cs " +
-            "JOIN Player p ON cs.id.playerId = p.playerId " +
-            "WHERE cs.id.gameVersion = :gameVersion")
-    List<Object[]> findAllStatsByGameVersion(@Param("gameVersion") int gameVersion);
-
     @Query("SELECT COUNT(DISTINCT cs.id.playerId) FROM CharacterStats cs WHERE cs.id.gameVersion = :gameVersion")
     int countDistinctPlayersByGameVersion(@Param("gameVersion") int gameVersion);
 
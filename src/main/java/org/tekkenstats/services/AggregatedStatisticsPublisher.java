@@ -0,0 +1,560 @@
+package org.tekkenstats.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.tekkenstats.aggregations.AggregatedStatistic;
+import org.tekkenstats.aggregations.AggregatedStatisticId;
+import org.tekkenstats.aggregations.PlayerSketch;
+import org.tekkenstats.configuration.RankBandBoundaries;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes a full statistics run of one game version.
+ * The run is first written to aggregated_statistics_shadow, which readers never query,
+ * and then swapped into aggregated_statistics in a single transaction so that readers
+ * see either the previous run or the new one, never a partially written mix.
+ * The same transaction publishes the run as a new statistics generation, see StatisticsGenerationService.
+ * <p>
+ * Ingest keeps applying deltas to aggregated_statistics while a run computes. The run reads
+ * through one {@link RecomputeSnapshot}, ingest logs its deltas while the run is in progress,
+ * and the swap re-applies the logged deltas that the snapshot did not see on top of the staged cells.
+ */
+@Service
+public class AggregatedStatisticsPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregatedStatisticsPublisher.class);
+
+    private static final String COLUMNS =
+            "game_version, character_id, dan_rank, category, region_id, area_id, " +
+            "total_wins, total_losses, total_players, total_replays, computed_at";
+
+    private static final String CELL_COLUMNS = "game_version, character_id, dan_rank, category, region_id, area_id";
+    private static final String ROLLUP_COLUMNS = "game_version, category, character_id, dan_rank";
+
+    // Highest register rank per cell and register, over the same player-to-cell assignment as the
+    // 'overall' and 'standard' cubes. The rank expression mirrors PlayerSketch.addHash.
+    private static final String SKETCH_REGISTERS_SQL =
+            "SELECT category, character_id, dan_rank, region_id, area_id, register, MAX(register_rank) AS register_rank " +
+            "FROM (" +
+            "SELECT 'overall' AS category, cs.character_id, cs.dan_rank, p.region_id, p.area_id, " +
+            "hashtextextended(cs.player_id, 0) AS player_hash " +
+            "FROM character_stats cs " +
+            "JOIN players p ON cs.player_id = p.player_id " +
+            "WHERE cs.game_version = ? AND p.region_id IS NOT NULL AND p.area_id IS NOT NULL " +
+            "UNION ALL " +
+            "(SELECT DISTINCT ON (cs.player_id) 'standard', cs.character_id, cs.dan_rank, p.region_id, p.area_id, " +
+            "hashtextextended(cs.player_id, 0) " +
+            "FROM character_stats cs " +
+            "JOIN players p ON cs.player_id = p.player_id " +
+            "WHERE cs.game_version = ? AND p.region_id IS NOT NULL AND p.area_id IS NOT NULL " +
+            "ORDER BY cs.player_id, (cs.wins + cs.losses) DESC, cs.character_id)" +
+            ") players_in_cells " +
+            "CROSS JOIN LATERAL (SELECT " +
+            "(player_hash & " + (PlayerSketch.REGISTERS - 1) + ")::int AS register, " +
+            "55 - length(ltrim(((player_hash >> " + PlayerSketch.PRECISION + ") & 18014398509481983)::bit(54)::text, '0')) AS register_rank" +
+            ") registers " +
+            "GROUP BY category, character_id, dan_rank, region_id, area_id, register " +
+            "ORDER BY category, character_id, dan_rank, region_id, area_id";
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate repeatableReadTransactionTemplate;
+    private final RankBandBoundaries rankBandBoundaries;
+
+    @Value("${statistics.publish.batch-size:5000}")
+    private int batchSize;
+
+    @Value("${statistics.engine.fetch-size:10000}")
+    private int fetchSize;
+
+    public AggregatedStatisticsPublisher(
+            DataSource dataSource,
+            JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            PlatformTransactionManager transactionManager,
+            RankBandBoundaries rankBandBoundaries)
+    {
+        this.dataSource = dataSource;
+        this.rankBandBoundaries = rankBandBoundaries;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+
+        this.repeatableReadTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.repeatableReadTransactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+    }
+
+    /**
+     * Starts a run of a game version: from now on ingest logs its deltas of the version, and the
+     * returned snapshot is what the run must read through. The version lock waits out the delta
+     * transactions in flight, so every delta either commits before the snapshot is taken or is logged.
+     * The snapshot must be closed once everything is staged, and the run ended with
+     * {@link #swap} or {@link #abandonRun}.
+     * <p>
+     * Each of these runs only while the run's lease row in statistics_recompute_leases is still
+     * there, locked for the rest of its transaction, so a run whose lease was taken over by
+     * another node can no longer touch the version's shadow, log or published cells.
+     */
+    public RecomputeSnapshot beginRun(int gameVersion, String leaseId)
+    {
+        transactionTemplate.executeWithoutResult(status -> {
+            lockVersion(gameVersion);
+            requireLease(gameVersion, leaseId);
+            // left behind by a run that could not clean up after itself
+            clearShadow(gameVersion);
+            jdbcTemplate.update("DELETE FROM aggregated_statistics_delta_log WHERE game_version = ?", gameVersion);
+            jdbcTemplate.update(
+                    "INSERT INTO statistics_rebuilds (game_version, started_at) " +
+                    "VALUES (?, (EXTRACT(EPOCH FROM clock_timestamp()) * 1000)::bigint) " +
+                    "ON CONFLICT (game_version) DO UPDATE SET started_at = EXCLUDED.started_at",
+                    gameVersion);
+        });
+
+        try
+        {
+            return RecomputeSnapshot.export(dataSource, repeatableReadTransactionTemplate, jdbcTemplate);
+        }
+        catch (SQLException e)
+        {
+            abandonRun(gameVersion, leaseId);
+            throw new IllegalStateException("Could not export a snapshot for game version " + gameVersion, e);
+        }
+    }
+
+    // Stops logging the deltas of a game version after its run failed, unless another node's run took over
+    public void abandonRun(int gameVersion, String leaseId)
+    {
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!lockLease(gameVersion, leaseId))
+            {
+                logger.warn("Not abandoning the statistics run of game version {}, its lease was taken over", gameVersion);
+                return;
+            }
+            jdbcTemplate.update("DELETE FROM statistics_rebuilds WHERE game_version = ?", gameVersion);
+            jdbcTemplate.update("DELETE FROM aggregated_statistics_delta_log WHERE game_version = ?", gameVersion);
+        });
+    }
+
+    // Drops whatever an earlier, interrupted run of this game version left behind
+    private void clearShadow(int gameVersion)
+    {
+        jdbcTemplate.update("DELETE FROM aggregated_statistics_shadow WHERE game_version = ?", gameVersion);
+        jdbcTemplate.update("DELETE FROM aggregated_statistics_sketch_shadow WHERE game_version = ?", gameVersion);
+        jdbcTemplate.update("DELETE FROM player_sketch_rollups_shadow WHERE game_version = ?", gameVersion);
+    }
+
+    /**
+     * Writes computed cells to the shadow table with batched inserts.
+     * Nothing is read back, so the cost is one round trip per batch rather than per cell.
+     */
+    public void stage(Collection<AggregatedStatistic> statistics)
+    {
+        long startTime = System.currentTimeMillis();
+
+        String sql = "INSERT INTO aggregated_statistics_shadow (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+        List<Object[]> batchArgs = new ArrayList<>(Math.min(statistics.size(), batchSize));
+        for (AggregatedStatistic stat : statistics)
+        {
+            AggregatedStatisticId id = stat.getId();
+            batchArgs.add(new Object[]{
+                    id.getGameVersion(),
+                    id.getCharacterId(),
+                    id.getDanRank(),
+                    id.getCategory(),
+                    id.getRegionId(),
+                    id.getAreaId(),
+                    stat.getTotalWins(),
+                    stat.getTotalLosses(),
+                    stat.getTotalPlayers(),
+                    stat.getTotalReplays(),
+                    Timestamp.valueOf(stat.getComputedAt())
+            });
+
+            if (batchArgs.size() == batchSize)
+            {
+                jdbcTemplate.batchUpdate(sql, batchArgs);
+                batchArgs.clear();
+            }
+        }
+
+        if (!batchArgs.isEmpty())
+        {
+            jdbcTemplate.batchUpdate(sql, batchArgs);
+        }
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Aggregated Statistics Staged: {} ms, Cells: {}", (endTime - startTime), statistics.size());
+    }
+
+    /**
+     * Builds the player sketch of every cell of a game version, and of every
+     * (category, character, dan rank) rollup of those cells, and stages them for the swap.
+     * Postgres reduces the players to one maximum rank per cell and register, and the rows
+     * arrive ordered by cell, so only one cell and one rollup sketch are assembled at a time.
+     */
+    public void stageSketches(int gameVersion, RecomputeSnapshot snapshot)
+    {
+        long startTime = System.currentTimeMillis();
+
+        SketchStager stager = new SketchStager(gameVersion);
+
+        // a cursor needs a fetch size and a transaction, so the registers are streamed rather than loaded at once
+        snapshot.read(status -> {
+            jdbcTemplate.query(
+                    connection -> {
+                        PreparedStatement ps = connection.prepareStatement(SKETCH_REGISTERS_SQL);
+                        ps.setFetchSize(fetchSize);
+                        ps.setInt(1, gameVersion);
+                        ps.setInt(2, gameVersion);
+                        return ps;
+                    },
+                    stager);
+            return null;
+        });
+        stager.finish();
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Player Sketches Staged for game version {}: {} ms, Cell Sketches: {}, Rollup Sketches: {}",
+                gameVersion, (endTime - startTime), stager.cellSketches, stager.rollupSketches);
+    }
+
+    /**
+     * Replaces the published cells and sketch rollups of a game version with its staged ones plus
+     * the logged deltas the run's snapshot did not see, ends the run, and publishes the result as
+     * a new statistics generation together with its rank band rollup. Holding the version lock,
+     * no delta of the version can touch its cells meanwhile. Returns the new generation.
+     */
+    public long swap(int gameVersion, String leaseId, String snapshot)
+    {
+        long startTime = System.currentTimeMillis();
+        int[] cells = new int[2];
+
+        Long generation = transactionTemplate.execute(status -> {
+            lockVersion(gameVersion);
+            requireLease(gameVersion, leaseId);
+
+            jdbcTemplate.update("DELETE FROM aggregated_statistics WHERE game_version = ?", gameVersion);
+
+            cells[0] = jdbcTemplate.update(
+                    "INSERT INTO aggregated_statistics (" + COLUMNS + ", player_sketch) " +
+                    "SELECT s." + COLUMNS.replace(", ", ", s.") + ", k.player_sketch " +
+                    "FROM aggregated_statistics_shadow s " +
+                    "LEFT JOIN aggregated_statistics_sketch_shadow k USING (" + CELL_COLUMNS + ") " +
+                    "WHERE s.game_version = ?",
+                    gameVersion);
+
+            // deltas committed before the snapshot are already part of the staged cells
+            cells[1] = jdbcTemplate.update(
+                    "INSERT INTO aggregated_statistics (" + COLUMNS + ") " +
+                    "SELECT " + CELL_COLUMNS + ", SUM(total_wins), SUM(total_losses), SUM(total_players), SUM(total_replays), NOW() " +
+                    "FROM aggregated_statistics_delta_log " +
+                    "WHERE game_version = ? AND NOT pg_visible_in_snapshot(xid, ?::pg_snapshot) " +
+                    "GROUP BY " + CELL_COLUMNS + " " +
+                    "ON CONFLICT (game_version, character_id, dan_rank, category, region_id, area_id) DO UPDATE SET " +
+                    "total_wins = aggregated_statistics.total_wins + EXCLUDED.total_wins, " +
+                    "total_losses = aggregated_statistics.total_losses + EXCLUDED.total_losses, " +
+                    "total_players = aggregated_statistics.total_players + EXCLUDED.total_players, " +
+                    "total_replays = aggregated_statistics.total_replays + EXCLUDED.total_replays, " +
+                    "computed_at = EXCLUDED.computed_at",
+                    gameVersion, snapshot);
+
+            jdbcTemplate.update("DELETE FROM player_sketch_rollups WHERE game_version = ?", gameVersion);
+            jdbcTemplate.update(
+                    "INSERT INTO player_sketch_rollups (" + ROLLUP_COLUMNS + ", player_sketch) " +
+                    "SELECT " + ROLLUP_COLUMNS + ", player_sketch FROM player_sketch_rollups_shadow WHERE game_version = ?",
+                    gameVersion);
+
+            remergeLoggedSketches(gameVersion, snapshot);
+
+            // ends the run, later deltas only go to the published cells
+            jdbcTemplate.update("DELETE FROM aggregated_statistics_delta_log WHERE game_version = ?", gameVersion);
+            jdbcTemplate.update("DELETE FROM statistics_rebuilds WHERE game_version = ?", gameVersion);
+
+            long published = publishGeneration(gameVersion);
+
+            clearShadow(gameVersion);
+            return published;
+        });
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Aggregated Statistics Swapped for game version {}: {} ms, Cells: {}, Re-applied Delta Cells: {}, Generation: {}",
+                gameVersion, (endTime - startTime), cells[0], cells[1], generation);
+
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Merges the players the logged deltas unseen by the snapshot added into the swapped-in cell
+     * and rollup sketches. The logged sketches are combined here first, so each sketch is merged
+     * in the database once. Nothing else writes the version's sketches while its lock is held.
+     */
+    private void remergeLoggedSketches(int gameVersion, String snapshot)
+    {
+        Map<List<Object>, PlayerSketch> cells = new LinkedHashMap<>();
+        Map<List<Object>, PlayerSketch> rollups = new LinkedHashMap<>();
+
+        jdbcTemplate.query(
+                "SELECT character_id, dan_rank, category, region_id, area_id, player_sketch " +
+                "FROM aggregated_statistics_delta_log " +
+                "WHERE game_version = ? AND player_sketch IS NOT NULL AND NOT pg_visible_in_snapshot(xid, ?::pg_snapshot)",
+                rs -> {
+                    String characterId = rs.getString("character_id");
+                    int danRank = rs.getInt("dan_rank");
+                    String category = rs.getString("category");
+                    PlayerSketch sketch = PlayerSketch.fromBytes(rs.getBytes("player_sketch"));
+
+                    cells.computeIfAbsent(List.of(characterId, danRank, category, rs.getInt("region_id"), rs.getInt("area_id")),
+                            k -> new PlayerSketch()).merge(sketch);
+                    rollups.computeIfAbsent(List.of(category, characterId, danRank), k -> new PlayerSketch()).merge(sketch);
+                },
+                gameVersion, snapshot);
+
+        if (cells.isEmpty())
+        {
+            return;
+        }
+
+        List<Object[]> cellArgs = new ArrayList<>(cells.size());
+        cells.forEach((cell, sketch) -> cellArgs.add(new Object[]{
+                sketch.toBytes(), gameVersion, cell.get(0), cell.get(1), cell.get(2), cell.get(3), cell.get(4)}));
+        jdbcTemplate.batchUpdate(
+                "UPDATE aggregated_statistics SET player_sketch = hll_merge(player_sketch, ?) " +
+                "WHERE game_version = ? AND character_id = ? AND dan_rank = ? AND category = ? AND region_id = ? AND area_id = ?",
+                cellArgs);
+
+        List<Object[]> rollupArgs = new ArrayList<>(rollups.size());
+        rollups.forEach((rollup, sketch) -> rollupArgs.add(new Object[]{
+                gameVersion, rollup.get(0), rollup.get(1), rollup.get(2), sketch.toBytes()}));
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO player_sketch_rollups (" + ROLLUP_COLUMNS + ", player_sketch) VALUES (?, ?, ?, ?, ?) " +
+                "ON CONFLICT (" + ROLLUP_COLUMNS + ") DO UPDATE SET " +
+                "player_sketch = hll_merge(player_sketch_rollups.player_sketch, EXCLUDED.player_sketch)",
+                rollupArgs);
+
+        logger.info("Re-merged logged player sketches for game version {}, Cells: {}, Rollups: {}",
+                gameVersion, cells.size(), rollups.size());
+    }
+
+    /**
+     * Builds the missing rank band rollup of the current generation of each game version, with the
+     * configured band boundaries. Covers generations published before the rollup existed, which
+     * the migration leaves empty rather than guessing the boundaries.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillRankBandStatistics()
+    {
+        List<Map<String, Object>> generations = jdbcTemplate.queryForList(
+                "SELECT game_version, generation FROM statistics_generations g " +
+                "WHERE generation = (SELECT MAX(generation) FROM statistics_generations WHERE game_version = g.game_version) " +
+                "AND NOT EXISTS (SELECT 1 FROM rank_band_statistics r WHERE r.generation = g.generation) " +
+                "ORDER BY game_version");
+
+        // in version order, so each version finds the rollup of the previous one for its winrate changes
+        for (Map<String, Object> row : generations)
+        {
+            int gameVersion = ((Number) row.get("game_version")).intValue();
+            long generation = ((Number) row.get("generation")).longValue();
+            try
+            {
+                Integer rows = transactionTemplate.execute(status -> insertRankBandStatistics(generation, gameVersion));
+                logger.info("Backfilled {} rank band rows of statistics generation {} for game version {}",
+                        rows, generation, gameVersion);
+            }
+            catch (Exception e)
+            {
+                logger.error("Could not backfill rank band statistics of generation {} for game version {}: ",
+                        generation, gameVersion, e);
+            }
+        }
+    }
+
+    // Waits out the delta transactions of a game version and keeps new ones out until commit
+    // Whether the lease is still held, locking its row until the transaction ends so it cannot be taken over meanwhile
+    private boolean lockLease(int gameVersion, String leaseId)
+    {
+        return !jdbcTemplate.queryForList(
+                "SELECT lease_id FROM statistics_recompute_leases WHERE game_version = ? AND lease_id = ? FOR UPDATE",
+                String.class, gameVersion, leaseId).isEmpty();
+    }
+
+    private void requireLease(int gameVersion, String leaseId)
+    {
+        if (!lockLease(gameVersion, leaseId))
+        {
+            throw new IllegalStateException("The statistics run of game version " + gameVersion + " lost its lease");
+        }
+    }
+
+    private void lockVersion(int gameVersion)
+    {
+        jdbcTemplate.query("SELECT pg_advisory_xact_lock(?, ?)", rs -> {},
+                StatisticsDeltaService.VERSION_LOCK_NAMESPACE, gameVersion);
+    }
+
+    /**
+     * Copies the swapped-in cells of a game version into a new generation and builds its rank band
+     * rollup, with winrate changes against the current generation of the previous game version.
+     * Generations are never modified afterwards.
+     */
+    private long publishGeneration(int gameVersion)
+    {
+        Long generation = jdbcTemplate.queryForObject(
+                "INSERT INTO statistics_generations (game_version, published_at) " +
+                "VALUES (?, (EXTRACT(EPOCH FROM clock_timestamp()) * 1000)::bigint) RETURNING generation",
+                Long.class, gameVersion);
+
+        jdbcTemplate.update(
+                "INSERT INTO aggregated_statistics_snapshots (generation, " + COLUMNS + ") " +
+                "SELECT ?, " + COLUMNS + " FROM aggregated_statistics WHERE game_version = ?",
+                generation, gameVersion);
+
+        jdbcTemplate.update(
+                "INSERT INTO player_sketch_rollup_snapshots (generation, " + ROLLUP_COLUMNS + ", player_sketch) " +
+                "SELECT ?, " + ROLLUP_COLUMNS + ", player_sketch FROM player_sketch_rollups WHERE game_version = ?",
+                generation, gameVersion);
+
+        int rankBandRows = insertRankBandStatistics(generation, gameVersion);
+
+        logger.info("Statistics Generation {} Published for game version {}, Rank Band Rows: {}",
+                generation, gameVersion, rankBandRows);
+
+        return generation;
+    }
+
+    /**
+     * Builds the rank band rollup of a generation, with winrate changes against the current
+     * generation of the previous game version.
+     */
+    private int insertRankBandStatistics(long generation, int gameVersion)
+    {
+        // a character missing from the previous version gets no change
+        return jdbcTemplate.update(
+                "INSERT INTO rank_band_statistics (generation, game_version, rank_band, character_id, " +
+                "total_wins, total_losses, total_battles, winrate, previous_winrate, winrate_change, computed_at) " +
+                "SELECT c.generation, c.game_version, c.rank_band, c.character_id, " +
+                "c.total_wins, c.total_losses, c.total_battles, c.winrate, p.winrate, c.winrate - p.winrate, NOW() " +
+                "FROM (SELECT generation, game_version, rank_band, character_id, " +
+                "SUM(total_wins) AS total_wins, SUM(total_losses) AS total_losses, SUM(total_wins + total_losses) AS total_battles, " +
+                "ROUND(SUM(total_wins) * 100.0 / SUM(total_wins + total_losses), 2) AS winrate " +
+                "FROM (SELECT s.*, " +
+                rankBandBoundaries.sqlCase("s.dan_rank") + " AS rank_band " +
+                "FROM aggregated_statistics_snapshots s " +
+                "WHERE s.generation = ? AND s.category = 'standard') banded " +
+                "GROUP BY generation, game_version, rank_band, character_id " +
+                "HAVING SUM(total_wins + total_losses) > 0) c " +
+                "LEFT JOIN rank_band_statistics p ON p.rank_band = c.rank_band AND p.character_id = c.character_id " +
+                "AND p.generation = (SELECT MAX(generation) FROM statistics_generations " +
+                "WHERE game_version = (SELECT MAX(game_version) FROM statistics_generations WHERE game_version < ?))",
+                generation, gameVersion);
+    }
+
+    private class SketchStager implements RowCallbackHandler {
+
+        private final String cellSql = "INSERT INTO aggregated_statistics_sketch_shadow (" + CELL_COLUMNS + ", player_sketch) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?)";
+        private final String rollupSql = "INSERT INTO player_sketch_rollups_shadow (" + ROLLUP_COLUMNS + ", player_sketch) " +
+                "VALUES (?, ?, ?, ?, ?)";
+
+        private final int gameVersion;
+        private final List<Object[]> cellArgs = new ArrayList<>();
+        private final List<Object[]> rollupArgs = new ArrayList<>();
+        private int cellSketches;
+        private int rollupSketches;
+
+        private Object[] cell;
+        private PlayerSketch cellSketch;
+        private Object[] rollup;
+        private PlayerSketch rollupSketch;
+
+        SketchStager(int gameVersion)
+        {
+            this.gameVersion = gameVersion;
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException
+        {
+            Object[] rowRollup = {gameVersion, rs.getString("category"), rs.getString("character_id"), rs.getInt("dan_rank")};
+            Object[] rowCell = {gameVersion, rowRollup[2], rowRollup[3], rowRollup[1], rs.getInt("region_id"), rs.getInt("area_id")};
+
+            if (cell == null || !Arrays.equals(cell, rowCell))
+            {
+                flushCell();
+                cell = rowCell;
+                cellSketch = new PlayerSketch();
+            }
+            if (rollup == null || !Arrays.equals(rollup, rowRollup))
+            {
+                flushRollup();
+                rollup = rowRollup;
+                rollupSketch = new PlayerSketch();
+            }
+
+            int register = rs.getInt("register");
+            int rank = rs.getInt("register_rank");
+            cellSketch.setRegister(register, rank);
+            rollupSketch.setRegister(register, rank);
+        }
+
+        void finish()
+        {
+            flushCell();
+            flushRollup();
+            if (!cellArgs.isEmpty()) jdbcTemplate.batchUpdate(cellSql, cellArgs);
+            if (!rollupArgs.isEmpty()) jdbcTemplate.batchUpdate(rollupSql, rollupArgs);
+        }
+
+        private void flushCell()
+        {
+            if (cell == null) return;
+
+            Object[] args = Arrays.copyOf(cell, cell.length + 1);
+            args[cell.length] = cellSketch.toBytes();
+            cellArgs.add(args);
+            cellSketches++;
+
+            if (cellArgs.size() == batchSize)
+            {
+                jdbcTemplate.batchUpdate(cellSql, cellArgs);
+                cellArgs.clear();
+            }
+        }
+
+        private void flushRollup()
+        {
+            if (rollup == null) return;
+
+            Object[] args = Arrays.copyOf(rollup, rollup.length + 1);
+            args[rollup.length] = rollupSketch.toBytes();
+            rollupArgs.add(args);
+            rollupSketches++;
+
+            if (rollupArgs.size() == batchSize)
+            {
+                jdbcTemplate.batchUpdate(rollupSql, rollupArgs);
+                rollupArgs.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package org.tekkenstats.services;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bulk exports of battles and statistics tables, streamed to the client as NDJSON or CSV.
+ * Rows are read in chunks of chunk-size rows in key order, each chunk by its own short query
+ * continuing after the last key of the previous one, and a chunk is encoded in memory before it
+ * is written to the response. Memory stays flat however many rows an export covers, and a slow
+ * client holds neither a connection nor a transaction open. Rows changing while an export runs
+ * appear as they were when their chunk was read. Only max-concurrent exports run at once.
+ */
+@Service
+public class ExportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportService.class);
+
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private static final String BATTLE_COLUMNS =
+            "battle_id, battle_at, date, game_version, battle_type, stageid, winner, " +
+            "player1_id, player1_polaris_id, player1_name, player1_character_id, player1_dan_rank, player1_tekken_power, " +
+            "player1_rating_before, player1_rating_change, player1_rounds_won, player1_region, player1_area, " +
+            "player2_id, player2_polaris_id, player2_name, player2_character_id, player2_dan_rank, player2_tekken_power, " +
+            "player2_rating_before, player2_rating_change, player2_rounds_won, player2_region, player2_area";
+
+    public enum Format {
+        NDJSON("ndjson", "application/x-ndjson"),
+        CSV("csv", "text/csv");
+
+        private final String name;
+        private final String contentType;
+
+        Format(String name, String contentType)
+        {
+            this.name = name;
+            this.contentType = contentType;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        public static Format fromName(String name)
+        {
+            for (Format format : values())
+            {
+                if (format.name.equalsIgnoreCase(name))
+                {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown export format: " + name);
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final Semaphore exports;
+    private final int chunkSize;
+
+    private final Counter exportedRows;
+
+    public ExportService(
+            JdbcTemplate jdbcTemplate,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${export.max-concurrent:2}") int maxConcurrent,
+            @Value("${export.chunk-size:5000}") int chunkSize)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+        this.exports = new Semaphore(maxConcurrent);
+        this.chunkSize = chunkSize;
+
+        exportedRows = Counter.builder("export.rows").register(meterRegistry);
+    }
+
+    /**
+     * Battles with battle_at in [from, to), in time order, optionally of one game version and
+     * with the character on either side. Returns null when max-concurrent exports are already
+     * running; otherwise the export holds its slot until the returned body has been written,
+     * so the body must be handed to the response.
+     */
+    public StreamingResponseBody exportBattles(long from, long to, Integer gameVersion, Integer characterId, Format format, boolean gzip)
+    {
+        StringBuilder sql = new StringBuilder("SELECT " + BATTLE_COLUMNS + " FROM battles WHERE battle_at >= ? AND battle_at < ?");
+        List<Object> args = new ArrayList<>(List.of(from, to));
+        if (gameVersion != null)
+        {
+            sql.append(" AND game_version = ?");
+            args.add(gameVersion);
+        }
+        if (characterId != null)
+        {
+            sql.append(" AND (player1_character_id = ? OR player2_character_id = ?)");
+            args.add(characterId);
+            args.add(characterId);
+        }
+
+        return export("battles", sql.toString(), args, List.of("battle_at", "battle_id"), format, gzip);
+    }
+
+    // The published statistics cells, without their player sketches
+    public StreamingResponseBody exportAggregatedStatistics(Integer gameVersion, String category, Format format, boolean gzip)
+    {
+        StringBuilder sql = new StringBuilder(
+                "SELECT game_version, category, character_id, dan_rank, region_id, area_id, " +
+                "total_wins, total_losses, total_players, total_replays, computed_at " +
+                "FROM aggregated_statistics WHERE TRUE");
+        List<Object> args = new ArrayList<>();
+        if (gameVersion != null)
+        {
+            sql.append(" AND game_version = ?");
+            args.add(gameVersion);
+        }
+        if (category != null)
+        {
+            sql.append(" AND category = ?");
+            args.add(category);
+        }
+
+        return export("aggregated_statistics", sql.toString(), args,
+                List.of("game_version", "character_id", "dan_rank", "category", "region_id", "area_id"), format, gzip);
+    }
+
+    public StreamingResponseBody exportCharacterStats(Integer gameVersion, String characterId, Format format, boolean gzip)
+    {
+        StringBuilder sql = new StringBuilder(
+                "SELECT player_id, character_id, game_version, dan_rank, wins, losses, latest_battle " +
+                "FROM character_stats WHERE TRUE");
+        List<Object> args = new ArrayList<>();
+        if (gameVersion != null)
+        {
+            sql.append(" AND game_version = ?");
+            args.add(gameVersion);
+        }
+        if (characterId != null)
+        {
+            sql.append(" AND character_id = ?");
+            args.add(characterId);
+        }
+
+        return export("character_stats", sql.toString(), args, List.of("player_id", "character_id", "game_version"), format, gzip);
+    }
+
+    // sql selects the key columns and ends in its WHERE clause, the rows are exported in key order
+    private StreamingResponseBody export(String name, String sql, List<Object> args, List<String> keyColumns, Format format, boolean gzip)
+    {
+        if (!exports.tryAcquire())
+        {
+            logger.warn("Rejected {} export, the maximum number of exports are already running", name);
+            return null;
+        }
+
+        String keys = String.join(", ", keyColumns);
+        String firstChunkSql = sql + " ORDER BY " + keys + " LIMIT ?";
+        String nextChunkSql = sql + " AND (" + keys + ") > (" + String.join(", ", Collections.nCopies(keyColumns.size(), "?")) + ")" +
+                " ORDER BY " + keys + " LIMIT ?";
+
+        return outputStream -> {
+            long startTime = System.currentTimeMillis();
+            try
+            {
+                OutputStream out = gzip
+                        ? new GZIPOutputStream(outputStream, BUFFER_BYTES)
+                        : new BufferedOutputStream(outputStream, BUFFER_BYTES);
+                ByteArrayOutputStream chunk = new ByteArrayOutputStream(BUFFER_BYTES);
+                RowWriter writer = format == Format.CSV ? new CsvRowWriter(chunk) : new NdjsonRowWriter(chunk);
+
+                long rows = 0;
+                Object[] lastKey = null;
+                while (true)
+                {
+                    List<Object> chunkArgs = new ArrayList<>(args);
+                    if (lastKey != null)
+                    {
+                        chunkArgs.addAll(Arrays.asList(lastKey));
+                    }
+                    chunkArgs.add(chunkSize);
+
+                    boolean first = lastKey == null;
+                    Chunk read = jdbcTemplate.query(first ? firstChunkSql : nextChunkSql, rs -> {
+                        try
+                        {
+                            if (first)
+                            {
+                                writer.start(rs.getMetaData());
+                            }
+                            int count = 0;
+                            Object[] key = null;
+                            while (rs.next())
+                            {
+                                writer.write(rs);
+                                count++;
+                                key = new Object[keyColumns.size()];
+                                for (int i = 0; i < key.length; i++)
+                                {
+                                    key[i] = rs.getObject(keyColumns.get(i));
+                                }
+                            }
+                            writer.finish();
+                            return new Chunk(count, key);
+                        }
+                        catch (IOException e)
+                        {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, chunkArgs.toArray());
+
+                    // written only now, the query is over and its connection back in the pool
+                    chunk.writeTo(out);
+                    chunk.reset();
+                    rows += read.rows();
+                    if (read.rows() < chunkSize)
+                    {
+                        break;
+                    }
+                    lastKey = read.lastKey();
+                }
+                out.close();
+
+                exportedRows.increment(rows);
+                logger.info("Exported {} {} rows as {}: {} ms", rows, name, format.getName(), System.currentTimeMillis() - startTime);
+            }
+            catch (IOException | UncheckedIOException e)
+            {
+                // usually the client went away
+                IOException cause = e instanceof UncheckedIOException unchecked ? unchecked.getCause() : (IOException) e;
+                logger.warn("Export of {} was aborted after {} ms: {}", name, System.currentTimeMillis() - startTime, cause.getMessage());
+                throw cause;
+            }
+            finally
+            {
+                exports.release();
+            }
+        };
+    }
+
+    private record Chunk(int rows, Object[] lastKey) {}
+
+    private interface RowWriter {
+
+        void start(ResultSetMetaData metaData) throws SQLException, IOException;
+
+        void write(ResultSet rs) throws SQLException, IOException;
+
+        void finish() throws IOException;
+    }
+
+    // One JSON object per line, keyed by column name
+    private class NdjsonRowWriter implements RowWriter {
+
+        private final JsonGenerator generator;
+        private SerializedString[] columns;
+
+        NdjsonRowWriter(OutputStream out) throws IOException
+        {
+            this.generator = objectMapper.getFactory().createGenerator(out);
+            // each object ends its own line instead
+            this.generator.setRootValueSeparator(null);
+        }
+
+        @Override
+        public void start(ResultSetMetaData metaData) throws SQLException
+        {
+            columns = new SerializedString[metaData.getColumnCount()];
+            for (int i = 0; i < columns.length; i++)
+            {
+                columns[i] = new SerializedString(metaData.getColumnLabel(i + 1));
+            }
+        }
+
+        @Override
+        public void write(ResultSet rs) throws SQLException, IOException
+        {
+            generator.writeStartObject();
+            for (int i = 0; i < columns.length; i++)
+            {
+                generator.writeFieldName(columns[i]);
+                Object value = rs.getObject(i + 1);
+                switch (value)
+                {
+                    case null -> generator.writeNull();
+                    case String text -> generator.writeString(text);
+                    case Integer number -> generator.writeNumber(number);
+                    case Short number -> generator.writeNumber(number);
+                    case Long number -> generator.writeNumber(number);
+                    case Double number -> generator.writeNumber(number);
+                    case Float number -> generator.writeNumber(number);
+                    case BigDecimal number -> generator.writeNumber(number);
+                    case Boolean flag -> generator.writeBoolean(flag);
+                    default -> generator.writeString(value.toString());
+                }
+            }
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+
+        @Override
+        public void finish() throws IOException
+        {
+            generator.flush();
+        }
+    }
+
+    // RFC 4180 with a header line, fields are quoted only when they need to be
+    private static class CsvRowWriter implements RowWriter {
+
+        private final Writer writer;
+        private int columnCount;
+
+        CsvRowWriter(OutputStream out)
+        {
+            this.writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void start(ResultSetMetaData metaData) throws SQLException, IOException
+        {
+            columnCount = metaData.getColumnCount();
+            for (int i = 1; i <= columnCount; i++)
+            {
+                if (i > 1)
+                {
+                    writer.write(',');
+                }
+                writeField(metaData.getColumnLabel(i));
+            }
+            writer.write("\r\n");
+        }
+
+        @Override
+        public void write(ResultSet rs) throws SQLException, IOException
+        {
+            for (int i = 1; i <= columnCount; i++)
+            {
+                if (i > 1)
+                {
+                    writer.write(',');
+                }
+                String value = rs.getString(i);
+                if (value != null)
+                {
+                    writeField(value);
+                }
+            }
+            writer.write("\r\n");
+        }
+
+        @Override
+        public void finish() throws IOException
+        {
+            writer.flush();
+        }
+
+        private void writeField(String value) throws IOException
+        {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++)
+            {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote)
+            {
+                writer.write(value);
+                return;
+            }
+
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package org.tekkenstats.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.tekkenstats.aggregations.StatisticsGeneration;
+import org.tekkenstats.dtos.StatisticsGenerationDTO;
+import org.tekkenstats.dtos.TekkenStatsSummaryDTO;
+import org.tekkenstats.events.StatisticsResponsesRebuiltEvent;
+import org.tekkenstats.models.TekkenStatsSummary;
+import org.tekkenstats.repositories.TekkenStatsSummaryRepository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pushes statistics changes to every connected client as server-sent events, so clients stop
+ * polling. A "summary" event carries the replay and player counts whenever they change; they are
+ * read once per tick for all clients, and not at all while nobody is connected. A "generation"
+ * event announces newly published statistics once the cached statistics responses serve them.
+ * A new client first gets the current generation and counts.
+ * <p>
+ * Every event is serialized once and queued to each client, and each client has its own virtual
+ * thread writing its queue to the connection, so a slow client only delays itself. A client that
+ * falls too far behind is disconnected, and reconnecting starts it again from the current state.
+ */
+@Service
+public class LiveStatisticsBroadcaster {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveStatisticsBroadcaster.class);
+
+    private static final int PENDING_EVENTS = 16;
+
+    private record LiveEvent(String name, String data) {}
+
+    private final TekkenStatsSummaryRepository tekkenStatsSummaryRepository;
+    private final StatisticsGenerationService statisticsGenerationService;
+    private final ObjectMapper objectMapper;
+    private final long emitterTimeoutMs;
+    private final int maxSubscribers;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    // last broadcast counts, null until the first tick with clients connected
+    private volatile TekkenStatsSummaryDTO lastSummary;
+    private volatile LiveEvent lastSummaryEvent;
+    // guarded by the broadcaster itself
+    private long lastGeneration;
+
+    public LiveStatisticsBroadcaster(
+            TekkenStatsSummaryRepository tekkenStatsSummaryRepository,
+            StatisticsGenerationService statisticsGenerationService,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${statistics.live.emitter-timeout-ms:600000}") long emitterTimeoutMs,
+            @Value("${statistics.live.max-subscribers:5000}") int maxSubscribers)
+    {
+        this.tekkenStatsSummaryRepository = tekkenStatsSummaryRepository;
+        this.statisticsGenerationService = statisticsGenerationService;
+        this.objectMapper = objectMapper;
+        this.emitterTimeoutMs = emitterTimeoutMs;
+        this.maxSubscribers = maxSubscribers;
+
+        Gauge.builder("statistics.live.subscribers", subscribers, Set::size).register(meterRegistry);
+    }
+
+    // null when max-subscribers clients are already connected. Every client holds a connection for as long
+    // as it is subscribed, so max-subscribers stays well below the server's connection limit (8192 for Tomcat)
+    public SseEmitter subscribe()
+    {
+        if (subscribers.size() >= maxSubscribers)
+        {
+            return null;
+        }
+
+        // the emitter times out after a while, clients reconnect on their own
+        SseEmitter emitter = new SseEmitter(emitterTimeoutMs);
+        Subscriber subscriber = new Subscriber(emitter);
+        subscriber.start();
+        emitter.onCompletion(subscriber::close);
+        emitter.onTimeout(subscriber::close);
+        emitter.onError(e -> subscriber.close());
+        subscribers.add(subscriber);
+
+        StatisticsGeneration generation = statisticsGenerationService.current();
+        subscriber.offer(generationEvent(generation));
+        LiveEvent summary = lastSummaryEvent;
+        if (summary != null)
+        {
+            subscriber.offer(summary);
+        }
+        return emitter;
+    }
+
+    @Scheduled(fixedDelayString = "${statistics.live.tick-interval-ms:2000}")
+    public void tick()
+    {
+        if (subscribers.isEmpty())
+        {
+            // nobody saw the counts since, the next client waits for a fresh read instead
+            lastSummary = null;
+            lastSummaryEvent = null;
+            return;
+        }
+
+        Optional<TekkenStatsSummary> summary = tekkenStatsSummaryRepository.getTekkenStatsSummary();
+        if (summary.isEmpty())
+        {
+            return;
+        }
+
+        TekkenStatsSummaryDTO dto = new TekkenStatsSummaryDTO();
+        dto.setTotalReplays(summary.get().getTotalReplays());
+        dto.setTotalPlayers(summary.get().getTotalPlayers());
+        if (dto.equals(lastSummary))
+        {
+            return;
+        }
+
+        LiveEvent event = new LiveEvent("summary", serialize(dto));
+        lastSummary = dto;
+        lastSummaryEvent = event;
+        broadcast(event);
+    }
+
+    @EventListener
+    public void onStatisticsResponsesRebuilt(StatisticsResponsesRebuiltEvent event)
+    {
+        StatisticsGeneration generation = event.getGeneration();
+        synchronized (this)
+        {
+            // rebuilds of consecutive generations can finish out of order
+            if (generation.generation() <= lastGeneration)
+            {
+                return;
+            }
+            lastGeneration = generation.generation();
+        }
+
+        if (!subscribers.isEmpty())
+        {
+            broadcast(generationEvent(generation));
+            logger.info("Broadcast statistics generation {} to {} live clients", generation.generation(), subscribers.size());
+        }
+    }
+
+    @PreDestroy
+    public void disconnectAll()
+    {
+        for (Subscriber subscriber : subscribers)
+        {
+            subscriber.disconnect();
+        }
+    }
+
+    private void broadcast(LiveEvent event)
+    {
+        for (Subscriber subscriber : subscribers)
+        {
+            subscriber.offer(event);
+        }
+    }
+
+    private LiveEvent generationEvent(StatisticsGeneration generation)
+    {
+        return new LiveEvent("generation",
+                serialize(new StatisticsGenerationDTO(generation.generation(), generation.versionGenerations())));
+    }
+
+    private String serialize(Object dto)
+    {
+        try
+        {
+            return objectMapper.writeValueAsString(dto);
+        }
+        catch (JsonProcessingException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private class Subscriber {
+
+        private final SseEmitter emitter;
+        private final BlockingQueue<LiveEvent> pending = new ArrayBlockingQueue<>(PENDING_EVENTS);
+        private Thread sender;
+        // set before the sender is stopped when it should also end the response
+        private volatile boolean completing;
+
+        Subscriber(SseEmitter emitter)
+        {
+            this.emitter = emitter;
+        }
+
+        // must run before the subscriber can be closed, so closing always finds the sender to stop
+        void start()
+        {
+            sender = Thread.ofVirtual().name("live-statistics-sender").start(this::send);
+        }
+
+        void offer(LiveEvent event)
+        {
+            if (!pending.offer(event))
+            {
+                logger.warn("Disconnecting a live statistics client that fell {} events behind", PENDING_EVENTS);
+                disconnect();
+            }
+        }
+
+        /**
+         * Ends the response without touching the emitter on the calling thread, which is often the
+         * scheduler's only thread: completing it here would wait for a send blocked on this client.
+         * The sender completes it once it is stopped.
+         */
+        void disconnect()
+        {
+            completing = true;
+            close();
+        }
+
+        void close()
+        {
+            if (subscribers.remove(this))
+            {
+                sender.interrupt();
+            }
+        }
+
+        private void send()
+        {
+            try
+            {
+                while (true)
+                {
+                    LiveEvent event = pending.take();
+                    emitter.send(SseEmitter.event().name(event.name()).data(event.data(), MediaType.APPLICATION_JSON));
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // closed
+                if (completing)
+                {
+                    emitter.complete();
+                }
+            }
+            catch (IOException | IllegalStateException e)
+            {
+                // the client went away or the emitter is already complete
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.tekkenstats.services;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.tekkenstats.aggregations.MatchupMatrix;
+import org.tekkenstats.aggregations.RankBand;
+import org.tekkenstats.configuration.RankBandBoundaries;
+import org.tekkenstats.dtos.MatchupDTO;
+import org.tekkenstats.dtos.MatchupMatrixDTO;
+import org.tekkenstats.models.Battle;
+
+import java.util.*;
+
+/**
+ * Maintains the character matchup matrix. Ingest records newly inserted battles into in-memory
+ * dense matrices, one per game version and rank band, and a scheduled flush adds them to
+ * character_matchups, so reads never touch battles.
+ */
+@Service
+public class MatchupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MatchupService.class);
+
+    // every node upserts the rows of a flush in this order, so concurrent flushes lock them in the same order
+    private static final Comparator<Object[]> ROW_ORDER =
+            Comparator.<Object[]>comparingInt(row -> (int) row[0])
+                    .thenComparing(row -> (String) row[1])
+                    .thenComparing(row -> (String) row[2])
+                    .thenComparing(row -> (String) row[3]);
+
+    private record MatrixKey(int gameVersion, RankBand rankBand) {}
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final RankBandBoundaries rankBandBoundaries;
+
+    // results recorded since the last flush, swapped out as a whole on every flush
+    private final Object pendingLock = new Object();
+    private Map<MatrixKey, MatchupMatrix> pending = new HashMap<>();
+
+    public MatchupService(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, RankBandBoundaries rankBandBoundaries)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.rankBandBoundaries = rankBandBoundaries;
+    }
+
+    // Records both sides of each battle, from the perspective of each player's own rank band
+    public void recordBattles(Collection<Battle> insertedBattles)
+    {
+        if (insertedBattles.isEmpty())
+        {
+            return;
+        }
+
+        synchronized (pendingLock)
+        {
+            for (Battle battle : insertedBattles)
+            {
+                pending.computeIfAbsent(new MatrixKey(battle.getGameVersion(), rankBandBoundaries.of(battle.getPlayer1DanRank())), k -> new MatchupMatrix())
+                        .record(battle.getPlayer1CharacterId(), battle.getPlayer2CharacterId(), battle.getWinner() == 1);
+                pending.computeIfAbsent(new MatrixKey(battle.getGameVersion(), rankBandBoundaries.of(battle.getPlayer2DanRank())), k -> new MatchupMatrix())
+                        .record(battle.getPlayer2CharacterId(), battle.getPlayer1CharacterId(), battle.getWinner() == 2);
+            }
+        }
+    }
+
+    @Scheduled(fixedRateString = "${statistics.matchups.flush-interval-ms:30000}")
+    public void flush()
+    {
+        Map<MatrixKey, MatchupMatrix> toFlush;
+        synchronized (pendingLock)
+        {
+            if (pending.isEmpty())
+            {
+                return;
+            }
+            toFlush = pending;
+            pending = new HashMap<>();
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        String sql =
+                "INSERT INTO character_matchups (game_version, rank_band, character_id, opponent_character_id, wins, losses) " +
+                "VALUES (?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (game_version, rank_band, character_id, opponent_character_id) DO UPDATE SET " +
+                "wins = character_matchups.wins + EXCLUDED.wins, " +
+                "losses = character_matchups.losses + EXCLUDED.losses";
+
+        List<Object[]> batchArgs = new ArrayList<>();
+        for (Map.Entry<MatrixKey, MatchupMatrix> entry : toFlush.entrySet())
+        {
+            MatrixKey key = entry.getKey();
+            MatchupMatrix matrix = entry.getValue();
+            matrix.forEachCell(index -> batchArgs.add(new Object[]{
+                    key.gameVersion(),
+                    key.rankBand().getName(),
+                    String.valueOf(matrix.characterAt(index)),
+                    String.valueOf(matrix.opponentAt(index)),
+                    matrix.winsAt(index),
+                    matrix.lossesAt(index)
+            }));
+        }
+        batchArgs.sort(ROW_ORDER);
+
+        try
+        {
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(sql, batchArgs));
+
+            long endTime = System.currentTimeMillis();
+            logger.info("Matchup Flush: {} ms, Cells: {}", (endTime - startTime), batchArgs.size());
+        }
+        catch (Exception e)
+        {
+            // the flush is all or nothing, so its results go back to be retried with the next one
+            logger.error("MATCHUP FLUSH FAILED, retrying {} cells with the next flush: ", batchArgs.size(), e);
+            synchronized (pendingLock)
+            {
+                toFlush.forEach((key, matrix) -> pending.computeIfAbsent(key, k -> new MatchupMatrix()).merge(matrix));
+            }
+        }
+    }
+
+    @PreDestroy
+    public void flushOnShutdown()
+    {
+        flush();
+    }
+
+    /**
+     * Reads the matrix of a game version, either for one rank band or summed over all of them.
+     * Without a game version the latest one is used.
+     */
+    public MatchupMatrixDTO getMatchups(Integer gameVersion, String rankBand)
+    {
+        if (gameVersion == null)
+        {
+            gameVersion = jdbcTemplate.queryForObject("SELECT MAX(game_version) FROM character_matchups", Integer.class);
+        }
+
+        String bandFilter = "";
+        List<Object> args = new ArrayList<>();
+        args.add(gameVersion);
+        if (rankBand != null)
+        {
+            bandFilter = " AND rank_band = ?";
+            args.add(RankBand.fromName(rankBand).getName());
+        }
+
+        String sql =
+                "SELECT character_id, opponent_character_id, SUM(wins) AS total_wins, SUM(losses) AS total_losses " +
+                "FROM character_matchups " +
+                "WHERE game_version = ?" + bandFilter + " " +
+                "GROUP BY character_id, opponent_character_id " +
+                "ORDER BY character_id, opponent_character_id";
+
+        List<MatchupDTO> matchups = jdbcTemplate.query(sql, (rs, rowNum) -> {
+            long wins = rs.getLong("total_wins");
+            long losses = rs.getLong("total_losses");
+            double winrate = wins + losses == 0 ? 0 : Math.round(wins * 10000.0 / (wins + losses)) / 100.0;
+            return new MatchupDTO(rs.getString("character_id"), rs.getString("opponent_character_id"), wins, losses, winrate);
+        }, args.toArray());
+
+        return new MatchupMatrixDTO(gameVersion, rankBand == null ? null : RankBand.fromName(rankBand).getName(), matchups);
+    }
+}
@@ -0,0 +1,277 @@
+package org.tekkenstats.services;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.tekkenstats.aggregations.FrequencySketch;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Serialized player profiles, bounded by their total size in bytes (W-TinyLFU). New profiles
+ * enter a small LRU window; a profile pushed out of the window only replaces the least recently
+ * used profile of the main region if it has been requested more often, as estimated by a
+ * {@link FrequencySketch} of all requests. One-off lookups therefore cannot flush the profiles
+ * that are requested over and over.
+ * <p>
+ * Loads are single-flight: concurrent misses on one player wait for the same load. Ingest
+ * invalidates every player it upserts, and a load that was running during the invalidation
+ * still answers its callers but is not cached. Only this node's ingest invalidates, so every
+ * profile also expires ttl-ms after it was loaded, which bounds how long battles ingested by
+ * other nodes stay unseen here.
+ */
+@Service
+public class PlayerProfileCache {
+
+    private static final int WINDOW_PERCENT = 1;
+
+    private record CachedProfile(byte[] profile, long loadedAt) {}
+
+    private final boolean enabled;
+    private final long windowBytes;
+    private final long ttlNanos;
+    private final long mainBytes;
+
+    // all state below is guarded by the cache itself, both maps iterate least recently used first
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<String, CachedProfile> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedProfile> main = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowWeight;
+    private long mainWeight;
+
+    private final Map<String, CompletableFuture<byte[]>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public PlayerProfileCache(
+            MeterRegistry meterRegistry,
+            @Value("${player-profile.cache.enabled:true}") boolean enabled,
+            @Value("${player-profile.cache.max-bytes:67108864}") long maxBytes,
+            @Value("${player-profile.cache.ttl-ms:60000}") long ttlMs)
+    {
+        this.enabled = enabled;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.windowBytes = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+        this.mainBytes = maxBytes - windowBytes;
+        // about one counter per profile of a few kilobytes that fits
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1024, maxBytes / 4096)));
+
+        FunctionCounter.builder("player.profile.cache.requests", hits, AtomicLong::get).tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("player.profile.cache.requests", misses, AtomicLong::get).tag("result", "miss").register(meterRegistry);
+        FunctionCounter.builder("player.profile.cache.loads", loads, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("player.profile.cache.evictions", evictions, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("player.profile.cache.rejections", rejections, AtomicLong::get)
+                .description("Profiles the admission filter kept out of the main region")
+                .register(meterRegistry);
+        FunctionCounter.builder("player.profile.cache.invalidations", invalidations, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("player.profile.cache.expirations", expirations, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("player.profile.cache.size", this, PlayerProfileCache::size).register(meterRegistry);
+        Gauge.builder("player.profile.cache.weight", this, PlayerProfileCache::weight).baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("player.profile.cache.hit.ratio", this, PlayerProfileCache::hitRatio).register(meterRegistry);
+    }
+
+    /**
+     * The profile of the player as JSON, loaded by the loader on a miss. Returns null, and caches
+     * nothing, when the loader returns null.
+     */
+    public byte[] get(String polarisId, Supplier<byte[]> loader)
+    {
+        if (!enabled)
+        {
+            return loader.get();
+        }
+
+        synchronized (this)
+        {
+            sketch.increment(polarisId);
+            CachedProfile cached = window.get(polarisId);
+            if (cached == null)
+            {
+                cached = main.get(polarisId);
+            }
+            if (cached != null && System.nanoTime() - cached.loadedAt() >= ttlNanos)
+            {
+                remove(polarisId);
+                expirations.incrementAndGet();
+                cached = null;
+            }
+            if (cached != null)
+            {
+                hits.incrementAndGet();
+                return cached.profile();
+            }
+        }
+        misses.incrementAndGet();
+
+        CompletableFuture<byte[]> load = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = loading.putIfAbsent(polarisId, load);
+        if (running != null)
+        {
+            try
+            {
+                return running.join();
+            }
+            catch (CompletionException e)
+            {
+                if (e.getCause() instanceof Error error)
+                {
+                    throw error;
+                }
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+
+        byte[] profile;
+        long loadedAt = System.nanoTime();
+        try
+        {
+            loads.incrementAndGet();
+            profile = loader.get();
+        }
+        catch (Throwable e)
+        {
+            // errors too, the callers waiting on the load would otherwise wait forever
+            loading.remove(polarisId, load);
+            load.completeExceptionally(e);
+            throw e;
+        }
+
+        try
+        {
+            // still registered means no invalidation happened while loading, checked under the lock invalidations take
+            synchronized (this)
+            {
+                if (loading.remove(polarisId, load) && profile != null)
+                {
+                    admit(polarisId, new CachedProfile(profile, loadedAt));
+                }
+            }
+        }
+        finally
+        {
+            loading.remove(polarisId, load);
+            load.complete(profile);
+        }
+        return profile;
+    }
+
+    public void invalidate(Collection<String> polarisIds)
+    {
+        if (!enabled || polarisIds.isEmpty())
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            for (String polarisId : polarisIds)
+            {
+                if (polarisId == null)
+                {
+                    continue;
+                }
+                loading.remove(polarisId);
+                if (remove(polarisId))
+                {
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Must hold the lock
+    private boolean remove(String polarisId)
+    {
+        CachedProfile fromWindow = window.remove(polarisId);
+        if (fromWindow != null)
+        {
+            windowWeight -= fromWindow.profile().length;
+        }
+        CachedProfile fromMain = main.remove(polarisId);
+        if (fromMain != null)
+        {
+            mainWeight -= fromMain.profile().length;
+        }
+        return fromWindow != null || fromMain != null;
+    }
+
+    // Must hold the lock
+    private void admit(String polarisId, CachedProfile profile)
+    {
+        if (profile.profile().length > mainBytes)
+        {
+            return;
+        }
+
+        CachedProfile replaced = window.put(polarisId, profile);
+        windowWeight += profile.profile().length - (replaced == null ? 0 : replaced.profile().length);
+
+        while (windowWeight > windowBytes && !window.isEmpty())
+        {
+            Map.Entry<String, CachedProfile> eldest = window.entrySet().iterator().next();
+            window.remove(eldest.getKey());
+            windowWeight -= eldest.getValue().profile().length;
+            admitToMain(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    // Must hold the lock. The candidate only displaces main entries that are all less frequent than it
+    private void admitToMain(String candidate, CachedProfile profile)
+    {
+        int candidateFrequency = sketch.frequency(candidate);
+        List<Map.Entry<String, CachedProfile>> victims = new ArrayList<>();
+        long freed = 0;
+        Iterator<Map.Entry<String, CachedProfile>> leastRecent = main.entrySet().iterator();
+        while (mainWeight - freed + profile.profile().length > mainBytes)
+        {
+            Map.Entry<String, CachedProfile> victim = leastRecent.next();
+            if (sketch.frequency(victim.getKey()) >= candidateFrequency)
+            {
+                rejections.incrementAndGet();
+                return;
+            }
+            victims.add(victim);
+            freed += victim.getValue().profile().length;
+        }
+
+        for (Map.Entry<String, CachedProfile> victim : victims)
+        {
+            main.remove(victim.getKey());
+            evictions.incrementAndGet();
+        }
+        mainWeight -= freed;
+        main.put(candidate, profile);
+        mainWeight += profile.profile().length;
+    }
+
+    private synchronized int size()
+    {
+        return window.size() + main.size();
+    }
+
+    private synchronized long weight()
+    {
+        return windowWeight + mainWeight;
+    }
+
+    private double hitRatio()
+    {
+        long hitCount = hits.get();
+        long requests = hitCount + misses.get();
+        return requests == 0 ? 0 : (double) hitCount / requests;
+    }
+}
@@ -0,0 +1,416 @@
+package org.tekkenstats.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.tekkenstats.dtos.CharacterStatsDTO;
+import org.tekkenstats.dtos.PlayerBattleDTO;
+import org.tekkenstats.dtos.PlayerBattlesPageDTO;
+import org.tekkenstats.dtos.PlayerStatsDTO;
+import org.tekkenstats.dtos.PlayerSummaryDTO;
+import org.tekkenstats.mappers.enumsMapper;
+import org.tekkenstats.models.Battle;
+import org.tekkenstats.models.CharacterStatsId;
+import org.tekkenstats.models.Player;
+import org.tekkenstats.repositories.BattleRepository;
+import org.tekkenstats.repositories.PlayerRepository;
+
+import java.io.UncheckedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Assembles player profiles: the player, its character stats and the newest page of its battles.
+ * Profiles of many players are built together, with one query per table for the whole set.
+ * <p>
+ * With documents enabled, every profile is also stored serialized in player_profiles, so a profile
+ * request is a single indexed read. A document is built and stored on the first request of its
+ * player, and ingest rebuilds the existing documents of the players of each batch once the batch
+ * is written. Rebuilding from the committed rows, instead of patching the stored document,
+ * keeps documents exact when batches are redelivered or consumers overlap on a player.
+ */
+@Service
+public class PlayerProfileService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PlayerProfileService.class);
+
+    private static final String PLAYERS_SQL =
+            "SELECT player_id, name, region_id, area_id, tekken_power, latest_battle " +
+            "FROM players WHERE player_id = ANY(?)";
+
+    private static final String CHARACTER_STATS_SQL =
+            "SELECT player_id, character_id, game_version, dan_rank, wins, losses " +
+            "FROM character_stats WHERE player_id = ANY(?)";
+
+    // newest battles of every player, one player_battles range scan each
+    private static final String RECENT_BATTLES_SQL =
+            "SELECT p.player_id AS profile_player_id, b.battle_id, b.battle_at, b.date, " +
+            "b.player1_name, b.player1_character_id, b.player1_region, b.player1_dan_rank, b.player1_rounds_won, " +
+            "b.player2_name, b.player2_character_id, b.player2_region, b.player2_dan_rank, b.player2_rounds_won, " +
+            "b.winner, b.stageid " +
+            "FROM unnest(?::varchar[]) AS p(player_id) " +
+            "CROSS JOIN LATERAL (" +
+            "SELECT pb.battle_id FROM player_battles pb WHERE pb.player_id = p.player_id " +
+            "ORDER BY pb.battle_at DESC, pb.battle_id DESC LIMIT ?" +
+            ") recent " +
+            "JOIN battles b ON b.battle_id = recent.battle_id " +
+            "ORDER BY p.player_id, b.battle_at DESC, b.battle_id DESC";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PlayerRepository playerRepository;
+    private final BattleRepository battleRepository;
+    private final enumsMapper enumsMapper;
+    private final ObjectMapper objectMapper;
+
+    @Value("${player-profile.battle-page-size:50}")
+    private int battlePageSize;
+
+    @Value("${player-profile.documents.enabled:false}")
+    private boolean documentsEnabled;
+
+    public PlayerProfileService(
+            JdbcTemplate jdbcTemplate,
+            PlayerRepository playerRepository,
+            BattleRepository battleRepository,
+            enumsMapper enumsMapper,
+            ObjectMapper objectMapper)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+        this.playerRepository = playerRepository;
+        this.battleRepository = battleRepository;
+        this.enumsMapper = enumsMapper;
+        this.objectMapper = objectMapper;
+    }
+
+    // The profile of the player as JSON, null when there is no such player
+    public byte[] loadProfile(String polarisId)
+    {
+        if (documentsEnabled)
+        {
+            List<byte[]> stored = jdbcTemplate.queryForList(
+                    "SELECT profile FROM player_profiles WHERE polaris_id = ? LIMIT 1", byte[].class, polarisId);
+            if (!stored.isEmpty())
+            {
+                return stored.get(0);
+            }
+        }
+
+        Optional<String> playerId = playerRepository.findPlayerIdByPolarisId(polarisId);
+        if (playerId.isEmpty())
+        {
+            return null;
+        }
+
+        Timestamp readAt = documentsEnabled ? readTime() : null;
+        PlayerStatsDTO profile = buildProfiles(List.of(playerId.get())).get(playerId.get());
+        if (profile == null)
+        {
+            return null;
+        }
+
+        byte[] document = serialize(profile);
+        if (documentsEnabled)
+        {
+            // only replaces a document read earlier, and loses to the rebuild of any batch committed since the read
+            jdbcTemplate.update(
+                    "INSERT INTO player_profiles (player_id, polaris_id, profile, updated_at) VALUES (?, ?, ?, ?) " +
+                    "ON CONFLICT (player_id) DO UPDATE SET " +
+                    "polaris_id = EXCLUDED.polaris_id, " +
+                    "profile = EXCLUDED.profile, " +
+                    "updated_at = EXCLUDED.updated_at " +
+                    "WHERE player_profiles.updated_at < EXCLUDED.updated_at",
+                    playerId.get(), polarisId, document, readAt);
+        }
+        return document;
+    }
+
+    /**
+     * Rebuilds the documents of every player of a batch, once all of the batch is committed.
+     * Players without a document get one too: a request may be building theirs from rows read
+     * before the batch, and only a document read after it keeps that one from being stored.
+     * Nothing is locked while rebuilding: each document carries the time its rows were read, and
+     * a document only replaces one read earlier. Every commit is followed by a rebuild reading
+     * after it, so the last rebuild to start wins. When a rebuild fails, the documents are
+     * dropped rather than left a batch behind.
+     */
+    public void refreshDocuments(Collection<Player> upsertedPlayers)
+    {
+        if (!documentsEnabled || upsertedPlayers.isEmpty())
+        {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        Map<String, String> polarisIds = new HashMap<>();
+        upsertedPlayers.forEach(player -> polarisIds.put(player.getPlayerId(), player.getPolarisId()));
+        String[] playerIds = polarisIds.keySet().stream().sorted().toArray(String[]::new);
+
+        List<Object[]> batchArgs = new ArrayList<>(playerIds.length);
+        try
+        {
+            Timestamp readAt = readTime();
+            Map<String, PlayerStatsDTO> profiles = buildProfiles(Arrays.asList(playerIds));
+
+            // in player id order, like every other batch over these rows
+            for (String playerId : playerIds)
+            {
+                PlayerStatsDTO profile = profiles.get(playerId);
+                if (profile != null)
+                {
+                    batchArgs.add(new Object[]{playerId, polarisIds.get(playerId), serialize(profile), readAt});
+                }
+            }
+
+            jdbcTemplate.batchUpdate(
+                    "INSERT INTO player_profiles (player_id, polaris_id, profile, updated_at) VALUES (?, ?, ?, ?) " +
+                    "ON CONFLICT (player_id) DO UPDATE SET " +
+                    "polaris_id = EXCLUDED.polaris_id, " +
+                    "profile = EXCLUDED.profile, " +
+                    "updated_at = EXCLUDED.updated_at " +
+                    "WHERE player_profiles.updated_at <= EXCLUDED.updated_at",
+                    batchArgs);
+        }
+        catch (Exception e)
+        {
+            logger.error("Error refreshing player profile documents, dropping them: ", e);
+            dropDocuments(Arrays.asList(playerIds));
+            return;
+        }
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Player Profile Documents Refresh: {} ms, Players: {}, Rebuilt: {}", (endTime - startTime), playerIds.length, batchArgs.size());
+    }
+
+    // The next request of these players builds their documents from the committed rows again
+    private void dropDocuments(List<String> playerIds)
+    {
+        try
+        {
+            jdbcTemplate.update("DELETE FROM player_profiles WHERE player_id = ANY(?)",
+                    ps -> ps.setArray(1, ps.getConnection().createArrayOf("varchar", playerIds.toArray())));
+        }
+        catch (Exception e)
+        {
+            logger.error("Error dropping player profile documents, they stay stale until rebuilt: ", e);
+        }
+    }
+
+    // Database time, taken before a document's rows are read and stored as its updated_at
+    private Timestamp readTime()
+    {
+        return jdbcTemplate.queryForObject("SELECT clock_timestamp()::timestamp", Timestamp.class);
+    }
+
+    /**
+     * Summaries of many players in one query, each id being a player id or a polaris id. Returns
+     * the summaries keyed by the id they were requested with; ids matching no player are left out.
+     */
+    public Map<String, PlayerSummaryDTO> loadSummaries(Collection<String> ids)
+    {
+        String[] requested = ids.stream().distinct().toArray(String[]::new);
+        Map<String, PlayerSummaryDTO> summaries = new LinkedHashMap<>();
+
+        jdbcTemplate.query(
+                "SELECT player_id, name, polaris_id, region_id, tekken_power, latest_battle, main_character_id, main_dan_rank " +
+                "FROM players WHERE player_id = ANY(?) OR polaris_id = ANY(?)",
+                ps -> {
+                    ps.setArray(1, ps.getConnection().createArrayOf("varchar", requested));
+                    ps.setArray(2, ps.getConnection().createArrayOf("varchar", requested));
+                },
+                (RowCallbackHandler) rs -> {
+                    String mainCharacterId = rs.getString("main_character_id");
+                    PlayerSummaryDTO summary = new PlayerSummaryDTO(
+                            rs.getString("player_id"),
+                            rs.getString("name"),
+                            rs.getString("polaris_id"),
+                            (Integer) rs.getObject("region_id"),
+                            (Long) rs.getObject("tekken_power"),
+                            (Long) rs.getObject("latest_battle"),
+                            mainCharacterId == null ? "No Character Data" : enumsMapper.getCharacterName(mainCharacterId),
+                            mainCharacterId == null ? "N/A" : enumsMapper.getDanName(String.valueOf(rs.getInt("main_dan_rank"))));
+
+                    // a polaris id shared by several players keeps the first one, as the profile lookup does
+                    summaries.putIfAbsent(summary.getPlayerId(), summary);
+                    if (summary.getTekkenId() != null)
+                    {
+                        summaries.putIfAbsent(summary.getTekkenId(), summary);
+                    }
+                });
+
+        Map<String, PlayerSummaryDTO> byRequestedId = new LinkedHashMap<>();
+        for (String id : requested)
+        {
+            PlayerSummaryDTO summary = summaries.get(id);
+            if (summary != null)
+            {
+                byRequestedId.put(id, summary);
+            }
+        }
+        return byRequestedId;
+    }
+
+    // The cursor is "battleAt:battleId" of the last battle of the previous page
+    public PlayerBattlesPageDTO loadBattlesPage(String playerId, String before, int pageSize)
+    {
+        long beforeBattleAt = Long.MAX_VALUE;
+        String beforeBattleId = "";
+        if (before != null)
+        {
+            int separator = before.indexOf(':');
+            if (separator < 0)
+            {
+                throw new IllegalArgumentException("Malformed battle cursor: " + before);
+            }
+            try
+            {
+                beforeBattleAt = Long.parseLong(before.substring(0, separator));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Malformed battle cursor: " + before);
+            }
+            beforeBattleId = before.substring(separator + 1);
+        }
+
+        // one extra row tells whether an older page exists
+        List<Battle> page = battleRepository.findPlayerBattlesBefore(playerId, beforeBattleAt, beforeBattleId, pageSize + 1);
+        return toBattlesPage(page, pageSize);
+    }
+
+    private Map<String, PlayerStatsDTO> buildProfiles(List<String> playerIds)
+    {
+        String[] ids = playerIds.toArray(String[]::new);
+        Map<String, PlayerStatsDTO> profiles = new HashMap<>();
+
+        jdbcTemplate.query(PLAYERS_SQL,
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("varchar", ids)),
+                (RowCallbackHandler) rs -> {
+                    PlayerStatsDTO dto = new PlayerStatsDTO();
+                    dto.setPlayerId(rs.getString("player_id"));
+                    dto.setName(rs.getString("name"));
+                    dto.setRegionId((Integer) rs.getObject("region_id"));
+                    dto.setAreaId((Integer) rs.getObject("area_id"));
+                    dto.setTekkenPower(rs.getLong("tekken_power"));
+                    dto.setLatestBattle(rs.getLong("latest_battle"));
+                    dto.setCharacterStats(new HashMap<>());
+                    profiles.put(dto.getPlayerId(), dto);
+                });
+
+        jdbcTemplate.query(CHARACTER_STATS_SQL,
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("varchar", ids)),
+                (RowCallbackHandler) rs -> {
+                    PlayerStatsDTO dto = profiles.get(rs.getString("player_id"));
+                    if (dto == null)
+                    {
+                        return;
+                    }
+
+                    CharacterStatsId id = new CharacterStatsId();
+                    id.setPlayerId(dto.getPlayerId());
+                    id.setCharacterId(rs.getString("character_id"));
+                    id.setGameVersion(rs.getInt("game_version"));
+
+                    CharacterStatsDTO characterStats = new CharacterStatsDTO();
+                    characterStats.setCharacterName(enumsMapper.getCharacterName(id.getCharacterId()));
+                    characterStats.setDanName(enumsMapper.getDanName(Integer.toString(rs.getInt("dan_rank"))));
+                    characterStats.setDanRank(rs.getInt("dan_rank"));
+                    characterStats.setWins(rs.getInt("wins"));
+                    characterStats.setLosses(rs.getInt("losses"));
+                    dto.getCharacterStats().put(id, characterStats);
+                });
+
+        Map<String, List<Battle>> recentBattles = new HashMap<>();
+        jdbcTemplate.query(RECENT_BATTLES_SQL,
+                ps -> {
+                    ps.setArray(1, ps.getConnection().createArrayOf("varchar", ids));
+                    ps.setInt(2, battlePageSize + 1);
+                },
+                (RowCallbackHandler) rs -> recentBattles
+                        .computeIfAbsent(rs.getString("profile_player_id"), k -> new ArrayList<>())
+                        .add(mapBattle(rs)));
+
+        for (PlayerStatsDTO dto : profiles.values())
+        {
+            PlayerBattlesPageDTO battles = toBattlesPage(recentBattles.getOrDefault(dto.getPlayerId(), List.of()), battlePageSize);
+            dto.setBattles(battles.getBattles());
+            dto.setBattlesNextCursor(battles.getNextCursor());
+        }
+        return profiles;
+    }
+
+    private PlayerBattlesPageDTO toBattlesPage(List<Battle> page, int pageSize)
+    {
+        String nextCursor = null;
+        if (page.size() > pageSize)
+        {
+            page = page.subList(0, pageSize);
+            Battle last = page.getLast();
+            nextCursor = last.getBattleAt() + ":" + last.getBattleId();
+        }
+
+        return new PlayerBattlesPageDTO(page.stream().map(this::createBattleDTO).collect(Collectors.toList()), nextCursor);
+    }
+
+    // Only the columns a profile shows
+    private static Battle mapBattle(ResultSet rs) throws SQLException
+    {
+        Battle battle = new Battle();
+        battle.setBattleId(rs.getString("battle_id"));
+        battle.setBattleAt(rs.getLong("battle_at"));
+        battle.setDate(rs.getString("date"));
+        battle.setPlayer1Name(rs.getString("player1_name"));
+        battle.setPlayer1CharacterId(rs.getInt("player1_character_id"));
+        battle.setPlayer1RegionId((Integer) rs.getObject("player1_region"));
+        battle.setPlayer1DanRank(rs.getInt("player1_dan_rank"));
+        battle.setPlayer1RoundsWon(rs.getInt("player1_rounds_won"));
+        battle.setPlayer2Name(rs.getString("player2_name"));
+        battle.setPlayer2CharacterId(rs.getInt("player2_character_id"));
+        battle.setPlayer2RegionId((Integer) rs.getObject("player2_region"));
+        battle.setPlayer2DanRank(rs.getInt("player2_dan_rank"));
+        battle.setPlayer2RoundsWon(rs.getInt("player2_rounds_won"));
+        battle.setWinner(rs.getInt("winner"));
+        battle.setStageId(rs.getInt("stageid"));
+        return battle;
+    }
+
+    private PlayerBattleDTO createBattleDTO(Battle source)
+    {
+        PlayerBattleDTO battle = new PlayerBattleDTO();
+        battle.setBattleId(source.getBattleId());
+        battle.setBattleAt(source.getBattleAt());
+        battle.setDate(source.getDate());
+        battle.setPlayer1Name(source.getPlayer1Name());
+        battle.setPlayer1CharacterId(source.getPlayer1CharacterId());
+        battle.setPlayer1RegionId(source.getPlayer1RegionId());
+        battle.setPlayer1DanRank(source.getPlayer1DanRank());
+        battle.setPlayer2Name(source.getPlayer2Name());
+        battle.setPlayer2CharacterId(source.getPlayer2CharacterId());
+        battle.setPlayer2RegionId(source.getPlayer2RegionId());
+        battle.setPlayer2DanRank(source.getPlayer2DanRank());
+        battle.setPlayer1RoundsWon(source.getPlayer1RoundsWon());
+        battle.setPlayer2RoundsWon(source.getPlayer2RoundsWon());
+        battle.setWinner(source.getWinner());
+        battle.setStageId(source.getStageId());
+        return battle;
+    }
+
+    private byte[] serialize(PlayerStatsDTO profile)
+    {
+        try
+        {
+            return objectMapper.writeValueAsBytes(profile);
+        }
+        catch (JsonProcessingException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,602 @@
+package org.tekkenstats.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.tekkenstats.models.Player;
+
+import javax.sql.DataSource;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Node-local search index over player names, past names and polaris ids, answering the player
+ * search without a database query. Every lowercased key is split into trigrams, each trigram
+ * keeping the ids of the players whose keys contain it. The current name is padded at the start,
+ * which turns "name starts with" into a trigram lookup of its own. Queries shorter than a trigram
+ * would have to walk the postings of every trigram they start, so they are left to the database.
+ * <p>
+ * Postings are append only. A renamed player keeps the trigrams of its old name, which is a past
+ * name from then on, and every candidate is verified against the player's current keys, so stale
+ * postings only cost a comparison. The index is warmed from the database at startup, retrying
+ * until a warm succeeds, and then fed the players upserted by this node's ingest. Players ingested
+ * by other nodes are caught up periodically: every player whose latest battle is newer than the
+ * newest one loaded so far, less catch-up-overlap-seconds for batches committed late.
+ */
+@Service
+public class PlayerSearchIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(PlayerSearchIndex.class);
+
+    private static final char NAME_START = '\u0001';
+
+    public static final int MIN_QUERY_LENGTH = 3;
+
+    private static final long WARM_RETRY_INITIAL_MS = 1000;
+    private static final long WARM_RETRY_MAX_MS = 60000;
+
+    private static final String WARM_PLAYERS_SQL =
+            "SELECT player_id, name, polaris_id, region_id, latest_battle, main_character_id, main_dan_rank FROM players";
+
+    private static final String WARM_PAST_NAMES_SQL = "SELECT player_id, name FROM past_player_names";
+
+    private static final String CATCH_UP_PLAYERS_SQL = WARM_PLAYERS_SQL + " WHERE latest_battle > ?";
+
+    private static final String CATCH_UP_PAST_NAMES_SQL = WARM_PAST_NAMES_SQL + " WHERE player_id = ANY(?)";
+
+    /**
+     * What a search result shows of a player. mainCharacterId is null when the player has no
+     * character stats, danRank is then meaningless.
+     */
+    public record SearchHit(String playerId, String name, String polarisId, Integer regionId, String mainCharacterId, int danRank) {}
+
+    private static class Entry {
+        final String playerId;
+        String name;
+        String nameKey;
+        String polarisId;
+        String polarisKey;
+        Integer regionId;
+        long latestBattle;
+        String mainCharacterId;
+        int danRank;
+        // lowercased past names other than the current one
+        List<String> pastNameKeys = List.of();
+
+        Entry(String playerId)
+        {
+            this.playerId = playerId;
+        }
+    }
+
+    // growable list of entry ids, in the order they were added
+    private static class Postings {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id)
+        {
+            if (size > 0 && ids[size - 1] == id)
+            {
+                return;
+            }
+            if (size == ids.length)
+            {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    // a player as of the newest battle it was seen in
+    private record PlayerUpdate(SearchHit player, long latestBattle) {}
+
+    private record Candidate(Entry entry, int rank) {}
+
+    private static final Comparator<Candidate> RANKING =
+            Comparator.comparingInt(Candidate::rank)
+                    .thenComparingInt(candidate -> candidate.entry().name.length())
+                    .thenComparing(candidate -> candidate.entry().nameKey)
+                    .thenComparing(candidate -> candidate.entry().playerId);
+
+    private final boolean enabled;
+    private final long catchUpOverlapSeconds;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Integer> entryIds = new HashMap<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // players upserted while the index is warming, applied once warming is done
+    private boolean warming = true;
+    private final List<PlayerUpdate> recordedWhileWarming = new ArrayList<>();
+    // newest latest_battle loaded from the database, by the warm or a catch-up
+    private long loadedUpTo;
+
+    private final JdbcTemplate streamingJdbcTemplate;
+    private final TransactionTemplate readOnlyTransactionTemplate;
+
+    public PlayerSearchIndex(
+            DataSource dataSource,
+            PlatformTransactionManager transactionManager,
+            @Value("${player-search.index.enabled:true}") boolean enabled,
+            @Value("${statistics.engine.fetch-size:10000}") int fetchSize,
+            @Value("${player-search.index.catch-up-overlap-seconds:600}") long catchUpOverlapSeconds)
+    {
+        this.enabled = enabled;
+        this.catchUpOverlapSeconds = catchUpOverlapSeconds;
+
+        this.streamingJdbcTemplate = new JdbcTemplate(dataSource);
+        this.streamingJdbcTemplate.setFetchSize(fetchSize);
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+    }
+
+    // Whether search can answer the query, callers fall back to the database otherwise
+    public boolean canSearch(String query)
+    {
+        return query.length() >= MIN_QUERY_LENGTH && isReady();
+    }
+
+    // Searches are only answered once a warm succeeded
+    public boolean isReady()
+    {
+        if (!enabled)
+        {
+            return false;
+        }
+        lock.readLock().lock();
+        try
+        {
+            return !warming;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Players whose name, past name or polaris id contains the query, ignoring case, ranked as the
+     * database search ranks them: exact name first, then names starting with the query, then any
+     * other match, each by name length. The query must be at least MIN_QUERY_LENGTH long.
+     */
+    public List<SearchHit> search(String query, int limit)
+    {
+        if (query.length() < MIN_QUERY_LENGTH)
+        {
+            throw new IllegalArgumentException("Search queries need at least " + MIN_QUERY_LENGTH + " characters");
+        }
+
+        String key = query.toLowerCase(Locale.ROOT);
+
+        lock.readLock().lock();
+        try
+        {
+            List<Candidate> candidates = new ArrayList<>();
+            BitSet seen = new BitSet(entries.size());
+
+            // only accepted candidates are marked seen, a rejected one may still match by another key below
+            forEachCandidate(NAME_START + key, id -> {
+                Entry entry = entries.get(id);
+                if (!seen.get(id) && entry.nameKey.startsWith(key))
+                {
+                    seen.set(id);
+                    candidates.add(new Candidate(entry, entry.nameKey.equals(key) ? 0 : 1));
+                }
+            });
+
+            // every other match ranks below the prefix matches, so they are only needed to fill the limit
+            if (candidates.size() < limit)
+            {
+                forEachCandidate(key, id -> {
+                    Entry entry = entries.get(id);
+                    if (!seen.get(id) && matches(entry, key))
+                    {
+                        seen.set(id);
+                        candidates.add(new Candidate(entry, 2));
+                    }
+                });
+            }
+
+            return candidates.stream()
+                    .sorted(RANKING)
+                    .limit(limit)
+                    .map(candidate -> toHit(candidate.entry()))
+                    .toList();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Takes in the players upserted by a batch, once their transaction has committed. A player
+     * only carries a main character when ingest changed it, otherwise the indexed one is kept.
+     */
+    public void recordPlayers(Collection<Player> upsertedPlayers)
+    {
+        if (!enabled || upsertedPlayers.isEmpty())
+        {
+            return;
+        }
+
+        List<PlayerUpdate> updates = new ArrayList<>(upsertedPlayers.size());
+        for (Player player : upsertedPlayers)
+        {
+            SearchHit hit = new SearchHit(player.getPlayerId(), player.getName(), player.getPolarisId(), player.getRegionId(),
+                    player.getMainCharacterId(), player.getMainDanRank() == null ? 0 : player.getMainDanRank());
+            updates.add(new PlayerUpdate(hit, player.getLatestBattle() == null ? 0 : player.getLatestBattle()));
+        }
+
+        lock.writeLock().lock();
+        try
+        {
+            if (warming)
+            {
+                recordedWhileWarming.addAll(updates);
+                return;
+            }
+            for (PlayerUpdate update : updates)
+            {
+                put(update.player(), update.latestBattle());
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads every player and past name. Ingest keeps upserting players meanwhile; those are held
+     * back and applied afterwards, each only where it is newer than what the warm query returned.
+     * A failed warm is discarded and retried with a growing delay, the index stays unready until then.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Async("statisticsThreadExecutor")
+    public void warm()
+    {
+        if (!enabled)
+        {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        long retryDelay = WARM_RETRY_INITIAL_MS;
+        int pastNames;
+        while (true)
+        {
+            try
+            {
+                pastNames = load();
+                break;
+            }
+            catch (Exception e)
+            {
+                logger.error("Error warming player search index, retrying in {} ms: ", retryDelay, e);
+                clear();
+            }
+
+            try
+            {
+                Thread.sleep(retryDelay);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            retryDelay = Math.min(retryDelay * 2, WARM_RETRY_MAX_MS);
+        }
+
+        int heldBack = finishWarming();
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Player Search Index Warmed: {} ms, Players: {}, Past Names: {}, Trigrams: {}, Held Back During Warm: {}",
+                (endTime - startTime), entries.size(), pastNames, postings.size(), heldBack);
+    }
+
+    // Streams every player and past name into the index, returns the number of past names
+    private int load()
+    {
+        int[] pastNames = {0};
+        readOnlyTransactionTemplate.executeWithoutResult(status -> {
+            streamingJdbcTemplate.query(WARM_PLAYERS_SQL, (RowCallbackHandler) rs -> {
+                SearchHit player = new SearchHit(rs.getString("player_id"), rs.getString("name"),
+                        rs.getString("polaris_id"), (Integer) rs.getObject("region_id"),
+                        rs.getString("main_character_id"), rs.getInt("main_dan_rank"));
+                long latestBattle = rs.getLong("latest_battle");
+
+                lock.writeLock().lock();
+                try
+                {
+                    put(player, latestBattle);
+                    loadedUpTo = Math.max(loadedUpTo, latestBattle);
+                }
+                finally
+                {
+                    lock.writeLock().unlock();
+                }
+            });
+
+            streamingJdbcTemplate.query(WARM_PAST_NAMES_SQL, (RowCallbackHandler) rs -> {
+                lock.writeLock().lock();
+                try
+                {
+                    Integer id = entryIds.get(rs.getString("player_id"));
+                    if (id != null && addPastName(id, rs.getString("name")))
+                    {
+                        pastNames[0]++;
+                    }
+                }
+                finally
+                {
+                    lock.writeLock().unlock();
+                }
+            });
+        });
+        return pastNames[0];
+    }
+
+    /**
+     * Loads the players whose latest battle is newer than the newest one loaded so far, less the
+     * overlap, with their past names. These include the players ingested by other nodes, which
+     * this node's ingest never records. Re-loading a player this node already has is harmless,
+     * put only applies what is at least as new as the indexed player.
+     */
+    @Scheduled(fixedDelayString = "${player-search.index.catch-up-interval-ms:30000}")
+    public void catchUp()
+    {
+        long since;
+        lock.readLock().lock();
+        try
+        {
+            if (!enabled || warming)
+            {
+                return;
+            }
+            since = loadedUpTo - catchUpOverlapSeconds;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        long startTime = System.currentTimeMillis();
+        try
+        {
+            List<PlayerUpdate> players = new ArrayList<>();
+            streamingJdbcTemplate.query(CATCH_UP_PLAYERS_SQL,
+                    (RowCallbackHandler) rs -> players.add(new PlayerUpdate(
+                            new SearchHit(rs.getString("player_id"), rs.getString("name"),
+                                    rs.getString("polaris_id"), (Integer) rs.getObject("region_id"),
+                                    rs.getString("main_character_id"), rs.getInt("main_dan_rank")),
+                            rs.getLong("latest_battle"))),
+                    since);
+            if (players.isEmpty())
+            {
+                return;
+            }
+
+            String[] playerIds = players.stream().map(update -> update.player().playerId()).toArray(String[]::new);
+            List<String[]> pastNames = new ArrayList<>();
+            streamingJdbcTemplate.query(CATCH_UP_PAST_NAMES_SQL,
+                    ps -> ps.setArray(1, ps.getConnection().createArrayOf("varchar", playerIds)),
+                    (RowCallbackHandler) rs -> pastNames.add(new String[]{rs.getString("player_id"), rs.getString("name")}));
+
+            lock.writeLock().lock();
+            try
+            {
+                for (PlayerUpdate update : players)
+                {
+                    put(update.player(), update.latestBattle());
+                    loadedUpTo = Math.max(loadedUpTo, update.latestBattle());
+                }
+                for (String[] pastName : pastNames)
+                {
+                    Integer id = entryIds.get(pastName[0]);
+                    if (id != null)
+                    {
+                        addPastName(id, pastName[1]);
+                    }
+                }
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+
+            logger.info("Player Search Index Caught Up: {} ms, Players: {}, Past Names: {}",
+                    (System.currentTimeMillis() - startTime), players.size(), pastNames.size());
+        }
+        catch (Exception e)
+        {
+            // the next catch-up starts from the same point
+            logger.error("Error catching up the player search index: ", e);
+        }
+    }
+
+    // Drops what a failed warm loaded, ingested players stay held back for the next attempt
+    private void clear()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            entries.clear();
+            entryIds.clear();
+            postings.clear();
+            loadedUpTo = 0;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Applies the players held back during the warm and opens the index for searches, returns how many were held back
+    int finishWarming()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            int heldBack = recordedWhileWarming.size();
+            for (PlayerUpdate update : recordedWhileWarming)
+            {
+                put(update.player(), update.latestBattle());
+            }
+            recordedWhileWarming.clear();
+            warming = false;
+            return heldBack;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Must hold the write lock. Only a battle at least as new as the indexed one changes the name and region
+    private void put(SearchHit player, long latestBattle)
+    {
+        Integer existing = entryIds.get(player.playerId());
+        Entry entry;
+        int id;
+        if (existing == null)
+        {
+            id = entries.size();
+            entry = new Entry(player.playerId());
+            entries.add(entry);
+            entryIds.put(player.playerId(), id);
+        }
+        else
+        {
+            id = existing;
+            entry = entries.get(id);
+            if (latestBattle < entry.latestBattle)
+            {
+                if (player.mainCharacterId() != null)
+                {
+                    entry.mainCharacterId = player.mainCharacterId();
+                    entry.danRank = player.danRank();
+                }
+                return;
+            }
+        }
+
+        if (player.name() != null && !player.name().equals(entry.name))
+        {
+            String previousName = entry.name;
+            entry.name = player.name();
+            entry.nameKey = player.name().toLowerCase(Locale.ROOT);
+            entry.pastNameKeys = entry.pastNameKeys.stream().filter(past -> !past.equals(entry.nameKey)).toList();
+            index(NAME_START + entry.nameKey, id);
+            // only once the new name is current, a past name equal to it is skipped
+            if (previousName != null && !previousName.isEmpty())
+            {
+                addPastName(id, previousName);
+            }
+        }
+        if (entry.name == null)
+        {
+            entry.name = "";
+            entry.nameKey = "";
+        }
+        if (entry.polarisId == null && player.polarisId() != null)
+        {
+            entry.polarisId = player.polarisId();
+            entry.polarisKey = player.polarisId().toLowerCase(Locale.ROOT);
+            index(entry.polarisKey, id);
+        }
+        if (player.regionId() != null)
+        {
+            entry.regionId = player.regionId();
+        }
+        if (player.mainCharacterId() != null)
+        {
+            entry.mainCharacterId = player.mainCharacterId();
+            entry.danRank = player.danRank();
+        }
+        entry.latestBattle = Math.max(entry.latestBattle, latestBattle);
+    }
+
+    // Must hold the write lock. Returns whether the name was new to the player
+    private boolean addPastName(int id, String name)
+    {
+        Entry entry = entries.get(id);
+        String key = name.toLowerCase(Locale.ROOT);
+        if (key.equals(entry.nameKey) || entry.pastNameKeys.contains(key))
+        {
+            return false;
+        }
+
+        List<String> pastNameKeys = new ArrayList<>(entry.pastNameKeys);
+        pastNameKeys.add(key);
+        entry.pastNameKeys = pastNameKeys;
+        index(key, id);
+        return true;
+    }
+
+    private void index(String paddedKey, int id)
+    {
+        for (int i = 0; i + 3 <= paddedKey.length(); i++)
+        {
+            postings.computeIfAbsent(paddedKey.substring(i, i + 3), k -> new Postings()).add(id);
+        }
+    }
+
+    // Calls back every entry id whose keys may contain the pattern, possibly more than once. The pattern is at least a trigram long
+    private void forEachCandidate(String pattern, IntConsumer consumer)
+    {
+        // every trigram of the pattern has to occur, so the rarest one bounds the candidates
+        Postings rarest = null;
+        for (int i = 0; i + 3 <= pattern.length(); i++)
+        {
+            Postings list = postings.get(pattern.substring(i, i + 3));
+            if (list == null)
+            {
+                return;
+            }
+            if (rarest == null || list.size < rarest.size)
+            {
+                rarest = list;
+            }
+        }
+        for (int i = 0; i < rarest.size; i++)
+        {
+            consumer.accept(rarest.ids[i]);
+        }
+    }
+
+    private static boolean matches(Entry entry, String key)
+    {
+        if (entry.nameKey.contains(key) || (entry.polarisKey != null && entry.polarisKey.contains(key)))
+        {
+            return true;
+        }
+        for (String pastName : entry.pastNameKeys)
+        {
+            if (pastName.contains(key))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static SearchHit toHit(Entry entry)
+    {
+        return new SearchHit(entry.playerId, entry.name, entry.polarisId, entry.regionId, entry.mainCharacterId, entry.danRank);
+    }
+}
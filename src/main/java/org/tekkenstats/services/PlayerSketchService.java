@@ -0,0 +1,125 @@
+package org.tekkenstats.services;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.tekkenstats.aggregations.PlayerSketch;
+import org.tekkenstats.interfaces.RankDistributionProjection;
+import org.tekkenstats.repositories.AggregatedStatisticsRepository;
+
+import java.util.*;
+
+/**
+ * Distinct player estimates over any combination of statistics cells, by merging their player sketches.
+ * Rollups that keep every region go through player_sketch_rollups, which holds a few thousand
+ * sketches per version; only region-filtered rollups read the cell sketches.
+ */
+@Service
+public class PlayerSketchService {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final AggregatedStatisticsRepository aggregatedStatisticsRepository;
+
+    public PlayerSketchService(JdbcTemplate jdbcTemplate, AggregatedStatisticsRepository aggregatedStatisticsRepository)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+        this.aggregatedStatisticsRepository = aggregatedStatisticsRepository;
+    }
+
+    public double estimateDistinctPlayers(
+            Collection<Integer> gameVersions,
+            String category,
+            String characterId,
+            Integer minRank,
+            Integer maxRank,
+            Integer regionId)
+    {
+        StringBuilder sql = new StringBuilder(regionId == null
+                ? "SELECT player_sketch FROM player_sketch_rollups WHERE game_version = ANY(?) AND category = ?"
+                : "SELECT player_sketch FROM aggregated_statistics WHERE game_version = ANY(?) AND category = ? " +
+                  "AND player_sketch IS NOT NULL AND region_id = ?");
+
+        List<Object> args = new ArrayList<>();
+        args.add(gameVersions.toArray(new Integer[0]));
+        args.add(category);
+        if (regionId != null)
+        {
+            args.add(regionId);
+        }
+        if (characterId != null)
+        {
+            sql.append(" AND character_id = ?");
+            args.add(characterId);
+        }
+        if (minRank != null)
+        {
+            sql.append(" AND dan_rank >= ?");
+            args.add(minRank);
+        }
+        if (maxRank != null)
+        {
+            sql.append(" AND dan_rank <= ?");
+            args.add(maxRank);
+        }
+
+        PlayerSketch union = new PlayerSketch();
+        jdbcTemplate.query(sql.toString(),
+                ps -> {
+                    for (int i = 0; i < args.size(); i++)
+                    {
+                        Object arg = args.get(i);
+                        if (arg instanceof Integer[] versions)
+                        {
+                            ps.setArray(i + 1, ps.getConnection().createArrayOf("integer", versions));
+                        }
+                        else
+                        {
+                            ps.setObject(i + 1, arg);
+                        }
+                    }
+                },
+                rs -> {
+                    union.merge(PlayerSketch.fromBytes(rs.getBytes("player_sketch")));
+                });
+
+        return union.estimate();
+    }
+
+    /**
+     * Share of players per dan rank. 'standard' cells partition the players (one main character each),
+     * so their exact counts add up; 'overall' counts a player once per character, so each rank and the
+     * total are distinct estimates from merged sketches instead of sums.
+     * Both read the statistics generation that published the game version.
+     */
+    public Map<Integer, Double> getRankDistribution(long generation, String category)
+    {
+        if (!"overall".equals(category))
+        {
+            Map<Integer, Double> distribution = new TreeMap<>();
+            for (RankDistributionProjection projection : aggregatedStatisticsRepository.getRankDistribution(generation, category))
+            {
+                distribution.put(projection.getRank(), projection.getPercentage());
+            }
+            return distribution;
+        }
+
+        Map<Integer, PlayerSketch> rankSketches = new TreeMap<>();
+        PlayerSketch total = new PlayerSketch();
+
+        jdbcTemplate.query(
+                "SELECT dan_rank, player_sketch FROM player_sketch_rollup_snapshots WHERE generation = ? AND category = ?",
+                rs -> {
+                    PlayerSketch sketch = PlayerSketch.fromBytes(rs.getBytes("player_sketch"));
+                    rankSketches.computeIfAbsent(rs.getInt("dan_rank"), k -> new PlayerSketch()).merge(sketch);
+                    total.merge(sketch);
+                },
+                generation, category);
+
+        double totalPlayers = total.estimate();
+        Map<Integer, Double> distribution = new TreeMap<>();
+        if (totalPlayers > 0)
+        {
+            rankSketches.forEach((rank, sketch) -> distribution.put(rank, sketch.estimate() * 100.0 / totalPlayers));
+        }
+        return distribution;
+    }
+}
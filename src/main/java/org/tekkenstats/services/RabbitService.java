@@ -10,7 +10,9 @@ import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import org.tekkenstats.aggregations.PlayerCharacterData;
 import org.tekkenstats.events.ReplayProcessingCompletedEvent;
 import org.tekkenstats.models.*;
 import org.tekkenstats.configuration.RabbitMQConfig;
@@ -20,9 +22,6 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 @Service
@@ -32,22 +31,46 @@ public class RabbitService {
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
     private final BattleRepository battleRepository;
     private final ApplicationEventPublisher eventPublisher;
+    private final StatisticsDeltaService statisticsDeltaService;
+    private final StatisticsRollupService statisticsRollupService;
+    private final MatchupService matchupService;
+    private final RecentBattleStore recentBattleStore;
+    private final ValueDistributionService valueDistributionService;
+    private final PlayerSearchIndex playerSearchIndex;
+    private final PlayerProfileService playerProfileService;
+    private final PlayerProfileCache playerProfileCache;
 
-    private static final long COOLDOWN_PERIOD = TimeUnit.MINUTES.toMillis(5); // 5 minute cooldown
-    private final AtomicLong lastEventPublishTime = new AtomicLong(0);
-    private final AtomicBoolean isPublishing = new AtomicBoolean(false);
 
 
     public RabbitService(
             JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate,
             BattleRepository battleRepository,
-            ApplicationEventPublisher eventPublisher)
+            ApplicationEventPublisher eventPublisher,
+            StatisticsDeltaService statisticsDeltaService,
+            StatisticsRollupService statisticsRollupService,
+            MatchupService matchupService,
+            RecentBattleStore recentBattleStore,
+            ValueDistributionService valueDistributionService,
+            PlayerSearchIndex playerSearchIndex,
+            PlayerProfileService playerProfileService,
+            PlayerProfileCache playerProfileCache)
     {
         this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
         this.battleRepository = battleRepository;
         this.eventPublisher = eventPublisher;
+        this.statisticsDeltaService = statisticsDeltaService;
+        this.statisticsRollupService = statisticsRollupService;
+        this.matchupService = matchupService;
+        this.recentBattleStore = recentBattleStore;
+        this.valueDistributionService = valueDistributionService;
+        this.playerSearchIndex = playerSearchIndex;
+        this.playerProfileService = playerProfileService;
+        this.playerProfileCache = playerProfileCache;
     }
 
     @RabbitListener(queues = RabbitMQConfig.QUEUE_NAME, containerFactory = "rabbitListenerContainerFactory", concurrency = "6")
@@ -77,18 +100,60 @@ public class RabbitService {
 
         // Instantiate objects and update relevant information
         processBattlesAndPlayers(battles, mapOfExistingBattles, updatedPlayers, battleSet);
-        executeAllDatabaseOperations(updatedPlayers, battleSet);
+        executeAllDatabaseOperations(updatedPlayers, battleSet, gameVersionsToProcess);
 
-        tryPublishEvent(gameVersionsToProcess);
+        // marks the game versions dirty for StatisticsRecomputeScheduler, which decides when they are recomputed
+        eventPublisher.publishEvent(new ReplayProcessingCompletedEvent(gameVersionsToProcess));
     }
 
-    private void executeAllDatabaseOperations(Map<String, Player> updatedPlayers, Set<Battle> battleSet)
+    private void executeAllDatabaseOperations(Map<String, Player> updatedPlayers, Set<Battle> battleSet, Set<Integer> gameVersions)
     {
-        int battleCount = executeBattleBatchWrite(battleSet);
-        int playerCount = executePlayerBulkOperations(updatedPlayers);
+        // The battles, players and character stats of a batch commit together. Any failure rolls all of them
+        // back and propagates, so the message is redelivered and its battles are processed again from scratch.
+        BatchWriteResult result = transactionTemplate.execute(status -> {
+            List<Battle> insertedBattles = executeBattleBatchWrite(battleSet);
+            int playerCount = executePlayerAndCharacterStatsOperations(updatedPlayers, gameVersions);
+            return new BatchWriteResult(insertedBattles, playerCount);
+        });
+
+        // in-memory consumers and caches only see the batch once it is committed
+        matchupService.recordBattles(result.insertedBattles());
+        recentBattleStore.append(result.insertedBattles());
+        valueDistributionService.recordBattles(result.insertedBattles());
+        playerSearchIndex.recordPlayers(updatedPlayers.values());
+        playerProfileService.refreshDocuments(updatedPlayers.values());
+        // after the document refresh, so that a profile loaded from here on sees the batch
+        playerProfileCache.invalidate(updatedPlayers.values().stream().map(Player::getPolarisId).toList());
+
+        updateSummaryStatistics(result.insertedBattles().size(), result.playerCount());
+    }
+
+    private record BatchWriteResult(List<Battle> insertedBattles, int playerCount) {}
+
+    // Must run inside the batch transaction
+    private int executePlayerAndCharacterStatsOperations(Map<String, Player> updatedPlayers, Set<Integer> gameVersions)
+    {
+        if (updatedPlayers.isEmpty() || !statisticsDeltaService.isEnabled())
+        {
+            int playerCount = executePlayerBulkOperations(updatedPlayers);
+            executeCharacterStatsBulkOperations(updatedPlayers);
+            executeMainCharacterUpdate(updatedPlayers);
+            return playerCount;
+        }
+
+        // The before/after snapshots and the upserts share the transaction, with the players locked,
+        // so that another consumer cannot change these players between the two snapshots
+        Set<String> playerIds = updatedPlayers.keySet();
+        statisticsDeltaService.lockPlayers(playerIds);
+
+        Map<String, Map<Integer, List<PlayerCharacterData>>> before = statisticsDeltaService.loadSnapshot(playerIds, gameVersions);
+        int insertedPlayers = executePlayerBulkOperations(updatedPlayers);
         executeCharacterStatsBulkOperations(updatedPlayers);
+        executeMainCharacterUpdate(updatedPlayers);
+        Map<String, Map<Integer, List<PlayerCharacterData>>> after = statisticsDeltaService.loadSnapshot(playerIds, gameVersions);
 
-        updateSummaryStatistics(battleCount, playerCount);
+        statisticsDeltaService.applyDeltas(before, after);
+        return insertedPlayers;
     }
 
     private Map<String, Battle> fetchExistingBattles(List<Battle> battles)
@@ -170,84 +235,117 @@ public class RabbitService {
     }
 
 
-    public int executeBattleBatchWrite(Set<Battle> battleSet)
+    // Must run inside the batch transaction. Returns the battles that were actually inserted
+    public List<Battle> executeBattleBatchWrite(Set<Battle> battleSet)
     {
         if (battleSet == null || battleSet.isEmpty()) {
             logger.warn("No battles to insert or update.");
-            return 0;
+            return Collections.emptyList();
         }
 
-        try {
-            long startTime = System.currentTimeMillis();
-
-            // insert battle and increment replay count, else do nothing
-            String sql =
-                    "INSERT INTO battles (" +
-                    "battle_id, date, battle_at, battle_type, game_version, " +
-                    "player1_character_id, player1_name, player1_region, player1_area, " +
-                    "player1_language, player1_polaris_id, player1_tekken_power, player1_dan_rank, " +
-                    "player1_rating_before, player1_rating_change, player1_rounds_won, player1_id, " +
-                    "player2_character_id, player2_name, player2_region, player2_area, player2_language, " +
-                    "player2_polaris_id, player2_tekken_power, player2_dan_rank, " +
-                    "player2_rating_before, player2_rating_change, player2_rounds_won, player2_id, " +
-                    "stageid, winner" +
-                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
-                    "ON CONFLICT (battle_id) DO NOTHING";
-
-            List<Object[]> batchArgs = new ArrayList<>();
-
-
-            // the order of these parameters must match the SQL statement above
-            for (Battle battle : battleSet) {
-                Object[] args = new Object[] {
-                        battle.getBattleId(),
-                        battle.getDate(),
-                        battle.getBattleAt(),
-                        battle.getBattleType(),
-                        battle.getGameVersion(),
-                        battle.getPlayer1CharacterId(),
-                        battle.getPlayer1Name(),
-                        battle.getPlayer1RegionId(),
-                        battle.getPlayer1AreaId(),
-                        battle.getPlayer1Language(),
-                        battle.getPlayer1PolarisId(),
-                        battle.getPlayer1TekkenPower(),
-                        battle.getPlayer1DanRank(),
-                        battle.getPlayer1RatingBefore(),
-                        battle.getPlayer1RatingChange(),
-                        battle.getPlayer1RoundsWon(),
-                        battle.getPlayer1UserId(),
-                        battle.getPlayer2CharacterId(),
-                        battle.getPlayer2Name(),
-                        battle.getPlayer2RegionId(),
-                        battle.getPlayer2AreaId(),
-                        battle.getPlayer2Language(),
-                        battle.getPlayer2PolarisId(),
-                        battle.getPlayer2TekkenPower(),
-                        battle.getPlayer2DanRank(),
-                        battle.getPlayer2RatingBefore(),
-                        battle.getPlayer2RatingChange(),
-                        battle.getPlayer2RoundsWon(),
-                        battle.getPlayer2UserId(),
-                        battle.getStageId(),
-                        battle.getWinner()
-                };
-                batchArgs.add(args);
+        long startTime = System.currentTimeMillis();
+
+        // insert battle and increment replay count, else do nothing
+        String sql =
+                "INSERT INTO battles (" +
+                "battle_id, date, battle_at, battle_type, game_version, " +
+                "player1_character_id, player1_name, player1_region, player1_area, " +
+                "player1_language, player1_polaris_id, player1_tekken_power, player1_dan_rank, " +
+                "player1_rating_before, player1_rating_change, player1_rounds_won, player1_id, " +
+                "player2_character_id, player2_name, player2_region, player2_area, player2_language, " +
+                "player2_polaris_id, player2_tekken_power, player2_dan_rank, " +
+                "player2_rating_before, player2_rating_change, player2_rounds_won, player2_id, " +
+                "stageid, winner" +
+                ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (battle_id) DO NOTHING";
+
+        List<Object[]> batchArgs = new ArrayList<>();
+        List<Battle> orderedBattles = new ArrayList<>(battleSet);
+        // the battles stay locked until the whole batch commits, sorting keeps two overlapping batches from deadlocking
+        orderedBattles.sort(Comparator.comparing(Battle::getBattleId));
+
+
+        // the order of these parameters must match the SQL statement above
+        for (Battle battle : orderedBattles) {
+            Object[] args = new Object[] {
+                    battle.getBattleId(),
+                    battle.getDate(),
+                    battle.getBattleAt(),
+                    battle.getBattleType(),
+                    battle.getGameVersion(),
+                    battle.getPlayer1CharacterId(),
+                    battle.getPlayer1Name(),
+                    battle.getPlayer1RegionId(),
+                    battle.getPlayer1AreaId(),
+                    battle.getPlayer1Language(),
+                    battle.getPlayer1PolarisId(),
+                    battle.getPlayer1TekkenPower(),
+                    battle.getPlayer1DanRank(),
+                    battle.getPlayer1RatingBefore(),
+                    battle.getPlayer1RatingChange(),
+                    battle.getPlayer1RoundsWon(),
+                    battle.getPlayer1UserId(),
+                    battle.getPlayer2CharacterId(),
+                    battle.getPlayer2Name(),
+                    battle.getPlayer2RegionId(),
+                    battle.getPlayer2AreaId(),
+                    battle.getPlayer2Language(),
+                    battle.getPlayer2PolarisId(),
+                    battle.getPlayer2TekkenPower(),
+                    battle.getPlayer2DanRank(),
+                    battle.getPlayer2RatingBefore(),
+                    battle.getPlayer2RatingChange(),
+                    battle.getPlayer2RoundsWon(),
+                    battle.getPlayer2UserId(),
+                    battle.getStageId(),
+                    battle.getWinner()
+            };
+            batchArgs.add(args);
+        }
+
+        // battles skipped by ON CONFLICT report 0, only the inserted ones feed the time-bucketed rollups
+        int[] results = jdbcTemplate.batchUpdate(sql, batchArgs);
+
+        List<Battle> insertedBattles = new ArrayList<>();
+        for (int i = 0; i < results.length; i++)
+        {
+            if (results[i] > 0)
+            {
+                insertedBattles.add(orderedBattles.get(i));
             }
+        }
+        executePlayerBattlesWrite(insertedBattles);
+        statisticsRollupService.recordBattles(insertedBattles);
 
-            int[] results = jdbcTemplate.batchUpdate(sql, batchArgs);
-            long endTime = System.currentTimeMillis();
+        long endTime = System.currentTimeMillis();
+        logger.info("Battle Insertion: {} ms, Inserted/Updated: {}, Inserted Count: {}", (endTime - startTime), battleSet.size(), insertedBattles.size());
 
-            int insertedCount = Arrays.stream(results).sum();
+        return insertedBattles;
+    }
 
-            logger.info("Battle Insertion: {} ms, Inserted/Updated: {}, Inserted Count: {}", (endTime - startTime), battleSet.size(), insertedCount);
+    // Fans each inserted battle out to one player_battles row per side, the index battle history pages are read from
+    private void executePlayerBattlesWrite(List<Battle> insertedBattles)
+    {
+        String sql =
+                "INSERT INTO player_battles (player_id, battle_at, battle_id, side) VALUES (?, ?, ?, ?) " +
+                "ON CONFLICT DO NOTHING";
 
-            return insertedCount;
+        List<Object[]> batchArgs = new ArrayList<>(insertedBattles.size() * 2);
+        for (Battle battle : insertedBattles)
+        {
+            if (battle.getPlayer1UserId() != null)
+            {
+                batchArgs.add(new Object[]{battle.getPlayer1UserId(), battle.getBattleAt(), battle.getBattleId(), 1});
+            }
+            if (battle.getPlayer2UserId() != null)
+            {
+                batchArgs.add(new Object[]{battle.getPlayer2UserId(), battle.getBattleAt(), battle.getBattleId(), 2});
+            }
         }
-        catch (Exception e)
+
+        if (!batchArgs.isEmpty())
         {
-            logger.error("BATTLE INSERTION FAILED: ", e);
-            return 0;
+            jdbcTemplate.batchUpdate(sql, batchArgs);
         }
     }
 
@@ -387,21 +485,15 @@ public class RabbitService {
         int batchSize = 1000;
         int totalBatches = (int) Math.ceil((double) batchArgs.size() / batchSize);
 
-        //upsert in batches of batchSize
-        try
+        // upsert in batches of batchSize, a failure aborts the batch transaction and must reach the caller
+        for (int i = 0; i < totalBatches; i++)
         {
-            for (int i = 0; i < totalBatches; i++)
-            {
-                int start = i * batchSize;
-                int end = Math.min(start + batchSize, batchArgs.size());
+            int start = i * batchSize;
+            int end = Math.min(start + batchSize, batchArgs.size());
 
-                List<Object[]> batch = batchArgs.subList(start, end);
+            List<Object[]> batch = batchArgs.subList(start, end);
 
-                jdbcTemplate.batchUpdate(sql, batch);
-            }
-        } catch(Exception e)
-        {
-            logger.error("Error occurred while inserting character stats: {}", e.getMessage());
+            jdbcTemplate.batchUpdate(sql, batch);
         }
 
         long endTime = System.currentTimeMillis();
@@ -409,6 +501,39 @@ public class RabbitService {
                 (endTime - startTime), batchArgs.size());
     }
 
+    // Recomputes the main character of the given players from their character stats, and sets the ones that changed on the players
+    private void executeMainCharacterUpdate(Map<String, Player> updatedPlayersMap)
+    {
+        if (updatedPlayersMap.isEmpty())
+        {
+            return;
+        }
+
+        String sql =
+                "UPDATE players p SET " +
+                "main_character_id = main.character_id, " +
+                "main_dan_rank = main.dan_rank, " +
+                "main_game_version = main.game_version " +
+                "FROM (SELECT DISTINCT ON (player_id) player_id, character_id, dan_rank, game_version " +
+                "FROM character_stats WHERE player_id = ANY(?) " +
+                "ORDER BY player_id, game_version DESC, wins + losses DESC, character_id) main " +
+                "WHERE p.player_id = main.player_id " +
+                "AND (p.main_character_id, p.main_dan_rank, p.main_game_version) " +
+                "IS DISTINCT FROM (main.character_id, main.dan_rank, main.game_version) " +
+                "RETURNING p.player_id, p.main_character_id, p.main_dan_rank, p.main_game_version";
+
+        String[] playerIds = updatedPlayersMap.keySet().stream().sorted().toArray(String[]::new);
+
+        jdbcTemplate.query(sql,
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("varchar", playerIds)),
+                rs -> {
+                    Player player = updatedPlayersMap.get(rs.getString("player_id"));
+                    player.setMainCharacterId(rs.getString("main_character_id"));
+                    player.setMainDanRank(rs.getInt("main_dan_rank"));
+                    player.setMainGameVersion(rs.getInt("main_game_version"));
+                });
+    }
+
     private void updateSummaryStatistics(int newBattleCount, int newPlayerCount)
     {
         if (newBattleCount == 0 && newPlayerCount == 0)
@@ -504,42 +629,6 @@ public class RabbitService {
         addPlayerNameIfNew(player, player.getName());
     }
 
-    private void tryPublishEvent(Set<Integer> gameVersions)
-    {
-        long currentTime = System.currentTimeMillis();
-        long lastPublishTime = lastEventPublishTime.get();
-
-        // check if enough time has passed since last publish
-        if ((currentTime - lastPublishTime) < COOLDOWN_PERIOD) {
-            logger.debug("Skipping statistics computation due to cooldown period");
-            return;
-        }
-
-        // Try to acquire the publishing lock
-        if (!isPublishing.compareAndSet(false, true))
-        {
-            logger.debug("Another thread is currently publishing an event");
-            return;
-        }
-
-        try
-        {
-            // Double-check the time again now that we have the lock
-            // This prevents multiple events being published if multiple threads
-            // pass the first time check simultaneously
-            if ((currentTime - lastEventPublishTime.get()) >= COOLDOWN_PERIOD)
-            {
-                eventPublisher.publishEvent(new ReplayProcessingCompletedEvent(gameVersions));
-                lastEventPublishTime.set(currentTime);
-                logger.info("Published statistics computation event");
-            }
-        }
-        finally
-        {
-            isPublishing.set(false);
-        }
-    }
-
     private Set<Integer> extractGameVersions(List<Battle> battles)
     {
         HashSet<Integer> gameVersions = new HashSet<>();
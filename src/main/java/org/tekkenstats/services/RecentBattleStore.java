@@ -0,0 +1,389 @@
+package org.tekkenstats.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.tekkenstats.aggregations.BattleScanFilter;
+import org.tekkenstats.aggregations.BattleScanGroup;
+import org.tekkenstats.aggregations.BattleScanResult;
+import org.tekkenstats.models.Battle;
+
+import javax.sql.DataSource;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Node-local columnar copy of the most recent battles, for analytical slicing without scanning
+ * the battles table. Every column is a primitive off-heap buffer and the store is a ring:
+ * once full, the oldest appended battle is overwritten. It is warmed from the database at startup
+ * and then fed the battles committed by ingest.
+ */
+@Service
+public class RecentBattleStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecentBattleStore.class);
+
+    private static final int SCAN_CHUNK_ROWS = 1 << 16;
+    private static final short UNKNOWN_REGION = -1;
+
+    private static final String WARM_SQL =
+            "SELECT * FROM (" +
+            "SELECT battle_id, battle_at, player1_character_id, player2_character_id, player1_dan_rank, player2_dan_rank, " +
+            "winner, stageid, player1_region, player2_region, player1_rounds_won, player2_rounds_won " +
+            "FROM battles WHERE battle_at >= ? ORDER BY battle_at DESC LIMIT ?" +
+            ") recent ORDER BY battle_at";
+
+    private final int capacity;
+    private final long retentionSeconds;
+    private final boolean enabled;
+
+    // columns, one slot per battle
+    private final LongBuffer battleAt;
+    private final ShortBuffer player1Character;
+    private final ShortBuffer player2Character;
+    private final ByteBuffer player1DanRank;
+    private final ByteBuffer player2DanRank;
+    private final ByteBuffer winner;
+    private final ShortBuffer stage;
+    private final ShortBuffer player1Region;
+    private final ShortBuffer player2Region;
+    private final ByteBuffer player1Rounds;
+    private final ByteBuffer player2Rounds;
+
+    private int head;
+    private int size;
+
+    // largest key seen per groupable column, so scans size their counters to what is stored
+    private int maxCharacterId;
+    private int maxStageId;
+    private int maxDanRank;
+    private int maxRegionId;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // battles committed while the store is warming, applied once warming is done
+    private boolean warming = true;
+    private final List<Battle> appendedWhileWarming = new ArrayList<>();
+
+    private final JdbcTemplate streamingJdbcTemplate;
+    private final TransactionTemplate readOnlyTransactionTemplate;
+
+    public RecentBattleStore(
+            DataSource dataSource,
+            PlatformTransactionManager transactionManager,
+            @Value("${statistics.recent-battles.enabled:true}") boolean enabled,
+            @Value("${statistics.recent-battles.capacity:2000000}") int capacity,
+            @Value("${statistics.recent-battles.retention-days:7}") int retentionDays,
+            @Value("${statistics.engine.fetch-size:10000}") int fetchSize)
+    {
+        this.enabled = enabled;
+        this.capacity = enabled ? capacity : 0;
+        this.retentionSeconds = retentionDays * 86400L;
+
+        battleAt = ByteBuffer.allocateDirect(this.capacity * Long.BYTES).asLongBuffer();
+        player1Character = ByteBuffer.allocateDirect(this.capacity * Short.BYTES).asShortBuffer();
+        player2Character = ByteBuffer.allocateDirect(this.capacity * Short.BYTES).asShortBuffer();
+        player1DanRank = ByteBuffer.allocateDirect(this.capacity);
+        player2DanRank = ByteBuffer.allocateDirect(this.capacity);
+        winner = ByteBuffer.allocateDirect(this.capacity);
+        stage = ByteBuffer.allocateDirect(this.capacity * Short.BYTES).asShortBuffer();
+        player1Region = ByteBuffer.allocateDirect(this.capacity * Short.BYTES).asShortBuffer();
+        player2Region = ByteBuffer.allocateDirect(this.capacity * Short.BYTES).asShortBuffer();
+        player1Rounds = ByteBuffer.allocateDirect(this.capacity);
+        player2Rounds = ByteBuffer.allocateDirect(this.capacity);
+
+        this.streamingJdbcTemplate = new JdbcTemplate(dataSource);
+        this.streamingJdbcTemplate.setFetchSize(fetchSize);
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public long getRetentionSeconds()
+    {
+        return retentionSeconds;
+    }
+
+    // Must only be given battles that were actually inserted, once their transaction has committed
+    public void append(Collection<Battle> insertedBattles)
+    {
+        if (!enabled || insertedBattles.isEmpty())
+        {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try
+        {
+            if (warming)
+            {
+                appendedWhileWarming.addAll(insertedBattles);
+                return;
+            }
+            for (Battle battle : insertedBattles)
+            {
+                write(battle.getBattleAt(), battle.getPlayer1CharacterId(), battle.getPlayer2CharacterId(),
+                        battle.getPlayer1DanRank(), battle.getPlayer2DanRank(), battle.getWinner(), battle.getStageId(),
+                        battle.getPlayer1RegionId(), battle.getPlayer2RegionId(),
+                        battle.getPlayer1RoundsWon(), battle.getPlayer2RoundsWon());
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the most recent battles within the retention. Ingest keeps committing battles meanwhile;
+     * those are held back and applied afterwards, minus the ones the warm query already returned.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Async("statisticsThreadExecutor")
+    public void warm()
+    {
+        if (!enabled)
+        {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        long since = Instant.now().getEpochSecond() - retentionSeconds;
+
+        // 64-bit hashes of the warmed battle ids, only kept to de-duplicate the held back battles
+        long[][] warmedIds = {new long[1024]};
+        int[] warmedCount = {0};
+
+        try
+        {
+            readOnlyTransactionTemplate.executeWithoutResult(status ->
+                    streamingJdbcTemplate.query(WARM_SQL,
+                            ps -> {
+                                ps.setLong(1, since);
+                                ps.setInt(2, capacity);
+                            },
+                            (RowCallbackHandler) rs -> {
+                                if (warmedCount[0] == warmedIds[0].length)
+                                {
+                                    warmedIds[0] = Arrays.copyOf(warmedIds[0], warmedCount[0] * 2);
+                                }
+                                warmedIds[0][warmedCount[0]++] = hashBattleId(rs.getString("battle_id"));
+
+                                Integer region1 = (Integer) rs.getObject("player1_region");
+                                Integer region2 = (Integer) rs.getObject("player2_region");
+
+                                lock.writeLock().lock();
+                                try
+                                {
+                                    write(rs.getLong("battle_at"),
+                                            rs.getInt("player1_character_id"), rs.getInt("player2_character_id"),
+                                            rs.getInt("player1_dan_rank"), rs.getInt("player2_dan_rank"),
+                                            rs.getInt("winner"), rs.getInt("stageid"),
+                                            region1, region2,
+                                            rs.getInt("player1_rounds_won"), rs.getInt("player2_rounds_won"));
+                                }
+                                finally
+                                {
+                                    lock.writeLock().unlock();
+                                }
+                            }));
+        }
+        catch (Exception e)
+        {
+            logger.error("Error warming recent battle store, continuing with ingested battles only: ", e);
+        }
+
+        long[] sortedIds = Arrays.copyOf(warmedIds[0], warmedCount[0]);
+        Arrays.sort(sortedIds);
+
+        int heldBack;
+        lock.writeLock().lock();
+        try
+        {
+            heldBack = appendedWhileWarming.size();
+            for (Battle battle : appendedWhileWarming)
+            {
+                if (Arrays.binarySearch(sortedIds, hashBattleId(battle.getBattleId())) < 0)
+                {
+                    write(battle.getBattleAt(), battle.getPlayer1CharacterId(), battle.getPlayer2CharacterId(),
+                            battle.getPlayer1DanRank(), battle.getPlayer2DanRank(), battle.getWinner(), battle.getStageId(),
+                            battle.getPlayer1RegionId(), battle.getPlayer2RegionId(),
+                            battle.getPlayer1RoundsWon(), battle.getPlayer2RoundsWon());
+                }
+            }
+            appendedWhileWarming.clear();
+            warming = false;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Recent Battle Store Warmed: {} ms, Battles: {}, Held Back During Warm: {}",
+                (endTime - startTime), warmedCount[0], heldBack);
+    }
+
+    /**
+     * Counts every side of every stored battle that passes the filter, grouped by the given column.
+     * The store is split into fixed-size chunks scanned in parallel, each into its own counters.
+     */
+    public BattleScanResult scan(BattleScanFilter filter, BattleScanGroup groupBy)
+    {
+        lock.readLock().lock();
+        try
+        {
+            int keys = switch (groupBy)
+            {
+                case CHARACTER, OPPONENT -> maxCharacterId + 1;
+                case STAGE -> maxStageId + 1;
+                case DAN_RANK -> maxDanRank + 1;
+                case REGION -> maxRegionId + 1;
+            };
+
+            int rows = size;
+            int chunks = (rows + SCAN_CHUNK_ROWS - 1) / SCAN_CHUNK_ROWS;
+
+            // the read lock is held by this thread for the whole scan, which keeps writers out
+            // while the worker threads read the columns with absolute gets
+            return IntStream.range(0, chunks)
+                    .parallel()
+                    .mapToObj(chunk -> scanChunk(filter, groupBy, keys,
+                            chunk * SCAN_CHUNK_ROWS, Math.min(rows, (chunk + 1) * SCAN_CHUNK_ROWS)))
+                    .reduce(BattleScanResult::merge)
+                    .orElseGet(() -> new BattleScanResult(keys));
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private BattleScanResult scanChunk(BattleScanFilter filter, BattleScanGroup groupBy, int keys, int from, int to)
+    {
+        BattleScanResult result = new BattleScanResult(keys);
+
+        for (int slot = from; slot < to; slot++)
+        {
+            if (battleAt.get(slot) < filter.since())
+            {
+                continue;
+            }
+
+            int stageId = stage.get(slot) & 0xFFFF;
+            if (filter.stageId() != null && stageId != filter.stageId())
+            {
+                continue;
+            }
+
+            int winningSide = winner.get(slot);
+            int character1 = player1Character.get(slot) & 0xFFFF;
+            int character2 = player2Character.get(slot) & 0xFFFF;
+            int rounds1 = player1Rounds.get(slot);
+            int rounds2 = player2Rounds.get(slot);
+
+            countSide(result, filter, groupBy, character1, character2, player1DanRank.get(slot), player1Region.get(slot),
+                    stageId, winningSide == 1, rounds1, rounds2);
+            countSide(result, filter, groupBy, character2, character1, player2DanRank.get(slot), player2Region.get(slot),
+                    stageId, winningSide == 2, rounds2, rounds1);
+        }
+        return result;
+    }
+
+    private void countSide(BattleScanResult result, BattleScanFilter filter, BattleScanGroup groupBy,
+                           int character, int opponent, int danRank, int region, int stageId,
+                           boolean won, int roundsWon, int roundsLost)
+    {
+        if (filter.characterId() != null && character != filter.characterId()) return;
+        if (filter.opponentCharacterId() != null && opponent != filter.opponentCharacterId()) return;
+        if (filter.minDanRank() != null && danRank < filter.minDanRank()) return;
+        if (filter.maxDanRank() != null && danRank > filter.maxDanRank()) return;
+        if (filter.regionId() != null && region != filter.regionId()) return;
+
+        int key = switch (groupBy)
+        {
+            case CHARACTER -> character;
+            case OPPONENT -> opponent;
+            case STAGE -> stageId;
+            case DAN_RANK -> danRank;
+            case REGION -> region;
+        };
+
+        // sides without a known region have no region group
+        if (key < 0)
+        {
+            return;
+        }
+        result.add(key, won, roundsWon, roundsLost);
+    }
+
+    // Callers hold the write lock
+    private void write(long at, int character1, int character2, int danRank1, int danRank2, int winningSide, int stageId,
+                       Integer region1, Integer region2, int rounds1, int rounds2)
+    {
+        int slot = head;
+
+        battleAt.put(slot, at);
+        player1Character.put(slot, (short) character1);
+        player2Character.put(slot, (short) character2);
+        player1DanRank.put(slot, (byte) danRank1);
+        player2DanRank.put(slot, (byte) danRank2);
+        winner.put(slot, (byte) winningSide);
+        stage.put(slot, (short) stageId);
+        player1Region.put(slot, region1 == null ? UNKNOWN_REGION : region1.shortValue());
+        player2Region.put(slot, region2 == null ? UNKNOWN_REGION : region2.shortValue());
+        player1Rounds.put(slot, (byte) rounds1);
+        player2Rounds.put(slot, (byte) rounds2);
+
+        maxCharacterId = Math.max(maxCharacterId, Math.max(character1, character2));
+        maxStageId = Math.max(maxStageId, stageId);
+        maxDanRank = Math.max(maxDanRank, Math.max(danRank1, danRank2));
+        if (region1 != null) maxRegionId = Math.max(maxRegionId, region1);
+        if (region2 != null) maxRegionId = Math.max(maxRegionId, region2);
+
+        head = (head + 1) % capacity;
+        size = Math.min(size + 1, capacity);
+    }
+
+    private static long hashBattleId(String battleId)
+    {
+        // FNV-1a, 64 bit
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < battleId.length(); i++)
+        {
+            hash ^= battleId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
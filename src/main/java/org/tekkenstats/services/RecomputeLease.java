@@ -0,0 +1,43 @@
+package org.tekkenstats.services;
+
+/**
+ * The lease one statistics run holds on its game version, see {@link StatisticsRecomputeScheduler}.
+ * Renewal marks it lost once the lease row expired or was taken over, and the run checks it between
+ * its steps to give up early. The check that counts is the publisher's: every transaction that
+ * touches the run's shared state first locks the lease row and does nothing if it is gone.
+ */
+public class RecomputeLease {
+
+    private final int gameVersion;
+    private final String leaseId;
+    private volatile boolean lost;
+
+    RecomputeLease(int gameVersion, String leaseId)
+    {
+        this.gameVersion = gameVersion;
+        this.leaseId = leaseId;
+    }
+
+    public int getGameVersion()
+    {
+        return gameVersion;
+    }
+
+    public String getLeaseId()
+    {
+        return leaseId;
+    }
+
+    void markLost()
+    {
+        lost = true;
+    }
+
+    public void checkHeld()
+    {
+        if (lost)
+        {
+            throw new IllegalStateException("Lost the recompute lease of game version " + gameVersion);
+        }
+    }
+}
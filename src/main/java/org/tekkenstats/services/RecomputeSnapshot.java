@@ -0,0 +1,113 @@
+package org.tekkenstats.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The database snapshot every read of one statistics run goes through. It is exported by a
+ * repeatable read transaction that stays open until the run has staged everything, and imported
+ * by the run's readers on their own connections, so the partitions, categories and sketches of a
+ * run all see the same committed data. {@link #getSnapshot()} is what the swap uses to tell the
+ * ingest transactions the run has seen from the ones it has not.
+ */
+public class RecomputeSnapshot implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecomputeSnapshot.class);
+
+    private final Connection connection;
+    private final String snapshotId;
+    private final String snapshot;
+    private final TransactionTemplate repeatableReadTransactionTemplate;
+    private final JdbcTemplate jdbcTemplate;
+
+    private RecomputeSnapshot(
+            Connection connection,
+            String snapshotId,
+            String snapshot,
+            TransactionTemplate repeatableReadTransactionTemplate,
+            JdbcTemplate jdbcTemplate)
+    {
+        this.connection = connection;
+        this.snapshotId = snapshotId;
+        this.snapshot = snapshot;
+        this.repeatableReadTransactionTemplate = repeatableReadTransactionTemplate;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    // The template must use repeatable read, an imported snapshot only lasts for a whole transaction at that level
+    static RecomputeSnapshot export(DataSource dataSource, TransactionTemplate repeatableReadTransactionTemplate, JdbcTemplate jdbcTemplate)
+            throws SQLException
+    {
+        Connection connection = dataSource.getConnection();
+        try
+        {
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            connection.setReadOnly(true);
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT pg_export_snapshot(), pg_current_snapshot()::text"))
+            {
+                rs.next();
+                return new RecomputeSnapshot(connection, rs.getString(1), rs.getString(2), repeatableReadTransactionTemplate, jdbcTemplate);
+            }
+        }
+        catch (SQLException | RuntimeException e)
+        {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the reads, and any writes depending on them, in a transaction of the calling thread
+     * that sees exactly this snapshot. Only possible until the snapshot is closed.
+     */
+    public <T> T read(TransactionCallback<T> reads)
+    {
+        return repeatableReadTransactionTemplate.execute(status -> {
+            // must come before any other statement of the transaction
+            jdbcTemplate.execute("SET TRANSACTION SNAPSHOT '" + snapshotId + "'");
+            return reads.doInTransaction(status);
+        });
+    }
+
+    // The snapshot as a pg_snapshot literal, still valid after closing
+    public String getSnapshot()
+    {
+        return snapshot;
+    }
+
+    // Ends the exporting transaction, so the snapshot stops holding back vacuum
+    @Override
+    public void close()
+    {
+        try
+        {
+            connection.rollback();
+        }
+        catch (SQLException e)
+        {
+            logger.warn("Could not end the transaction exporting a statistics snapshot: ", e);
+        }
+        finally
+        {
+            try
+            {
+                connection.close();
+            }
+            catch (SQLException e)
+            {
+                logger.warn("Could not close the connection exporting a statistics snapshot: ", e);
+            }
+        }
+    }
+}
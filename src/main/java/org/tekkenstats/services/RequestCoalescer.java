@@ -0,0 +1,60 @@
+package org.tekkenstats.services;
+
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight execution of read computations: concurrent calls with the same key share the
+ * computation of the first one instead of each running its own queries. Nothing is kept once the
+ * computation completes, the next call computes again. Results are shared between the callers,
+ * so they must be complete and not mutated afterwards.
+ */
+@Service
+public class RequestCoalescer {
+
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public <T> T coalesce(String key, Supplier<T> computation)
+    {
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, mine);
+        if (running != null)
+        {
+            try
+            {
+                return (T) running.join();
+            }
+            catch (CompletionException e)
+            {
+                if (e.getCause() instanceof Error error)
+                {
+                    throw error;
+                }
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+
+        try
+        {
+            T result = computation.get();
+            mine.complete(result);
+            return result;
+        }
+        catch (Throwable e)
+        {
+            // errors too, the callers sharing the computation would otherwise wait forever
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            inFlight.remove(key, mine);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package org.tekkenstats.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.SqlParameterValue;
+import org.springframework.stereotype.Service;
+import org.tekkenstats.aggregations.AggregatedStatisticDelta;
+import org.tekkenstats.aggregations.PlayerCharacterData;
+import org.tekkenstats.aggregations.PlayerSketch;
+import org.tekkenstats.aggregations.StatisticCellKey;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Keeps aggregated_statistics up to date between full recomputes.
+ * The ingest path snapshots the character_stats rows of every player in a batch
+ * before and after its upserts, and the difference between the two snapshots is
+ * applied to the affected statistics cells as signed increments. Players entering a cell
+ * are also merged into its player sketch, and into its rollup sketch, unless the stored sketches
+ * already cover them. Sketches saturate quickly, so most batches leave the shared rollup rows
+ * alone. While a statistics run of a game version is in progress
+ * its deltas are logged as well, so that the run's swap can re-apply the ones it did not see,
+ * see {@link AggregatedStatisticsPublisher}.
+ */
+@Service
+public class StatisticsDeltaService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsDeltaService.class);
+
+    private record SketchRollupKey(int gameVersion, String category, String characterId, int danRank) {}
+
+    private static final Comparator<SketchRollupKey> ROLLUP_KEY_ORDER =
+            Comparator.comparingInt(SketchRollupKey::gameVersion)
+                    .thenComparing(SketchRollupKey::category)
+                    .thenComparing(SketchRollupKey::characterId)
+                    .thenComparingInt(SketchRollupKey::danRank);
+
+    // first key of the two-key advisory locks on players, the hash of the player id being the second
+    private static final int PLAYER_LOCK_NAMESPACE = 0x504C5952;
+
+    // first key of the two-key advisory locks on game versions, the game version being the second.
+    // Deltas take them shared, the start and the swap of a statistics run take them exclusively.
+    static final int VERSION_LOCK_NAMESPACE = 0x44454C54;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${statistics.incremental.enabled:true}")
+    private boolean enabled;
+
+    public StatisticsDeltaService(JdbcTemplate jdbcTemplate)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Locks the players of a batch so that concurrent consumers touching the same player
+     * serialize their before/after snapshots. Row locks would miss players that have no row yet,
+     * and two batches introducing the same player would both count its first appearance, so these
+     * are transaction-scoped advisory locks on the player ids, released at commit or rollback.
+     * They are taken in key order, so two batches cannot deadlock on them. Must run inside a transaction.
+     */
+    public void lockPlayers(Collection<String> playerIds)
+    {
+        String[] ids = playerIds.toArray(new String[0]);
+
+        // distinct keys, as ids sharing a hash share their lock
+        jdbcTemplate.query(
+                "SELECT pg_advisory_xact_lock(?, lock_key) FROM (" +
+                "SELECT DISTINCT hashtext(player_id) AS lock_key FROM unnest(?::varchar[]) AS player_id ORDER BY lock_key" +
+                ") ordered_keys",
+                ps -> {
+                    ps.setInt(1, PLAYER_LOCK_NAMESPACE);
+                    ps.setArray(2, ps.getConnection().createArrayOf("varchar", ids));
+                },
+                rs -> {});
+    }
+
+    /**
+     * Loads every character row of the given players for the given game versions,
+     * grouped by player and then by game version.
+     */
+    public Map<String, Map<Integer, List<PlayerCharacterData>>> loadSnapshot(Collection<String> playerIds, Collection<Integer> gameVersions)
+    {
+        Map<String, Map<Integer, List<PlayerCharacterData>>> snapshot = new HashMap<>();
+
+        String sql =
+                "SELECT cs.player_id, cs.character_id, cs.game_version, cs.dan_rank, cs.wins, cs.losses, " +
+                "p.region_id, p.area_id, hashtextextended(cs.player_id, 0) AS player_hash " +
+                "FROM character_stats cs " +
+                "JOIN players p ON cs.player_id = p.player_id " +
+                "WHERE cs.player_id = ANY(?) AND cs.game_version = ANY(?) " +
+                "ORDER BY cs.player_id, cs.game_version, cs.character_id";
+
+        jdbcTemplate.query(sql,
+                ps -> {
+                    ps.setArray(1, ps.getConnection().createArrayOf("varchar", playerIds.toArray()));
+                    ps.setArray(2, ps.getConnection().createArrayOf("integer", gameVersions.toArray()));
+                },
+                rs -> {
+                    // players who do not have a defined region or area are excluded from analysis
+                    int regionId = rs.getInt("region_id");
+                    if (rs.wasNull()) return;
+                    int areaId = rs.getInt("area_id");
+                    if (rs.wasNull()) return;
+
+                    int wins = rs.getInt("wins");
+                    int losses = rs.getInt("losses");
+                    PlayerCharacterData data = new PlayerCharacterData(
+                            rs.getString("character_id"),
+                            rs.getInt("dan_rank"),
+                            wins,
+                            losses,
+                            wins + losses,
+                            regionId,
+                            areaId);
+                    data.setGameVersion(rs.getInt("game_version"));
+                    data.setPlayerHash(rs.getLong("player_hash"));
+
+                    snapshot.computeIfAbsent(rs.getString("player_id"), k -> new HashMap<>())
+                            .computeIfAbsent(data.getGameVersion(), k -> new ArrayList<>())
+                            .add(data);
+                });
+
+        return snapshot;
+    }
+
+    /**
+     * Computes the per-cell changes between two snapshots of the same players and
+     * applies them to aggregated_statistics. Must run in the same transaction as the
+     * upserts that produced the "after" snapshot.
+     */
+    public void applyDeltas(
+            Map<String, Map<Integer, List<PlayerCharacterData>>> before,
+            Map<String, Map<Integer, List<PlayerCharacterData>>> after)
+    {
+        long startTime = System.currentTimeMillis();
+
+        Map<StatisticCellKey, AggregatedStatisticDelta> deltas = new HashMap<>();
+        accumulate(deltas, before, -1);
+        accumulate(deltas, after, 1);
+
+        List<AggregatedStatisticDelta> changedCells = deltas.values().stream()
+                .filter(delta -> !delta.isEmpty())
+                .sorted(Comparator.comparingInt(AggregatedStatisticDelta::getGameVersion)
+                        .thenComparing(AggregatedStatisticDelta::getCharacterId)
+                        .thenComparingInt(AggregatedStatisticDelta::getDanRank)
+                        .thenComparing(AggregatedStatisticDelta::getCategory)
+                        .thenComparingInt(AggregatedStatisticDelta::getRegionId)
+                        .thenComparingInt(AggregatedStatisticDelta::getAreaId))
+                .toList();
+
+        if (changedCells.isEmpty())
+        {
+            return;
+        }
+
+        Set<Integer> rebuilding = lockVersions(changedCells);
+        Map<StatisticCellKey, PlayerSketch> storedSketches = loadCellSketches(changedCells);
+
+        String sql =
+                "INSERT INTO aggregated_statistics (game_version, character_id, dan_rank, category, region_id, area_id, " +
+                "total_wins, total_losses, total_players, total_replays, computed_at, player_sketch) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (game_version, character_id, dan_rank, category, region_id, area_id) DO UPDATE SET " +
+                "total_wins = aggregated_statistics.total_wins + EXCLUDED.total_wins, " +
+                "total_losses = aggregated_statistics.total_losses + EXCLUDED.total_losses, " +
+                "total_players = aggregated_statistics.total_players + EXCLUDED.total_players, " +
+                "total_replays = aggregated_statistics.total_replays + EXCLUDED.total_replays, " +
+                "computed_at = EXCLUDED.computed_at, " +
+                "player_sketch = hll_merge(aggregated_statistics.player_sketch, EXCLUDED.player_sketch)";
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> batchArgs = new ArrayList<>(changedCells.size());
+        for (AggregatedStatisticDelta delta : changedCells)
+        {
+            StatisticCellKey key = new StatisticCellKey(delta.getGameVersion(), delta.getCharacterId(), delta.getDanRank(),
+                    delta.getCategory(), delta.getRegionId(), delta.getAreaId());
+            batchArgs.add(new Object[]{
+                    delta.getGameVersion(),
+                    delta.getCharacterId(),
+                    delta.getDanRank(),
+                    delta.getCategory(),
+                    delta.getRegionId(),
+                    delta.getAreaId(),
+                    delta.getWins(),
+                    delta.getLosses(),
+                    delta.getPlayers(),
+                    delta.getReplays(),
+                    now,
+                    new SqlParameterValue(Types.BINARY, raisingSketch(delta.getAddedPlayers(), storedSketches.get(key)))
+            });
+        }
+
+        jdbcTemplate.batchUpdate(sql, batchArgs);
+        mergeRollupSketches(changedCells);
+        logDeltas(changedCells, rebuilding);
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Aggregated Statistics Delta Upsert: {} ms, Changed Cells: {}", (endTime - startTime), changedCells.size());
+    }
+
+    /**
+     * Locks the game versions of the changed cells against the start and the swap of a statistics run,
+     * and returns the ones with a run in progress. A run cannot start or swap in the middle of the
+     * transaction, so its deltas are either seen by the run's snapshot or logged for its swap.
+     * Taken before any cell is touched and in game version order.
+     */
+    private Set<Integer> lockVersions(List<AggregatedStatisticDelta> changedCells)
+    {
+        Integer[] gameVersions = changedCells.stream()
+                .map(AggregatedStatisticDelta::getGameVersion)
+                .distinct()
+                .toArray(Integer[]::new);
+
+        jdbcTemplate.query(
+                "SELECT pg_advisory_xact_lock_shared(?, game_version) FROM (" +
+                "SELECT game_version FROM unnest(?::integer[]) AS game_version ORDER BY game_version" +
+                ") ordered_versions",
+                ps -> {
+                    ps.setInt(1, VERSION_LOCK_NAMESPACE);
+                    ps.setArray(2, ps.getConnection().createArrayOf("integer", gameVersions));
+                },
+                rs -> {});
+
+        Set<Integer> rebuilding = new HashSet<>();
+        jdbcTemplate.query(
+                "SELECT game_version FROM statistics_rebuilds WHERE game_version = ANY(?)",
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("integer", gameVersions)),
+                rs -> {
+                    rebuilding.add(rs.getInt(1));
+                });
+        return rebuilding;
+    }
+
+    // The stored sketches of the changed cells that have players entering them
+    private Map<StatisticCellKey, PlayerSketch> loadCellSketches(List<AggregatedStatisticDelta> changedCells)
+    {
+        List<AggregatedStatisticDelta> entered = changedCells.stream()
+                .filter(delta -> delta.getAddedPlayers() != null)
+                .toList();
+
+        Map<StatisticCellKey, PlayerSketch> sketches = new HashMap<>();
+        if (entered.isEmpty())
+        {
+            return sketches;
+        }
+
+        jdbcTemplate.query(
+                "SELECT a.game_version, a.character_id, a.dan_rank, a.category, a.region_id, a.area_id, a.player_sketch " +
+                "FROM unnest(?::integer[], ?::varchar[], ?::integer[], ?::varchar[], ?::integer[], ?::integer[]) " +
+                "AS k(game_version, character_id, dan_rank, category, region_id, area_id) " +
+                "JOIN aggregated_statistics a USING (game_version, character_id, dan_rank, category, region_id, area_id) " +
+                "WHERE a.player_sketch IS NOT NULL",
+                ps -> {
+                    ps.setArray(1, ps.getConnection().createArrayOf("integer", entered.stream().map(AggregatedStatisticDelta::getGameVersion).toArray()));
+                    ps.setArray(2, ps.getConnection().createArrayOf("varchar", entered.stream().map(AggregatedStatisticDelta::getCharacterId).toArray()));
+                    ps.setArray(3, ps.getConnection().createArrayOf("integer", entered.stream().map(AggregatedStatisticDelta::getDanRank).toArray()));
+                    ps.setArray(4, ps.getConnection().createArrayOf("varchar", entered.stream().map(AggregatedStatisticDelta::getCategory).toArray()));
+                    ps.setArray(5, ps.getConnection().createArrayOf("integer", entered.stream().map(AggregatedStatisticDelta::getRegionId).toArray()));
+                    ps.setArray(6, ps.getConnection().createArrayOf("integer", entered.stream().map(AggregatedStatisticDelta::getAreaId).toArray()));
+                },
+                rs -> {
+                    sketches.put(new StatisticCellKey(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getString(4), rs.getInt(5), rs.getInt(6)),
+                            PlayerSketch.fromBytes(rs.getBytes(7)));
+                });
+        return sketches;
+    }
+
+    /**
+     * The sketch to merge into a stored one, or null when the stored sketch already covers it.
+     * Registers only grow while the version lock is held, so a sketch covered when read stays covered.
+     */
+    private static byte[] raisingSketch(PlayerSketch added, PlayerSketch stored)
+    {
+        if (added == null || (stored != null && stored.covers(added)))
+        {
+            return null;
+        }
+        return added.toBytes();
+    }
+
+    // Logs the deltas of game versions with a statistics run in progress, stamped with this transaction's id
+    private void logDeltas(List<AggregatedStatisticDelta> changedCells, Set<Integer> rebuilding)
+    {
+        if (rebuilding.isEmpty())
+        {
+            return;
+        }
+
+        List<Object[]> batchArgs = new ArrayList<>();
+        for (AggregatedStatisticDelta delta : changedCells)
+        {
+            if (!rebuilding.contains(delta.getGameVersion()))
+            {
+                continue;
+            }
+            batchArgs.add(new Object[]{
+                    delta.getGameVersion(),
+                    delta.getCharacterId(),
+                    delta.getDanRank(),
+                    delta.getCategory(),
+                    delta.getRegionId(),
+                    delta.getAreaId(),
+                    delta.getWins(),
+                    delta.getLosses(),
+                    delta.getPlayers(),
+                    delta.getReplays(),
+                    // the whole sketch, the swap merges it into the run's sketches rather than the stored ones
+                    new SqlParameterValue(Types.BINARY, delta.getAddedPlayers() == null ? null : delta.getAddedPlayers().toBytes())
+            });
+        }
+
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO aggregated_statistics_delta_log (game_version, character_id, dan_rank, category, region_id, area_id, " +
+                "total_wins, total_losses, total_players, total_replays, player_sketch) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                batchArgs);
+    }
+
+    // Merges the players entering cells into the region and area independent sketch rollups, skipping covered rollups
+    private void mergeRollupSketches(List<AggregatedStatisticDelta> changedCells)
+    {
+        Map<SketchRollupKey, PlayerSketch> rollups = new TreeMap<>(ROLLUP_KEY_ORDER);
+        for (AggregatedStatisticDelta delta : changedCells)
+        {
+            if (delta.getAddedPlayers() == null)
+            {
+                continue;
+            }
+            rollups.computeIfAbsent(new SketchRollupKey(delta.getGameVersion(), delta.getCategory(), delta.getCharacterId(), delta.getDanRank()),
+                            k -> new PlayerSketch())
+                    .merge(delta.getAddedPlayers());
+        }
+
+        if (rollups.isEmpty())
+        {
+            return;
+        }
+
+        Map<SketchRollupKey, PlayerSketch> storedSketches = loadRollupSketches(rollups.keySet());
+        rollups.entrySet().removeIf(entry -> raisingSketch(entry.getValue(), storedSketches.get(entry.getKey())) == null);
+        if (rollups.isEmpty())
+        {
+            return;
+        }
+
+        String sql =
+                "INSERT INTO player_sketch_rollups (game_version, category, character_id, dan_rank, player_sketch) " +
+                "VALUES (?, ?, ?, ?, ?) " +
+                "ON CONFLICT (game_version, category, character_id, dan_rank) DO UPDATE SET " +
+                "player_sketch = hll_merge(player_sketch_rollups.player_sketch, EXCLUDED.player_sketch)";
+
+        // the tree map keeps the rows in key order, which reduces the rate of deadlocks occurring
+        List<Object[]> batchArgs = new ArrayList<>(rollups.size());
+        rollups.forEach((key, sketch) -> batchArgs.add(new Object[]{
+                key.gameVersion(), key.category(), key.characterId(), key.danRank(), sketch.toBytes()}));
+
+        jdbcTemplate.batchUpdate(sql, batchArgs);
+    }
+
+    private Map<SketchRollupKey, PlayerSketch> loadRollupSketches(Collection<SketchRollupKey> keys)
+    {
+        Map<SketchRollupKey, PlayerSketch> sketches = new HashMap<>();
+        jdbcTemplate.query(
+                "SELECT r.game_version, r.category, r.character_id, r.dan_rank, r.player_sketch " +
+                "FROM unnest(?::integer[], ?::varchar[], ?::varchar[], ?::integer[]) " +
+                "AS k(game_version, category, character_id, dan_rank) " +
+                "JOIN player_sketch_rollups r USING (game_version, category, character_id, dan_rank)",
+                ps -> {
+                    ps.setArray(1, ps.getConnection().createArrayOf("integer", keys.stream().map(SketchRollupKey::gameVersion).toArray()));
+                    ps.setArray(2, ps.getConnection().createArrayOf("varchar", keys.stream().map(SketchRollupKey::category).toArray()));
+                    ps.setArray(3, ps.getConnection().createArrayOf("varchar", keys.stream().map(SketchRollupKey::characterId).toArray()));
+                    ps.setArray(4, ps.getConnection().createArrayOf("integer", keys.stream().map(SketchRollupKey::danRank).toArray()));
+                },
+                rs -> {
+                    sketches.put(new SketchRollupKey(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4)),
+                            PlayerSketch.fromBytes(rs.getBytes(5)));
+                });
+        return sketches;
+    }
+
+    private void accumulate(
+            Map<StatisticCellKey, AggregatedStatisticDelta> deltas,
+            Map<String, Map<Integer, List<PlayerCharacterData>>> snapshot,
+            int sign)
+    {
+        for (Map<Integer, List<PlayerCharacterData>> versions : snapshot.values())
+        {
+            for (Map.Entry<Integer, List<PlayerCharacterData>> entry : versions.entrySet())
+            {
+                int gameVersion = entry.getKey();
+                PlayerCharacterData mainCharacter = null;
+
+                for (PlayerCharacterData data : entry.getValue())
+                {
+                    cell(deltas, gameVersion, data, "overall").add(data, sign);
+
+                    if (data.isPlayedMoreThan(mainCharacter))
+                    {
+                        mainCharacter = data;
+                    }
+                }
+
+                if (mainCharacter != null)
+                {
+                    cell(deltas, gameVersion, mainCharacter, "standard").add(mainCharacter, sign);
+                }
+            }
+        }
+    }
+
+    private AggregatedStatisticDelta cell(
+            Map<StatisticCellKey, AggregatedStatisticDelta> deltas,
+            int gameVersion,
+            PlayerCharacterData data,
+            String category)
+    {
+        return deltas.computeIfAbsent(StatisticCellKey.of(gameVersion, data, category), k -> new AggregatedStatisticDelta(
+                gameVersion, data.getCharacterId(), data.getDanRank(), category, data.getRegionID(), data.getAreaID()));
+    }
+}
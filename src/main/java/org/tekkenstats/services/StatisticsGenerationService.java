@@ -0,0 +1,115 @@
+package org.tekkenstats.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.tekkenstats.aggregations.StatisticsGeneration;
+import org.tekkenstats.events.StatisticsPublishedEvent;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the newest published statistics generation of every game version and drops the ones
+ * that have been replaced for longer than the grace period. Requests call {@link #current()} once
+ * and read everything at the generations it returns.
+ * Generations published by other nodes are picked up by the periodic refresh.
+ * Every change of the current view is announced with a {@link StatisticsPublishedEvent}.
+ */
+@Service
+public class StatisticsGenerationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsGenerationService.class);
+
+    // generations replaced by a newer one of their game version more than the grace period ago
+    private static final String RETIRED_GENERATIONS =
+            "SELECT g.generation FROM statistics_generations g " +
+            "WHERE EXISTS (SELECT 1 FROM statistics_generations n " +
+            "WHERE n.game_version = g.game_version AND n.generation > g.generation " +
+            "AND n.published_at < (EXTRACT(EPOCH FROM clock_timestamp()) * 1000)::bigint - ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+
+    private volatile StatisticsGeneration current = StatisticsGeneration.EMPTY;
+
+    // longer than any request can take, so a pinned generation outlives the requests reading it
+    @Value("${statistics.generations.grace-period-minutes:10}")
+    private long gracePeriodMinutes;
+
+    public StatisticsGenerationService(
+            JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            ApplicationEventPublisher eventPublisher)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.eventPublisher = eventPublisher;
+    }
+
+    public StatisticsGeneration current()
+    {
+        // requests arriving before the first scheduled refresh load it themselves
+        if (current == StatisticsGeneration.EMPTY)
+        {
+            refresh();
+        }
+        return current;
+    }
+
+    @Scheduled(fixedDelayString = "${statistics.generations.refresh-interval-ms:5000}")
+    public synchronized void refresh()
+    {
+        Map<Integer, Long> versionGenerations = new HashMap<>();
+        jdbcTemplate.query(
+                "SELECT game_version, MAX(generation) AS generation FROM statistics_generations GROUP BY game_version",
+                rs -> { versionGenerations.put(rs.getInt("game_version"), rs.getLong("generation")); });
+
+        StatisticsGeneration refreshed = StatisticsGeneration.of(versionGenerations);
+        if (refreshed.versionGenerations().equals(current.versionGenerations()))
+        {
+            return;
+        }
+
+        current = refreshed;
+        logger.info("Statistics generation {} is now current", refreshed.generation());
+        eventPublisher.publishEvent(new StatisticsPublishedEvent(refreshed));
+    }
+
+    @Scheduled(fixedDelayString = "${statistics.generations.gc-interval-ms:60000}")
+    public void dropRetiredGenerations()
+    {
+        long grace = TimeUnit.MINUTES.toMillis(gracePeriodMinutes);
+
+        Integer dropped = transactionTemplate.execute(status -> {
+            // retirement depends on the clock, so it is decided once and the other deletes use that list
+            Long[] generations = jdbcTemplate.queryForList(
+                    "DELETE FROM statistics_generations WHERE generation IN (" + RETIRED_GENERATIONS + ") RETURNING generation",
+                    Long.class, grace).toArray(new Long[0]);
+            if (generations.length == 0)
+            {
+                return 0;
+            }
+
+            for (String table : List.of("aggregated_statistics_snapshots", "player_sketch_rollup_snapshots", "rank_band_statistics"))
+            {
+                jdbcTemplate.update("DELETE FROM " + table + " WHERE generation = ANY(?)",
+                        ps -> ps.setArray(1, ps.getConnection().createArrayOf("bigint", generations)));
+            }
+            return generations.length;
+        });
+
+        if (dropped != null && dropped > 0)
+        {
+            logger.info("Dropped {} retired statistics generations", dropped);
+        }
+    }
+}
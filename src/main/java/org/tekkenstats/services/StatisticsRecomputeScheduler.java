@@ -0,0 +1,357 @@
+package org.tekkenstats.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.tekkenstats.dtos.StatisticsFreshnessDTO;
+import org.tekkenstats.events.ReplayProcessingCompletedEvent;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the full statistics recompute of a game version runs.
+ * Every ingested batch marks its game versions dirty. A dirty version is recomputed once it has
+ * been quiet for the minimum delay, or at the latest once it has been dirty for the maximum delay,
+ * so bursts of batches coalesce into one run while steady ingest still gets a bounded staleness.
+ * A version never runs twice at once; changes that arrive during a run leave it dirty again,
+ * which guarantees a follow-up run.
+ * <p>
+ * Across nodes, a run holds a lease on its game version in statistics_recompute_leases, so only
+ * one node recomputes a version at a time without a connection being held for the whole run.
+ * Leases are renewed while their run lasts, on a thread of their own so no other scheduled work can
+ * delay them, and expire when a node dies. A run whose lease was lost anyway, say after a long
+ * stall, gives up: the publisher only swaps or abandons a run while its lease row is still there.
+ * A node that finds the
+ * lease taken backs off for the minimum delay, as the other node's run likely covers its changes,
+ * and once it gets the lease it skips the run if statistics_publications shows a run by another
+ * node that already started after its own changes were committed.
+ */
+@Service
+public class StatisticsRecomputeScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsRecomputeScheduler.class);
+
+    private static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+    private static final String DATABASE_NOW_MS = "(EXTRACT(EPOCH FROM clock_timestamp()) * 1000)::bigint";
+
+    // dirtySince is the first change not covered by a run, lastChange the latest one
+    private record DirtyVersion(long dirtySince, long lastChange) {
+
+        DirtyVersion touch(long now)
+        {
+            return new DirtyVersion(dirtySince, now);
+        }
+
+        DirtyVersion merge(DirtyVersion other)
+        {
+            return new DirtyVersion(Math.min(dirtySince, other.dirtySince), Math.max(lastChange, other.lastChange));
+        }
+    }
+
+    private final StatisticsService statisticsService;
+    private final JdbcTemplate jdbcTemplate;
+    private final Executor statisticsExecutor;
+
+    // all state below is guarded by the scheduler itself
+    private final Map<Integer, DirtyVersion> dirty = new HashMap<>();
+    private final Map<Integer, DirtyVersion> running = new HashMap<>();
+    // leases of the runs of this node, and when versions whose lease was taken may try again
+    private final Map<Integer, RecomputeLease> leases = new HashMap<>();
+    private final Map<Integer, Long> backedOffUntil = new HashMap<>();
+
+    @Value("${statistics.reconciliation.min-delay-minutes:10}")
+    private long minDelayMinutes;
+
+    @Value("${statistics.reconciliation.max-delay-minutes:60}")
+    private long maxDelayMinutes;
+
+    // several times the renew interval, so a lease only expires once its node stopped renewing it
+    @Value("${statistics.reconciliation.lease-minutes:5}")
+    private long leaseMinutes;
+
+    @Value("${statistics.reconciliation.lease-renew-interval-ms:60000}")
+    private long leaseRenewIntervalMs;
+
+    private final ScheduledExecutorService leaseRenewal = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("statistics-lease-renewal").daemon().factory());
+
+    public StatisticsRecomputeScheduler(
+            StatisticsService statisticsService,
+            JdbcTemplate jdbcTemplate,
+            @Qualifier("statisticsThreadExecutor") Executor statisticsExecutor)
+    {
+        this.statisticsService = statisticsService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.statisticsExecutor = statisticsExecutor;
+    }
+
+    @PostConstruct
+    public void startLeaseRenewal()
+    {
+        leaseRenewal.scheduleWithFixedDelay(this::renewLeases, leaseRenewIntervalMs, leaseRenewIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stopLeaseRenewal()
+    {
+        leaseRenewal.shutdownNow();
+    }
+
+    @EventListener
+    public void onReplayDataProcessed(ReplayProcessingCompletedEvent event)
+    {
+        long now = System.currentTimeMillis();
+        synchronized (this)
+        {
+            for (Integer gameVersion : event.getGameVersions())
+            {
+                dirty.merge(gameVersion, new DirtyVersion(now, now), (existing, added) -> existing.touch(now));
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${statistics.reconciliation.check-interval-ms:5000}")
+    public void startDueRecomputes()
+    {
+        long now = System.currentTimeMillis();
+        long minDelay = TimeUnit.MINUTES.toMillis(minDelayMinutes);
+        long maxDelay = TimeUnit.MINUTES.toMillis(maxDelayMinutes);
+
+        List<Integer> due = new ArrayList<>();
+        synchronized (this)
+        {
+            Iterator<Map.Entry<Integer, DirtyVersion>> entries = dirty.entrySet().iterator();
+            while (entries.hasNext())
+            {
+                Map.Entry<Integer, DirtyVersion> entry = entries.next();
+                int gameVersion = entry.getKey();
+                DirtyVersion state = entry.getValue();
+
+                boolean quiet = now - state.lastChange() >= minDelay;
+                boolean overdue = now - state.dirtySince() >= maxDelay;
+                boolean backedOff = now < backedOffUntil.getOrDefault(gameVersion, 0L);
+                if (running.containsKey(gameVersion) || backedOff || !(quiet || overdue))
+                {
+                    continue;
+                }
+                backedOffUntil.remove(gameVersion);
+
+                // taken out of the dirty set before the run reads anything, so later changes mark it again
+                running.put(gameVersion, state);
+                entries.remove();
+                due.add(gameVersion);
+            }
+        }
+
+        // game versions are independent of each other, so they are computed concurrently
+        for (int gameVersion : due)
+        {
+            CompletableFuture.runAsync(() -> recompute(gameVersion), statisticsExecutor);
+        }
+    }
+
+    private void recompute(int gameVersion)
+    {
+        DirtyVersion covered;
+        synchronized (this)
+        {
+            covered = running.get(gameVersion);
+        }
+
+        boolean published = false;
+        boolean contended = false;
+        try
+        {
+            long localNow = System.currentTimeMillis();
+            String leaseId = UUID.randomUUID().toString();
+            List<Long> acquired = jdbcTemplate.queryForList(
+                    "INSERT INTO statistics_recompute_leases (game_version, lease_id, node, acquired_at, expires_at) " +
+                    "VALUES (?, ?, ?, " + DATABASE_NOW_MS + ", " + DATABASE_NOW_MS + " + ?) " +
+                    "ON CONFLICT (game_version) DO UPDATE SET " +
+                    "lease_id = EXCLUDED.lease_id, " +
+                    "node = EXCLUDED.node, " +
+                    "acquired_at = EXCLUDED.acquired_at, " +
+                    "expires_at = EXCLUDED.expires_at " +
+                    "WHERE statistics_recompute_leases.expires_at < EXCLUDED.acquired_at " +
+                    "RETURNING acquired_at",
+                    Long.class, gameVersion, leaseId, NODE, TimeUnit.MINUTES.toMillis(leaseMinutes));
+
+            if (acquired.isEmpty())
+            {
+                logger.info("Game version {} is being recomputed by another node, backing off.", gameVersion);
+                contended = true;
+            }
+            else
+            {
+                // includes the round trip, which only errs towards running again
+                long startedAt = acquired.get(0);
+                published = recomputeUnderLease(new RecomputeLease(gameVersion, leaseId), covered, startedAt, startedAt - localNow);
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Error computing statistics for game version {}, it stays dirty: ", gameVersion, e);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                running.remove(gameVersion);
+                if (!published)
+                {
+                    dirty.merge(gameVersion, covered, DirtyVersion::merge);
+                }
+                if (contended)
+                {
+                    backedOffUntil.put(gameVersion, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(minDelayMinutes));
+                }
+            }
+        }
+    }
+
+    // Returns whether the changes covered by the run are published, by this node or another one
+    private boolean recomputeUnderLease(RecomputeLease lease, DirtyVersion covered, long startedAt, long clockOffset)
+    {
+        int gameVersion = lease.getGameVersion();
+        synchronized (this)
+        {
+            leases.put(gameVersion, lease);
+        }
+
+        try
+        {
+            List<Long> lastStarts = jdbcTemplate.queryForList(
+                    "SELECT started_at FROM statistics_publications WHERE game_version = ?", Long.class, gameVersion);
+            if (!lastStarts.isEmpty() && lastStarts.get(0) >= covered.lastChange() + clockOffset)
+            {
+                logger.info("Game version {} was already recomputed by another node since its last change.", gameVersion);
+                return true;
+            }
+
+            statisticsService.processGameVersionStatistics(lease);
+
+            jdbcTemplate.update(
+                    "INSERT INTO statistics_publications (game_version, started_at, published_at, node) " +
+                    "VALUES (?, ?, " + DATABASE_NOW_MS + ", ?) " +
+                    "ON CONFLICT (game_version) DO UPDATE SET " +
+                    "started_at = EXCLUDED.started_at, " +
+                    "published_at = EXCLUDED.published_at, " +
+                    "node = EXCLUDED.node",
+                    gameVersion, startedAt, NODE);
+            return true;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                leases.remove(gameVersion);
+            }
+            jdbcTemplate.update("DELETE FROM statistics_recompute_leases WHERE game_version = ? AND lease_id = ?",
+                    gameVersion, lease.getLeaseId());
+        }
+    }
+
+    // Keeps the leases of the runs in progress from expiring, and marks the ones already lost so their runs give up
+    private void renewLeases()
+    {
+        List<RecomputeLease> held;
+        synchronized (this)
+        {
+            held = new ArrayList<>(leases.values());
+        }
+        if (held.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            String[] leaseIds = held.stream().map(RecomputeLease::getLeaseId).toArray(String[]::new);
+            Set<String> renewed = new HashSet<>(jdbcTemplate.query(
+                    "UPDATE statistics_recompute_leases SET expires_at = " + DATABASE_NOW_MS + " + ? " +
+                    "WHERE lease_id = ANY(?) RETURNING lease_id",
+                    ps -> {
+                        ps.setLong(1, TimeUnit.MINUTES.toMillis(leaseMinutes));
+                        ps.setArray(2, ps.getConnection().createArrayOf("varchar", leaseIds));
+                    },
+                    (rs, rowNum) -> rs.getString("lease_id")));
+
+            for (RecomputeLease lease : held)
+            {
+                if (!renewed.contains(lease.getLeaseId()))
+                {
+                    logger.warn("The statistics recompute lease of game version {} was lost, abandoning its run", lease.getGameVersion());
+                    lease.markLost();
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            // the leases stay valid until they expire, the next renewal tries again
+            logger.error("Could not renew the statistics recompute leases: ", e);
+        }
+    }
+
+    /**
+     * Staleness of the full recompute per game version: how long the oldest change ingested by
+     * this node and not yet covered by a published run has been waiting, next to the last run
+     * published by any node. Ingest deltas keep the published counts current in between, so this
+     * bounds the drift a recompute would reconcile.
+     */
+    public List<StatisticsFreshnessDTO> getFreshness()
+    {
+        Map<Integer, Long> lastPublished = new HashMap<>();
+        jdbcTemplate.query("SELECT game_version, started_at FROM statistics_publications",
+                rs -> { lastPublished.put(rs.getInt("game_version"), rs.getLong("started_at")); });
+
+        long now = System.currentTimeMillis();
+
+        Set<Integer> gameVersions = new TreeSet<>(Comparator.reverseOrder());
+        List<StatisticsFreshnessDTO> freshness = new ArrayList<>();
+        synchronized (this)
+        {
+            gameVersions.addAll(dirty.keySet());
+            gameVersions.addAll(running.keySet());
+            gameVersions.addAll(lastPublished.keySet());
+
+            for (int gameVersion : gameVersions)
+            {
+                DirtyVersion pending = dirty.get(gameVersion);
+                DirtyVersion inFlight = running.get(gameVersion);
+
+                Long oldestChange = null;
+                if (pending != null) oldestChange = pending.dirtySince();
+                if (inFlight != null) oldestChange = oldestChange == null ? inFlight.dirtySince() : Math.min(oldestChange, inFlight.dirtySince());
+
+                freshness.add(new StatisticsFreshnessDTO(
+                        gameVersion,
+                        toDateTime(lastPublished.get(gameVersion)),
+                        toDateTime(oldestChange),
+                        oldestChange == null ? 0 : (now - oldestChange) / 1000,
+                        inFlight != null));
+            }
+        }
+        return freshness;
+    }
+
+    private static LocalDateTime toDateTime(Long epochMillis)
+    {
+        return epochMillis == null ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+}
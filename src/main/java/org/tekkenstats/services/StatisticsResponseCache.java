@@ -0,0 +1,271 @@
+package org.tekkenstats.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.tekkenstats.aggregations.StatisticsGeneration;
+import org.tekkenstats.events.StatisticsPublishedEvent;
+import org.tekkenstats.events.StatisticsResponsesRebuiltEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serialized responses of the statistics endpoints, kept per endpoint and parameter set as UTF-8
+ * JSON and as gzip, with a strong ETag each. The data behind them only changes with a statistics
+ * publish, so every response is rebuilt once per new generation, right after the
+ * {@link StatisticsPublishedEvent}, and requests are served from memory until then.
+ * Only the first request of a parameter set builds its response on the request path.
+ * A parameter set nobody requested for a whole generation is dropped instead of rebuilt.
+ * Once a rebuild is done it is announced with a {@link StatisticsResponsesRebuiltEvent}.
+ */
+@Service
+public class StatisticsResponseCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsResponseCache.class);
+
+    public static final String GENERATION_HEADER = "X-Statistics-Generation";
+
+    private record CachedResponse(long generation, byte[] json, byte[] gzip, String etag, String gzipEtag) {}
+
+    // builder of the body at a generation, and the response it last built
+    private static class CachedEndpoint {
+        final Function<StatisticsGeneration, Object> builder;
+        volatile CachedResponse response;
+        // requested since the last rebuild
+        volatile boolean requested = true;
+
+        CachedEndpoint(Function<StatisticsGeneration, Object> builder)
+        {
+            this.builder = builder;
+        }
+    }
+
+    private final StatisticsGenerationService statisticsGenerationService;
+    private final ObjectMapper objectMapper;
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final Map<String, CachedEndpoint> endpoints = new ConcurrentHashMap<>();
+
+    // parameter sets beyond this are served without caching, so arbitrary parameters cannot grow the cache
+    @Value("${statistics.response-cache.max-entries:1000}")
+    private int maxEntries;
+
+    public StatisticsResponseCache(
+            StatisticsGenerationService statisticsGenerationService,
+            ObjectMapper objectMapper,
+            ApplicationEventPublisher eventPublisher)
+    {
+        this.statisticsGenerationService = statisticsGenerationService;
+        this.objectMapper = objectMapper;
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * Serves the cached response of the key, building it first if the key is new. A response built
+     * from an older generation is still served while the rebuild for the new one is running,
+     * it is a complete, consistent view of its own generation.
+     */
+    public ResponseEntity<byte[]> respond(String key, HttpServletRequest request, Function<StatisticsGeneration, Object> builder)
+    {
+        CachedEndpoint endpoint = endpoints.get(key);
+        if (endpoint == null)
+        {
+            if (endpoints.size() >= maxEntries)
+            {
+                return toResponse(build(builder, statisticsGenerationService.current()), request);
+            }
+            endpoint = endpoints.computeIfAbsent(key, k -> new CachedEndpoint(builder));
+        }
+        endpoint.requested = true;
+
+        CachedResponse response = endpoint.response;
+        if (response == null)
+        {
+            synchronized (endpoint)
+            {
+                if (endpoint.response == null)
+                {
+                    endpoint.response = build(endpoint.builder, statisticsGenerationService.current());
+                }
+                response = endpoint.response;
+            }
+        }
+        return toResponse(response, request);
+    }
+
+    @EventListener
+    @Async("statisticsThreadExecutor")
+    public void onStatisticsPublished(StatisticsPublishedEvent event)
+    {
+        long startTime = System.currentTimeMillis();
+        StatisticsGeneration generation = event.getGeneration();
+
+        int rebuilt = 0;
+        int evicted = 0;
+        for (Map.Entry<String, CachedEndpoint> entry : endpoints.entrySet())
+        {
+            CachedEndpoint endpoint = entry.getValue();
+            if (!endpoint.requested)
+            {
+                // the next request builds it again on its path
+                endpoints.remove(entry.getKey(), endpoint);
+                evicted++;
+                continue;
+            }
+            endpoint.requested = false;
+
+            try
+            {
+                CachedResponse response = build(endpoint.builder, generation);
+                synchronized (endpoint)
+                {
+                    // a slower rebuild for an older generation must not overwrite a newer one
+                    if (endpoint.response == null || endpoint.response.generation() <= generation.generation())
+                    {
+                        endpoint.response = response;
+                    }
+                }
+                rebuilt++;
+            }
+            catch (Exception e)
+            {
+                logger.error("Error rebuilding cached response {}, serving the previous one: ", entry.getKey(), e);
+            }
+        }
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Statistics Response Cache Rebuilt for generation {}: {} ms, Responses: {}, Evicted: {}",
+                generation.generation(), (endTime - startTime), rebuilt, evicted);
+        eventPublisher.publishEvent(new StatisticsResponsesRebuiltEvent(generation));
+    }
+
+    private CachedResponse build(Function<StatisticsGeneration, Object> builder, StatisticsGeneration generation)
+    {
+        byte[] json;
+        try
+        {
+            json = objectMapper.writeValueAsBytes(builder.apply(generation));
+        }
+        catch (JsonProcessingException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        String tag = generation.generation() + "-" + Long.toHexString(crc.getValue());
+
+        // strong ETags identify exact bytes, so the two encodings get different ones
+        return new CachedResponse(generation.generation(), json, gzip(json), "\"" + tag + "\"", "\"" + tag + "-gzip\"");
+    }
+
+    private static ResponseEntity<byte[]> toResponse(CachedResponse response, HttpServletRequest request)
+    {
+        boolean gzip = acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        String etag = gzip ? response.gzipEtag() : response.etag();
+
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*")))
+        {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(etag)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .header(GENERATION_HEADER, String.valueOf(response.generation()))
+                    .build();
+        }
+
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(etag)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .header(GENERATION_HEADER, String.valueOf(response.generation()));
+        if (gzip)
+        {
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(response.gzip());
+        }
+        return builder.body(response.json());
+    }
+
+    /**
+     * Whether an Accept-Encoding header allows gzip: listed with a non-zero quality, or not listed
+     * while "*" is. "gzip;q=0" refuses it.
+     */
+    public static boolean acceptsGzip(String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+        {
+            return false;
+        }
+
+        Boolean wildcard = null;
+        for (String coding : acceptEncoding.split(","))
+        {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = quality(parameters) > 0;
+            if (name.equals("gzip") || name.equals("x-gzip"))
+            {
+                return accepted;
+            }
+            if (name.equals("*"))
+            {
+                wildcard = accepted;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    // the q parameter of a coding, 1 when absent and 0 when unreadable
+    private static double quality(String[] parameters)
+    {
+        for (int i = 1; i < parameters.length; i++)
+        {
+            String parameter = parameters[i].trim();
+            if (parameter.length() > 2 && parameter.regionMatches(true, 0, "q=", 0, 2))
+            {
+                try
+                {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    private static byte[] gzip(byte[] bytes)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out))
+        {
+            gzip.write(bytes);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,247 @@
+package org.tekkenstats.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.tekkenstats.aggregations.RollupBucketKey;
+import org.tekkenstats.dtos.CharacterWindowStatisticDTO;
+import org.tekkenstats.dtos.WindowStatisticsDTO;
+import org.tekkenstats.models.Battle;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maintains time-bucketed character results so that rolling windows (last 24 hours, last 7 days,
+ * patch to date) are answered by summing a bounded number of buckets instead of scanning battles.
+ * Ingest adds every newly inserted battle to an hourly bucket, and hourly buckets older than the
+ * retention are compacted into daily ones.
+ */
+@Service
+public class StatisticsRollupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsRollupService.class);
+
+    private static final long SECONDS_PER_HOUR = 3600;
+    private static final long SECONDS_PER_DAY = 86400;
+    private static final Pattern ROLLING_WINDOW = Pattern.compile("(\\d+)([hd])");
+    public static final String PATCH_WINDOW = "patch";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${statistics.rollups.hourly-retention-hours:48}")
+    private long hourlyRetentionHours;
+
+    public StatisticsRollupService(JdbcTemplate jdbcTemplate)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Adds both sides of the given battles to their hourly buckets.
+     * Must only be given battles that were actually inserted, in the transaction that inserted them,
+     * so that a battle is never counted twice.
+     */
+    public void recordBattles(Collection<Battle> insertedBattles)
+    {
+        if (insertedBattles.isEmpty())
+        {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        Map<RollupBucketKey, int[]> buckets = new HashMap<>();
+        for (Battle battle : insertedBattles)
+        {
+            long bucketStart = battle.getBattleAt() - Math.floorMod(battle.getBattleAt(), SECONDS_PER_HOUR);
+
+            // players who do not have a defined region are excluded from analysis
+            if (battle.getPlayer1RegionId() != null)
+            {
+                int[] counts = buckets.computeIfAbsent(new RollupBucketKey(bucketStart, battle.getGameVersion(),
+                        String.valueOf(battle.getPlayer1CharacterId()), battle.getPlayer1DanRank(), battle.getPlayer1RegionId()),
+                        k -> new int[2]);
+                counts[battle.getWinner() == 1 ? 0 : 1]++;
+            }
+            if (battle.getPlayer2RegionId() != null)
+            {
+                int[] counts = buckets.computeIfAbsent(new RollupBucketKey(bucketStart, battle.getGameVersion(),
+                        String.valueOf(battle.getPlayer2CharacterId()), battle.getPlayer2DanRank(), battle.getPlayer2RegionId()),
+                        k -> new int[2]);
+                counts[battle.getWinner() == 2 ? 0 : 1]++;
+            }
+        }
+
+        String sql =
+                "INSERT INTO character_rollups_hourly (bucket_start, game_version, character_id, dan_rank, region_id, wins, losses) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (bucket_start, game_version, character_id, dan_rank, region_id) DO UPDATE SET " +
+                "wins = character_rollups_hourly.wins + EXCLUDED.wins, " +
+                "losses = character_rollups_hourly.losses + EXCLUDED.losses";
+
+        List<Object[]> batchArgs = new ArrayList<>(buckets.size());
+        for (Map.Entry<RollupBucketKey, int[]> entry : buckets.entrySet())
+        {
+            RollupBucketKey key = entry.getKey();
+            batchArgs.add(new Object[]{
+                    key.bucketStart(),
+                    key.gameVersion(),
+                    key.characterId(),
+                    key.danRank(),
+                    key.regionId(),
+                    entry.getValue()[0],
+                    entry.getValue()[1]
+            });
+        }
+
+        // Sorting to reduce the rate of deadlocks occurring
+        batchArgs.sort(Comparator.comparing((Object[] args) -> (Long) args[0])
+                .thenComparing(args -> (Integer) args[1])
+                .thenComparing(args -> (String) args[2])
+                .thenComparing(args -> (Integer) args[3])
+                .thenComparing(args -> (Integer) args[4]));
+
+        jdbcTemplate.batchUpdate(sql, batchArgs);
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Character Rollup Upsert: {} ms, Buckets: {}", (endTime - startTime), batchArgs.size());
+    }
+
+    /**
+     * Folds every hourly bucket of a UTC day that is entirely past the hourly retention into its daily bucket.
+     * Moving the rows is a single statement, so a late battle landing in an old hour is either
+     * moved in this run or left for the next one, never dropped.
+     */
+    @Scheduled(fixedRateString = "${statistics.rollups.compaction-interval-ms:3600000}")
+    public void compactExpiredBuckets()
+    {
+        long startTime = System.currentTimeMillis();
+
+        long retentionStart = Instant.now().getEpochSecond() - hourlyRetentionHours * SECONDS_PER_HOUR;
+        long cutoff = retentionStart - Math.floorMod(retentionStart, SECONDS_PER_DAY);
+
+        String sql =
+                "WITH expired AS (" +
+                "DELETE FROM character_rollups_hourly WHERE bucket_start < ? " +
+                "RETURNING bucket_start, game_version, character_id, dan_rank, region_id, wins, losses) " +
+                "INSERT INTO character_rollups_daily (bucket_start, game_version, character_id, dan_rank, region_id, wins, losses) " +
+                "SELECT bucket_start - bucket_start % " + SECONDS_PER_DAY + ", game_version, character_id, dan_rank, region_id, " +
+                "SUM(wins), SUM(losses) " +
+                "FROM expired " +
+                "GROUP BY 1, game_version, character_id, dan_rank, region_id " +
+                "ON CONFLICT (bucket_start, game_version, character_id, dan_rank, region_id) DO UPDATE SET " +
+                "wins = character_rollups_daily.wins + EXCLUDED.wins, " +
+                "losses = character_rollups_daily.losses + EXCLUDED.losses";
+
+        try
+        {
+            int compacted = jdbcTemplate.update(sql, cutoff);
+
+            long endTime = System.currentTimeMillis();
+            logger.info("Character Rollup Compaction: {} ms, Daily Buckets Updated: {}", (endTime - startTime), compacted);
+        }
+        catch (Exception e)
+        {
+            logger.error("Error compacting character rollups: ", e);
+        }
+    }
+
+    /**
+     * Sums the buckets of a window per character. The window is either "patch" (everything recorded
+     * for the game version) or a rolling window such as "24h" or "7d" ending now.
+     * Optional filters restrict the game version, an inclusive dan rank range and the region.
+     */
+    public WindowStatisticsDTO getWindowStatistics(String window, Integer gameVersion, Integer minRank, Integer maxRank, Integer regionId)
+    {
+        long now = Instant.now().getEpochSecond();
+        long windowStart;
+
+        if (PATCH_WINDOW.equalsIgnoreCase(window))
+        {
+            if (gameVersion == null)
+            {
+                gameVersion = findLatestGameVersion();
+            }
+            windowStart = 0;
+        }
+        else
+        {
+            Matcher matcher = ROLLING_WINDOW.matcher(window);
+            if (!matcher.matches())
+            {
+                throw new IllegalArgumentException("Unsupported window: " + window);
+            }
+            long length = Long.parseLong(matcher.group(1)) * (matcher.group(2).equals("h") ? SECONDS_PER_HOUR : SECONDS_PER_DAY);
+            windowStart = now - length;
+        }
+
+        // the hourly and daily tables never hold the same battle, so the window is the sum of both,
+        // each side starting at the boundary of its own bucket size
+        long hourlyStart = windowStart - Math.floorMod(windowStart, SECONDS_PER_HOUR);
+        long dailyStart = windowStart - Math.floorMod(windowStart, SECONDS_PER_DAY);
+
+        StringBuilder filters = new StringBuilder();
+        List<Object> filterArgs = new ArrayList<>();
+        if (gameVersion != null)
+        {
+            filters.append(" AND game_version = ?");
+            filterArgs.add(gameVersion);
+        }
+        if (minRank != null)
+        {
+            filters.append(" AND dan_rank >= ?");
+            filterArgs.add(minRank);
+        }
+        if (maxRank != null)
+        {
+            filters.append(" AND dan_rank <= ?");
+            filterArgs.add(maxRank);
+        }
+        if (regionId != null)
+        {
+            filters.append(" AND region_id = ?");
+            filterArgs.add(regionId);
+        }
+
+        String sql =
+                "SELECT character_id, SUM(wins) AS total_wins, SUM(losses) AS total_losses FROM (" +
+                "SELECT character_id, wins, losses FROM character_rollups_hourly WHERE bucket_start >= ?" + filters +
+                " UNION ALL " +
+                "SELECT character_id, wins, losses FROM character_rollups_daily WHERE bucket_start >= ?" + filters +
+                ") buckets " +
+                "GROUP BY character_id " +
+                "ORDER BY character_id";
+
+        List<Object> args = new ArrayList<>();
+        args.add(hourlyStart);
+        args.addAll(filterArgs);
+        args.add(dailyStart);
+        args.addAll(filterArgs);
+
+        List<CharacterWindowStatisticDTO> characters = jdbcTemplate.query(sql, (rs, rowNum) -> {
+            long wins = rs.getLong("total_wins");
+            long losses = rs.getLong("total_losses");
+            long replays = wins + losses;
+            double winrate = replays == 0 ? 0 : Math.round(wins * 10000.0 / replays) / 100.0;
+            return new CharacterWindowStatisticDTO(rs.getString("character_id"), wins, losses, replays, winrate);
+        }, args.toArray());
+
+        return new WindowStatisticsDTO(window, gameVersion, dailyStart, now, characters);
+    }
+
+    private Integer findLatestGameVersion()
+    {
+        return jdbcTemplate.queryForObject(
+                "SELECT MAX(game_version) FROM (" +
+                "SELECT MAX(game_version) AS game_version FROM character_rollups_hourly " +
+                "UNION ALL " +
+                "SELECT MAX(game_version) FROM character_rollups_daily) versions",
+                Integer.class);
+    }
+}
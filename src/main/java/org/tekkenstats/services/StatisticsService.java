@@ -2,271 +2,95 @@ package org.tekkenstats.services;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.context.event.EventListener;
-import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.tekkenstats.aggregations.AggregatedStatistic;
-import org.tekkenstats.aggregations.AggregatedStatisticId;
-import org.tekkenstats.aggregations.PlayerCharacterData;
-import org.tekkenstats.events.ReplayProcessingCompletedEvent;
+import org.tekkenstats.aggregations.StatisticsAccumulator;
 import org.tekkenstats.repositories.AggregatedStatisticsRepository;
-import org.tekkenstats.repositories.CharacterStatsRepository;
 
 import java.time.LocalDateTime;
-import java.util.*;
-import java.util.concurrent.Executor;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 @Service
 public class StatisticsService {
 
-    private final CharacterStatsRepository characterStatsRepository;
     private final AggregatedStatisticsRepository aggregatedStatisticsRepository;
-    private final Executor statisticsExecutor;
+    private final StatisticsStreamingEngine statisticsStreamingEngine;
+    private final AggregatedStatisticsPublisher aggregatedStatisticsPublisher;
+    private final StatisticsGenerationService statisticsGenerationService;
     private static final Logger logger = LoggerFactory.getLogger(StatisticsService.class);
-    private final AtomicBoolean isProcessing = new AtomicBoolean(false);
+
+    // "sql" aggregates inside Postgres, "jvm" streams character_stats and aggregates in memory
+    @Value("${statistics.aggregation.mode:sql}")
+    private String aggregationMode;
 
     public StatisticsService(
-            CharacterStatsRepository characterStatsRepository,
             AggregatedStatisticsRepository aggregatedStatisticsRepository,
-            @Qualifier("statisticsThreadExecutor") Executor statisticsExecutor) {
-        this.characterStatsRepository = characterStatsRepository;
+            StatisticsStreamingEngine statisticsStreamingEngine,
+            AggregatedStatisticsPublisher aggregatedStatisticsPublisher,
+            StatisticsGenerationService statisticsGenerationService) {
         this.aggregatedStatisticsRepository = aggregatedStatisticsRepository;
-        this.statisticsExecutor = statisticsExecutor;
-    }
-
-    @EventListener
-    @Async("statisticsThreadExecutor")
-    public void onReplayDataProcessed(ReplayProcessingCompletedEvent event)
-    {
-        if (!isProcessing.compareAndSet(false, true))
-        {
-            logger.info("Statistics computation already in progress.");
-            return;
-        }
-
-        try
-        {
-            logger.info("Computing statistics.");
-
-            for (int gameVersion : event.getGameVersions())
-            {
-                processGameVersionStatistics(gameVersion);
-            }
-
-        } catch (Exception e)
-        {
-            logger.error("Error computing statistics: ", e);
-        } finally
-        {
-            isProcessing.set(false);
-            logger.info("Statistics computation done.");
-        }
+        this.statisticsStreamingEngine = statisticsStreamingEngine;
+        this.aggregatedStatisticsPublisher = aggregatedStatisticsPublisher;
+        this.statisticsGenerationService = statisticsGenerationService;
     }
 
-    private void processGameVersionStatistics(int gameVersion) {
+    /**
+     * Full recompute of one game version's aggregates from character_stats. Ingest keeps the aggregates
+     * current through {@link StatisticsDeltaService}, so this only runs to reconcile any drift, whenever
+     * {@link StatisticsRecomputeScheduler} finds the version due. Every read of the run goes through
+     * one snapshot, and deltas committed after it are re-applied by the swap. The run gives up as
+     * soon as its lease is found lost, and the publisher refuses to swap it in without the lease.
+     */
+    public void processGameVersionStatistics(RecomputeLease lease) {
+        int gameVersion = lease.getGameVersion();
         logger.info("Processing statistics for game version: " + gameVersion);
-        List<Object[]> allStats = characterStatsRepository.findAllStatsByGameVersion(gameVersion);
 
-        // Load existing statistics for 'standard' category
-        List<AggregatedStatistic> existingStatsStandard = aggregatedStatisticsRepository.findByIdGameVersionAndIdCategory(gameVersion, "standard");
-        Map<AggregatedStatisticId, AggregatedStatistic> existingStatsMapStandard = existingStatsStandard.stream()
-                .collect(Collectors.toMap(AggregatedStatistic::getId, Function.identity()));
-
-        Map<String, PlayerCharacterData> playerMainCharacters = identifyPlayerMainCharacters(allStats);
-        Map<AggregatedStatisticId, AggregatedStatistic> mainAggregatedData = aggregateStatistics(playerMainCharacters, "standard", gameVersion, existingStatsMapStandard);
-        saveAggregatedStatistics(mainAggregatedData.values());
-
-        // Load existing statistics for 'overall' category
-        List<AggregatedStatistic> existingStatsOverall = aggregatedStatisticsRepository.findByIdGameVersionAndIdCategory(gameVersion, "overall");
-        Map<AggregatedStatisticId, AggregatedStatistic> existingStatsMapOverall = existingStatsOverall.stream()
-                .collect(Collectors.toMap(AggregatedStatistic::getId, Function.identity()));
-
-        Map<String, List<PlayerCharacterData>> allPlayerCharacters = getAllPlayerCharacters(allStats);
-        Map<AggregatedStatisticId, AggregatedStatistic> overallAggregatedData = aggregateOverallStatistics(allPlayerCharacters, gameVersion, existingStatsMapOverall);
-        saveAggregatedStatistics(overallAggregatedData.values());
-    }
-
-    private Map<String, PlayerCharacterData> identifyPlayerMainCharacters(List<Object[]> stats) {
-        Map<String, PlayerCharacterData> playerDataMap = new HashMap<>();
-        for (Object[] row : stats)
+        boolean swapped = false;
+        RecomputeSnapshot snapshot = aggregatedStatisticsPublisher.beginRun(gameVersion, lease.getLeaseId());
+        try
         {
-            // Skip if the row doesn't have all required elements
-            // players who do not have a defined region or area are excluded from analysis
-            if (row[5] == null || row[6] == null)
-            {
-                continue;
-            }
-
-            try
+            try (snapshot)
             {
-                String playerId = (String) row[0];
-                String characterId = (String) row[1];
-                int danRank = ((Number) row[2]).intValue();
-                int wins = ((Number) row[3]).intValue();
-                int losses = ((Number) row[4]).intValue();
-                int regionId = ((Number) row[5]).intValue();
-                int areaId = ((Number) row[6]).intValue();
-                int totalPlays = wins + losses;
-
-                PlayerCharacterData currentData = playerDataMap.get(playerId);
-                if (currentData == null || totalPlays > currentData.getTotalPlays())
+                if ("sql".equalsIgnoreCase(aggregationMode))
                 {
-                    playerDataMap.put(playerId, new PlayerCharacterData(characterId, danRank, wins, losses, totalPlays, regionId, areaId));
+                    processGameVersionStatisticsInDatabase(gameVersion, snapshot);
+                }
+                else
+                {
+                    StatisticsAccumulator statistics = statisticsStreamingEngine.compute(gameVersion, snapshot);
+                    lease.checkHeld();
+                    aggregatedStatisticsPublisher.stage(statistics.toAggregatedStatistics(LocalDateTime.now()));
                 }
-            } catch (ClassCastException | NullPointerException e)
-            {
-                logger.error("Error computing statistics for main characters: ", e);
-            }
-        }
-        return playerDataMap;
-    }
 
-    private Map<String, List<PlayerCharacterData>> getAllPlayerCharacters(List<Object[]> stats) {
-        Map<String, List<PlayerCharacterData>> playerDataMap = new HashMap<>();
-        for (Object[] row : stats)
-        {
-            if (row[5] == null || row[6] == null)
-            {
-                continue;
+                lease.checkHeld();
+                aggregatedStatisticsPublisher.stageSketches(gameVersion, snapshot);
             }
 
-            String playerId = (String) row[0];
-            String characterId = (String) row[1];
-            int danRank = ((Number) row[2]).intValue();
-            int wins = ((Number) row[3]).intValue();
-            int losses = ((Number) row[4]).intValue();
-            int regionId = ((Number) row[5]).intValue();  // New field
-            int areaId = ((Number) row[6]).intValue();    // New field
-            int totalPlays = wins + losses;
-
-            playerDataMap.computeIfAbsent(playerId, k -> new ArrayList<>())
-                    .add(new PlayerCharacterData(characterId, danRank, wins, losses, totalPlays, regionId, areaId));
+            lease.checkHeld();
+            aggregatedStatisticsPublisher.swap(gameVersion, lease.getLeaseId(), snapshot.getSnapshot());
+            swapped = true;
         }
-        return playerDataMap;
-    }
-
-    private Map<AggregatedStatisticId, AggregatedStatistic> aggregateStatistics(
-            Map<String, PlayerCharacterData> playerCharacters,
-            String category,
-            int gameVersion,
-            Map<AggregatedStatisticId, AggregatedStatistic> existingStats) {
-
-        Map<AggregatedStatisticId, AggregatedStatistic> aggregatedData = new HashMap<>();
-        Map<AggregatedStatisticId, Set<String>> playersPerStat = new HashMap<>();
-
-        for (Map.Entry<String, PlayerCharacterData> entry : playerCharacters.entrySet()) {
-            String playerId = entry.getKey();
-            PlayerCharacterData data = entry.getValue();
-
-            // Updated constructor call to include region and area IDs
-            AggregatedStatisticId id = new AggregatedStatisticId(
-                    gameVersion,
-                    data.getCharacterId(),
-                    data.getDanRank(),
-                    category,
-                    data.getRegionID(),  // New field
-                    data.getAreaID()      // New field
-            );
-
-            AggregatedStatistic stat = existingStats.get(id);
-            if (stat == null) {
-                stat = new AggregatedStatistic(id);
-                stat.setComputedAt(LocalDateTime.now());
-            } else {
-                if (!aggregatedData.containsKey(id)) {
-                    stat.setTotalWins(0);
-                    stat.setTotalLosses(0);
-                    stat.setTotalPlayers(0);
-                    stat.setTotalReplays(0);
-                    stat.setComputedAt(LocalDateTime.now());
-                }
+        finally
+        {
+            if (!swapped)
+            {
+                aggregatedStatisticsPublisher.abandonRun(gameVersion, lease.getLeaseId());
             }
-
-            stat.setTotalWins(stat.getTotalWins() + data.getWins());
-            stat.setTotalLosses(stat.getTotalLosses() + data.getLosses());
-            stat.setTotalReplays(stat.getTotalReplays() + data.getTotalPlays());
-
-            playersPerStat.computeIfAbsent(id, k -> new HashSet<>()).add(playerId);
-
-            aggregatedData.put(id, stat);
-        }
-
-        // Update totalPlayers based on unique player counts
-        for (Map.Entry<AggregatedStatisticId, AggregatedStatistic> entry : aggregatedData.entrySet()) {
-            AggregatedStatisticId id = entry.getKey();
-            AggregatedStatistic stat = entry.getValue();
-            Set<String> players = playersPerStat.get(id);
-            stat.setTotalPlayers(players.size());
         }
-
-        return aggregatedData;
+        statisticsGenerationService.refresh();
     }
 
-    private Map<AggregatedStatisticId, AggregatedStatistic> aggregateOverallStatistics(
-            Map<String, List<PlayerCharacterData>> allPlayerCharacters,
-            int gameVersion,
-            Map<AggregatedStatisticId, AggregatedStatistic> existingStats) {
-
-        Map<AggregatedStatisticId, AggregatedStatistic> overallData = new HashMap<>();
-        Map<AggregatedStatisticId, Set<String>> playersPerStat = new HashMap<>();
-
-        for (Map.Entry<String, List<PlayerCharacterData>> entry : allPlayerCharacters.entrySet()) {
-            String playerId = entry.getKey();
-            List<PlayerCharacterData> playerCharacters = entry.getValue();
-
-            for (PlayerCharacterData data : playerCharacters) {
-                // Updated constructor call to include region and area IDs
-                AggregatedStatisticId id = new AggregatedStatisticId(
-                        gameVersion,
-                        data.getCharacterId(),
-                        data.getDanRank(),
-                        "overall",
-                        data.getRegionID(),  // New field
-                        data.getAreaID()      // New field
-                );
-
-                AggregatedStatistic stat = existingStats.get(id);
-                if (stat == null) {
-                    stat = new AggregatedStatistic(id);
-                    stat.setComputedAt(LocalDateTime.now());
-                } else {
-                    if (!overallData.containsKey(id)) {
-                        stat.setTotalWins(0);
-                        stat.setTotalLosses(0);
-                        stat.setTotalPlayers(0);
-                        stat.setTotalReplays(0);
-                        stat.setComputedAt(LocalDateTime.now());
-                    }
-                }
-
-                stat.setTotalWins(stat.getTotalWins() + data.getWins());
-                stat.setTotalLosses(stat.getTotalLosses() + data.getLosses());
-                stat.setTotalReplays(stat.getTotalReplays() + data.getTotalPlays());
-
-                playersPerStat.computeIfAbsent(id, k -> new HashSet<>()).add(playerId);
-
-                overallData.put(id, stat);
-            }
-        }
-
-        // Update totalPlayers based on unique player counts
-        for (Map.Entry<AggregatedStatisticId, AggregatedStatistic> entry : overallData.entrySet()) {
-            AggregatedStatisticId id = entry.getKey();
-            AggregatedStatistic stat = entry.getValue();
-            Set<String> players = playersPerStat.get(id);
-            stat.setTotalPlayers(players.size());
-        }
+    private void processGameVersionStatisticsInDatabase(int gameVersion, RecomputeSnapshot snapshot)
+    {
+        long startTime = System.currentTimeMillis();
 
-        return overallData;
-    }
+        int[] cells = snapshot.read(status -> new int[]{
+                aggregatedStatisticsRepository.stageStandardStatistics(gameVersion),
+                aggregatedStatisticsRepository.stageOverallStatistics(gameVersion)});
+        int standardCells = cells[0];
+        int overallCells = cells[1];
 
-    private void saveAggregatedStatistics(Collection<AggregatedStatistic> statistics) {
-        aggregatedStatisticsRepository.saveAll(statistics);
+        long endTime = System.currentTimeMillis();
+        logger.info("Game version {} aggregated in database: {} ms, Standard Cells: {}, Overall Cells: {}",
+                gameVersion, (endTime - startTime), standardCells, overallCells);
     }
-}
\ No newline at end of file
+}
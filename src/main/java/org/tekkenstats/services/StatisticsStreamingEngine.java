@@ -0,0 +1,119 @@
+package org.tekkenstats.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.tekkenstats.aggregations.StatisticsAccumulator;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the statistics cubes of a game version without materializing character_stats.
+ * Players are split into hash partitions, each partition is read through its own forward-only
+ * cursor into a private {@link StatisticsAccumulator}, and the partials are merged at the end.
+ * Every partition reads through the run's {@link RecomputeSnapshot}, so together they see one
+ * consistent state of character_stats however far apart their reads are.
+ */
+@Service
+public class StatisticsStreamingEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsStreamingEngine.class);
+
+    private static final String PARTITION_SQL =
+            "SELECT cs.player_id, cs.character_id, cs.dan_rank, cs.wins, cs.losses, p.region_id, p.area_id " +
+            "FROM character_stats cs " +
+            "JOIN players p ON cs.player_id = p.player_id " +
+            "WHERE cs.game_version = ? " +
+            "AND p.region_id IS NOT NULL AND p.area_id IS NOT NULL " +
+            "AND (hashtext(cs.player_id) & 2147483647) % ? = ? " +
+            "ORDER BY cs.player_id";
+
+    private final JdbcTemplate streamingJdbcTemplate;
+    private final Executor statisticsExecutor;
+    private final Semaphore connectionPermits;
+    private final int partitions;
+
+    public StatisticsStreamingEngine(
+            DataSource dataSource,
+            @Qualifier("statisticsThreadExecutor") Executor statisticsExecutor,
+            @Value("${statistics.engine.partitions:4}") int partitions,
+            @Value("${statistics.engine.fetch-size:10000}") int fetchSize,
+            @Value("${statistics.engine.max-connections:4}") int maxConnections)
+    {
+        // Postgres only streams with a cursor when a fetch size is set and autocommit is off,
+        // the snapshot's transaction takes care of the latter
+        this.streamingJdbcTemplate = new JdbcTemplate(dataSource);
+        this.streamingJdbcTemplate.setFetchSize(fetchSize);
+
+        this.statisticsExecutor = statisticsExecutor;
+        this.connectionPermits = new Semaphore(maxConnections);
+        this.partitions = partitions;
+    }
+
+    public StatisticsAccumulator compute(int gameVersion, RecomputeSnapshot snapshot)
+    {
+        long startTime = System.currentTimeMillis();
+
+        List<CompletableFuture<StatisticsAccumulator>> futures = IntStream.range(0, partitions)
+                .mapToObj(partition -> CompletableFuture.supplyAsync(
+                        () -> streamPartition(gameVersion, partition, snapshot), statisticsExecutor))
+                .toList();
+
+        List<StatisticsAccumulator> partials = futures.stream()
+                .map(CompletableFuture::join)
+                .toList();
+
+        StatisticsAccumulator result = partials.parallelStream()
+                .reduce(StatisticsAccumulator::merge)
+                .orElseGet(() -> new StatisticsAccumulator(gameVersion));
+
+        long endTime = System.currentTimeMillis();
+        logger.info("Streamed statistics for game version {}: {} ms, Partitions: {}, Cells: {}",
+                gameVersion, (endTime - startTime), partitions, result.cellCount());
+
+        return result;
+    }
+
+    private StatisticsAccumulator streamPartition(int gameVersion, int partition, RecomputeSnapshot snapshot)
+    {
+        StatisticsAccumulator accumulator = new StatisticsAccumulator(gameVersion);
+
+        connectionPermits.acquireUninterruptibly();
+        try
+        {
+            snapshot.read(status -> {
+                streamingJdbcTemplate.query(PARTITION_SQL,
+                        ps -> {
+                            ps.setInt(1, gameVersion);
+                            ps.setInt(2, partitions);
+                            ps.setInt(3, partition);
+                        },
+                        (RowCallbackHandler) rs -> accumulator.accept(
+                                rs.getString(1),
+                                rs.getString(2),
+                                rs.getInt(3),
+                                rs.getInt(4),
+                                rs.getInt(5),
+                                rs.getInt(6),
+                                rs.getInt(7)));
+                return null;
+            });
+        }
+        finally
+        {
+            connectionPermits.release();
+        }
+
+        accumulator.finish();
+        return accumulator;
+    }
+}
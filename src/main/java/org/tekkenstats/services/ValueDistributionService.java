@@ -0,0 +1,191 @@
+package org.tekkenstats.services;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.tekkenstats.aggregations.DistributionMetric;
+import org.tekkenstats.aggregations.QuantileSketch;
+import org.tekkenstats.aggregations.RankBand;
+import org.tekkenstats.configuration.RankBandBoundaries;
+import org.tekkenstats.models.Battle;
+
+import java.util.*;
+
+/**
+ * Rating and Tekken Power distributions per game version, character and rank band, kept as
+ * mergeable quantile sketches. Ingest adds every side of newly inserted battles to in-memory
+ * sketches, a scheduled flush merges them into value_distributions, and percentile reads
+ * merge the stored sketches of whatever rollup is asked for.
+ * Every battle side is one sample, so the distributions are weighted by games played.
+ */
+@Service
+public class ValueDistributionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValueDistributionService.class);
+
+    private record DistributionKey(int gameVersion, String characterId, RankBand rankBand, DistributionMetric metric) {}
+
+    private static final Comparator<DistributionKey> KEY_ORDER =
+            Comparator.comparingInt(DistributionKey::gameVersion)
+                    .thenComparing(DistributionKey::characterId)
+                    .thenComparing(key -> key.rankBand().getName())
+                    .thenComparing(key -> key.metric().getName());
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final RankBandBoundaries rankBandBoundaries;
+
+    // samples recorded since the last flush, swapped out as a whole on every flush
+    private final Object pendingLock = new Object();
+    private Map<DistributionKey, QuantileSketch> pending = new HashMap<>();
+
+    public ValueDistributionService(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, RankBandBoundaries rankBandBoundaries)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.rankBandBoundaries = rankBandBoundaries;
+    }
+
+    public void recordBattles(Collection<Battle> insertedBattles)
+    {
+        if (insertedBattles.isEmpty())
+        {
+            return;
+        }
+
+        synchronized (pendingLock)
+        {
+            for (Battle battle : insertedBattles)
+            {
+                recordSide(battle.getGameVersion(), battle.getPlayer1CharacterId(), battle.getPlayer1DanRank(),
+                        battle.getPlayer1RatingBefore(), battle.getPlayer1RatingChange(), battle.getPlayer1TekkenPower());
+                recordSide(battle.getGameVersion(), battle.getPlayer2CharacterId(), battle.getPlayer2DanRank(),
+                        battle.getPlayer2RatingBefore(), battle.getPlayer2RatingChange(), battle.getPlayer2TekkenPower());
+            }
+        }
+    }
+
+    private void recordSide(int gameVersion, int characterId, int danRank, Integer ratingBefore, Integer ratingChange, long tekkenPower)
+    {
+        String character = String.valueOf(characterId);
+        RankBand rankBand = rankBandBoundaries.of(danRank);
+
+        // replays without a rating have nothing to contribute to the rating distribution
+        if (ratingBefore != null)
+        {
+            int rating = ratingBefore + (ratingChange != null ? ratingChange : 0);
+            pending.computeIfAbsent(new DistributionKey(gameVersion, character, rankBand, DistributionMetric.RATING), k -> new QuantileSketch())
+                    .add(rating);
+        }
+        pending.computeIfAbsent(new DistributionKey(gameVersion, character, rankBand, DistributionMetric.TEKKEN_POWER), k -> new QuantileSketch())
+                .add(tekkenPower);
+    }
+
+    @Scheduled(fixedRateString = "${statistics.distributions.flush-interval-ms:30000}")
+    public void flush()
+    {
+        Map<DistributionKey, QuantileSketch> toFlush;
+        synchronized (pendingLock)
+        {
+            if (pending.isEmpty())
+            {
+                return;
+            }
+            toFlush = pending;
+            pending = new HashMap<>();
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        List<DistributionKey> keys = new ArrayList<>(toFlush.keySet());
+        keys.sort(KEY_ORDER);
+
+        try
+        {
+            transactionTemplate.executeWithoutResult(status -> {
+                // placeholder rows first, so that every stored sketch can be row-locked before the
+                // read-merge-write below, even when another node creates it concurrently
+                jdbcTemplate.batchUpdate(
+                        "INSERT INTO value_distributions (game_version, character_id, rank_band, metric) " +
+                        "VALUES (?, ?, ?, ?) ON CONFLICT DO NOTHING",
+                        keys.stream().map(ValueDistributionService::keyArgs).toList());
+
+                Map<DistributionKey, QuantileSketch> merged = new HashMap<>();
+                for (DistributionKey key : keys)
+                {
+                    byte[] stored = jdbcTemplate.queryForObject(
+                            "SELECT sketch FROM value_distributions " +
+                            "WHERE game_version = ? AND character_id = ? AND rank_band = ? AND metric = ? FOR UPDATE",
+                            byte[].class, keyArgs(key));
+                    merged.put(key, QuantileSketch.fromBytes(stored).merge(toFlush.get(key)));
+                }
+
+                List<Object[]> batchArgs = new ArrayList<>(keys.size());
+                for (DistributionKey key : keys)
+                {
+                    QuantileSketch sketch = merged.get(key);
+                    batchArgs.add(new Object[]{sketch.getCount(), sketch.toBytes(),
+                            key.gameVersion(), key.characterId(), key.rankBand().getName(), key.metric().getName()});
+                }
+                jdbcTemplate.batchUpdate(
+                        "UPDATE value_distributions SET samples = ?, sketch = ? " +
+                        "WHERE game_version = ? AND character_id = ? AND rank_band = ? AND metric = ?",
+                        batchArgs);
+            });
+
+            long endTime = System.currentTimeMillis();
+            logger.info("Value Distribution Flush: {} ms, Sketches: {}", (endTime - startTime), keys.size());
+        }
+        catch (Exception e)
+        {
+            // the flush is all or nothing, so its samples go back to be retried with the next one
+            logger.error("VALUE DISTRIBUTION FLUSH FAILED, retrying {} sketches with the next flush: ", keys.size(), e);
+            synchronized (pendingLock)
+            {
+                toFlush.forEach((key, sketch) -> pending.computeIfAbsent(key, k -> new QuantileSketch()).merge(sketch));
+            }
+        }
+    }
+
+    @PreDestroy
+    public void flushOnShutdown()
+    {
+        flush();
+    }
+
+    /**
+     * Merges the stored sketches of a game version and metric, optionally narrowed to one
+     * character and one rank band. Returns the merged sketch, empty when nothing matches.
+     */
+    public QuantileSketch getDistribution(int gameVersion, DistributionMetric metric, String characterId, RankBand rankBand)
+    {
+        StringBuilder sql = new StringBuilder(
+                "SELECT sketch FROM value_distributions WHERE game_version = ? AND metric = ? AND sketch IS NOT NULL");
+        List<Object> args = new ArrayList<>(List.of(gameVersion, metric.getName()));
+        if (characterId != null)
+        {
+            sql.append(" AND character_id = ?");
+            args.add(characterId);
+        }
+        if (rankBand != null)
+        {
+            sql.append(" AND rank_band = ?");
+            args.add(rankBand.getName());
+        }
+
+        QuantileSketch merged = new QuantileSketch();
+        jdbcTemplate.query(sql.toString(), rs -> {
+            merged.merge(QuantileSketch.fromBytes(rs.getBytes("sketch")));
+        }, args.toArray());
+        return merged;
+    }
+
+    private static Object[] keyArgs(DistributionKey key)
+    {
+        return new Object[]{key.gameVersion(), key.characterId(), key.rankBand().getName(), key.metric().getName()};
+    }
+}
@@ -0,0 +1,9 @@
+-- Staging area for statistics runs. A run fills the rows of its game version here,
+-- then swaps them into aggregated_statistics in a single transaction.
+CREATE UNLOGGED TABLE IF NOT EXISTS aggregated_statistics_shadow
+(
+    LIKE aggregated_statistics INCLUDING DEFAULTS
+);
+
+CREATE INDEX IF NOT EXISTS idx_aggregated_statistics_shadow_version
+    ON aggregated_statistics_shadow (game_version, category);
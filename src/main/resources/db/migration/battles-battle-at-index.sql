@@ -0,0 +1,4 @@
+-- Serves the time range battle exports, which read battles in battle_at order through a cursor:
+-- an index scan streams the first rows at once instead of sorting the whole range first.
+-- battle_id breaks ties between battles of the same second. CONCURRENTLY cannot run inside a transaction.
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_battles_battle_at ON battles (battle_at, battle_id);
@@ -0,0 +1,34 @@
+-- Character-vs-character results per game version and rank band, from character_id's side.
+-- rank_band is the band of the player who used character_id, see RankBand.
+CREATE TABLE IF NOT EXISTS character_matchups
+(
+    game_version          INTEGER      NOT NULL,
+    rank_band             VARCHAR(16)  NOT NULL,
+    character_id          VARCHAR(255) NOT NULL,
+    opponent_character_id VARCHAR(255) NOT NULL,
+    wins                  INTEGER      NOT NULL DEFAULT 0,
+    losses                INTEGER      NOT NULL DEFAULT 0,
+    CONSTRAINT pk_character_matchups PRIMARY KEY (game_version, rank_band, character_id, opponent_character_id)
+);
+
+-- One-off backfill from existing battles, run before ingest starts flushing matchups.
+-- The band boundaries are the statistics.rank-bands.* defaults; change them here if those are overridden.
+INSERT INTO character_matchups (game_version, rank_band, character_id, opponent_character_id, wins, losses)
+SELECT
+    game_version,
+    CASE WHEN dan_rank >= 25 THEN 'highRank' WHEN dan_rank >= 15 THEN 'mediumRank' ELSE 'lowRank' END,
+    character_id,
+    opponent_character_id,
+    SUM(won),
+    SUM(1 - won)
+FROM (
+    SELECT game_version, player1_dan_rank AS dan_rank, player1_character_id::varchar AS character_id,
+           player2_character_id::varchar AS opponent_character_id, CASE WHEN winner = 1 THEN 1 ELSE 0 END AS won
+    FROM battles
+    UNION ALL
+    SELECT game_version, player2_dan_rank, player2_character_id::varchar,
+           player1_character_id::varchar, CASE WHEN winner = 2 THEN 1 ELSE 0 END
+    FROM battles
+) sides
+GROUP BY 1, 2, 3, 4
+ON CONFLICT DO NOTHING;
@@ -0,0 +1,55 @@
+-- Time-bucketed per-character results, maintained at ingest from newly inserted battles.
+-- bucket_start is in epoch seconds like battles.battle_at: the start of the hour for hourly
+-- buckets and the start of the UTC day for daily ones. A battle counts once for each side,
+-- in exactly one of the two tables: hourly buckets past their retention are compacted into daily ones.
+CREATE TABLE IF NOT EXISTS character_rollups_hourly
+(
+    bucket_start BIGINT       NOT NULL,
+    game_version INTEGER      NOT NULL,
+    character_id VARCHAR(255) NOT NULL,
+    dan_rank     INTEGER      NOT NULL,
+    region_id    INTEGER      NOT NULL,
+    wins         INTEGER      NOT NULL DEFAULT 0,
+    losses       INTEGER      NOT NULL DEFAULT 0,
+    CONSTRAINT pk_character_rollups_hourly PRIMARY KEY (bucket_start, game_version, character_id, dan_rank, region_id)
+);
+
+CREATE TABLE IF NOT EXISTS character_rollups_daily
+(
+    bucket_start BIGINT       NOT NULL,
+    game_version INTEGER      NOT NULL,
+    character_id VARCHAR(255) NOT NULL,
+    dan_rank     INTEGER      NOT NULL,
+    region_id    INTEGER      NOT NULL,
+    wins         INTEGER      NOT NULL DEFAULT 0,
+    losses       INTEGER      NOT NULL DEFAULT 0,
+    CONSTRAINT pk_character_rollups_daily PRIMARY KEY (bucket_start, game_version, character_id, dan_rank, region_id)
+);
+
+-- patch-to-date windows filter by version rather than time
+CREATE INDEX IF NOT EXISTS idx_character_rollups_hourly_version ON character_rollups_hourly (game_version);
+CREATE INDEX IF NOT EXISTS idx_character_rollups_daily_version ON character_rollups_daily (game_version);
+
+-- One-off backfill from existing battles, run before ingest starts writing rollups.
+-- Everything lands in hourly buckets, the compaction job moves the old hours into daily ones.
+INSERT INTO character_rollups_hourly (bucket_start, game_version, character_id, dan_rank, region_id, wins, losses)
+SELECT
+    battle_at - battle_at % 3600,
+    game_version,
+    character_id,
+    dan_rank,
+    region_id,
+    SUM(won),
+    SUM(1 - won)
+FROM (
+    SELECT battle_at, game_version, player1_character_id::varchar AS character_id, player1_dan_rank AS dan_rank,
+           player1_region AS region_id, CASE WHEN winner = 1 THEN 1 ELSE 0 END AS won
+    FROM battles
+    UNION ALL
+    SELECT battle_at, game_version, player2_character_id::varchar, player2_dan_rank,
+           player2_region, CASE WHEN winner = 2 THEN 1 ELSE 0 END
+    FROM battles
+) sides
+WHERE region_id IS NOT NULL
+GROUP BY 1, 2, 3, 4, 5
+ON CONFLICT DO NOTHING;
@@ -0,0 +1,25 @@
+-- One row per battle and side, written by ingest in the same transaction as the battle itself.
+-- The primary key keeps a player's battles adjacent and in time order, so a page of battle
+-- history is a single index range scan instead of an OR over player1_id and player2_id.
+CREATE TABLE IF NOT EXISTS player_battles
+(
+    player_id VARCHAR(255) NOT NULL,
+    battle_at BIGINT       NOT NULL,
+    battle_id VARCHAR(255) NOT NULL,
+    side      SMALLINT     NOT NULL,
+    CONSTRAINT pk_player_battles PRIMARY KEY (player_id, battle_at, battle_id)
+);
+
+-- Backfill from existing battles. Idempotent: rows already present, whether backfilled or written
+-- by ingest, are skipped, so it can run before the deploy and again after it, to pick up the
+-- battles the previous version stored in between. See recluster-player-battles.sql and
+-- retire-battles-player-indexes.sql for the locking and non-transactional steps kept out of it.
+INSERT INTO player_battles (player_id, battle_at, battle_id, side)
+SELECT player1_id, battle_at, battle_id, 1 FROM battles WHERE player1_id IS NOT NULL
+ON CONFLICT DO NOTHING;
+
+INSERT INTO player_battles (player_id, battle_at, battle_id, side)
+SELECT player2_id, battle_at, battle_id, 2 FROM battles WHERE player2_id IS NOT NULL
+ON CONFLICT DO NOTHING;
+
+ANALYZE player_battles;
@@ -0,0 +1,4 @@
+-- Serves the periodic catch-up of the player search index, "latest_battle > ?" over the players
+-- whose battles were ingested since, by this node or any other. See PlayerSearchIndex.
+-- CONCURRENTLY cannot run inside a transaction block.
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_players_latest_battle ON players (latest_battle);
@@ -0,0 +1,19 @@
+-- Main character of each player: the most played character of the newest game version the
+-- player played, with its dan rank. Maintained by ingest after every character_stats upsert,
+-- so player search reads it from the players row instead of loading character_stats.
+ALTER TABLE players
+    ADD COLUMN IF NOT EXISTS main_character_id VARCHAR(255),
+    ADD COLUMN IF NOT EXISTS main_dan_rank     INTEGER,
+    ADD COLUMN IF NOT EXISTS main_game_version INTEGER;
+
+-- One-off backfill, run before ingest starts maintaining the columns
+UPDATE players p
+SET main_character_id = main.character_id,
+    main_dan_rank     = main.dan_rank,
+    main_game_version = main.game_version
+FROM (
+    SELECT DISTINCT ON (player_id) player_id, character_id, dan_rank, game_version
+    FROM character_stats
+    ORDER BY player_id, game_version DESC, wins + losses DESC, character_id
+) main
+WHERE p.player_id = main.player_id;
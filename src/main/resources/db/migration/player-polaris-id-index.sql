@@ -0,0 +1,4 @@
+-- Serves lookups by polaris id: the profile and battle endpoints, and the batch summaries, whose
+-- "player_id = ANY(?) OR polaris_id = ANY(?)" becomes a BitmapOr of two index scans.
+-- CONCURRENTLY cannot run inside a transaction block.
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_players_polaris_id ON players (polaris_id);
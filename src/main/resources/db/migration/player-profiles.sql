@@ -0,0 +1,12 @@
+-- Serialized player profiles (the /player-stats/{player} JSON), rebuilt by ingest for the
+-- players of every batch and created on first request for the others.
+CREATE TABLE IF NOT EXISTS player_profiles
+(
+    player_id  VARCHAR(255) NOT NULL,
+    polaris_id VARCHAR(255),
+    profile    BYTEA        NOT NULL,
+    updated_at TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    CONSTRAINT pk_player_profiles PRIMARY KEY (player_id)
+);
+
+CREATE INDEX IF NOT EXISTS idx_player_profiles_polaris_id ON player_profiles (polaris_id);
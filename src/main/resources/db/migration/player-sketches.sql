@@ -0,0 +1,53 @@
+-- HyperLogLog sketches of the distinct players behind each aggregated_statistics cell.
+-- A sketch is 1024 one-byte registers (precision 10, about 3% standard error), see PlayerSketch.
+-- Player ids are hashed with hashtextextended(player_id, 0) everywhere, so sketches built in SQL
+-- and in Java are interchangeable and can be merged freely. Reads merge and estimate in Java.
+-- Run after aggregated-statistics-shadow.sql, whose staging table it extends.
+ALTER TABLE aggregated_statistics ADD COLUMN IF NOT EXISTS player_sketch BYTEA;
+ALTER TABLE aggregated_statistics_shadow ADD COLUMN IF NOT EXISTS player_sketch BYTEA;
+
+-- Sketches of a statistics run, joined onto aggregated_statistics_shadow when the run is swapped in
+CREATE UNLOGGED TABLE IF NOT EXISTS aggregated_statistics_sketch_shadow
+(
+    game_version  INTEGER      NOT NULL,
+    character_id  VARCHAR(255) NOT NULL,
+    dan_rank      INTEGER      NOT NULL,
+    category      VARCHAR(255) NOT NULL,
+    region_id     INTEGER      NOT NULL,
+    area_id       INTEGER      NOT NULL,
+    player_sketch BYTEA        NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS idx_aggregated_statistics_sketch_shadow_version
+    ON aggregated_statistics_sketch_shadow (game_version);
+
+-- Cell sketches merged over regions and areas, so that version, character and rank rollups
+-- only merge a few thousand sketches instead of every cell
+CREATE TABLE IF NOT EXISTS player_sketch_rollups
+(
+    game_version  INTEGER      NOT NULL,
+    category      VARCHAR(255) NOT NULL,
+    character_id  VARCHAR(255) NOT NULL,
+    dan_rank      INTEGER      NOT NULL,
+    player_sketch BYTEA        NOT NULL,
+    CONSTRAINT pk_player_sketch_rollups PRIMARY KEY (game_version, category, character_id, dan_rank)
+);
+
+CREATE UNLOGGED TABLE IF NOT EXISTS player_sketch_rollups_shadow
+(
+    LIKE player_sketch_rollups INCLUDING DEFAULTS
+);
+
+-- Register-wise maximum of two sketches, null counts as empty. Used by the ingest upserts.
+-- One set-based expression rather than a loop over the registers; re-running this script replaces
+-- the earlier plpgsql version.
+CREATE OR REPLACE FUNCTION hll_merge(a BYTEA, b BYTEA) RETURNS BYTEA
+    LANGUAGE sql IMMUTABLE PARALLEL SAFE AS
+$$
+SELECT CASE
+           WHEN a IS NULL THEN b
+           WHEN b IS NULL THEN a
+           ELSE (SELECT string_agg(set_byte('\x00'::bytea, 0, GREATEST(get_byte(a, i), get_byte(b, i))), ''::bytea ORDER BY i)
+                 FROM generate_series(0, length(b) - 1) AS i)
+           END
+$$;
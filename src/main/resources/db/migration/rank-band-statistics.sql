@@ -0,0 +1,21 @@
+-- 'standard' statistics per game version, rank band and character, rebuilt by every statistics
+-- publish (AggregatedStatisticsPublisher.publishGeneration), so the top winrate, popularity
+-- and winrate change endpoints read a few rows instead of re-aggregating aggregated_statistics.
+-- winrate_change is against the same band and character in the previous game version.
+CREATE TABLE IF NOT EXISTS rank_band_statistics
+(
+    game_version     INTEGER          NOT NULL,
+    rank_band        VARCHAR(16)      NOT NULL,
+    character_id     VARCHAR(255)     NOT NULL,
+    total_wins       BIGINT           NOT NULL,
+    total_losses     BIGINT           NOT NULL,
+    total_battles    BIGINT           NOT NULL,
+    winrate          DOUBLE PRECISION NOT NULL,
+    previous_winrate DOUBLE PRECISION,
+    winrate_change   DOUBLE PRECISION,
+    computed_at      TIMESTAMP        NOT NULL,
+    CONSTRAINT pk_rank_band_statistics PRIMARY KEY (game_version, rank_band, character_id)
+);
+
+-- Not backfilled here: the bands depend on statistics.rank-bands.*, so the application builds the
+-- rows of every current generation that has none at startup (AggregatedStatisticsPublisher).
@@ -0,0 +1,6 @@
+-- Optional, after the player_battles backfill: lays the backfilled rows out in key order, so a page
+-- of battle history reads few heap pages. New rows arrive mostly in time order per player anyway.
+-- CLUSTER locks player_battles against ingest and reads while it rewrites the table, so run it
+-- in a maintenance window; it can be repeated whenever the layout has drifted.
+CLUSTER player_battles USING pk_player_battles;
+ANALYZE player_battles;
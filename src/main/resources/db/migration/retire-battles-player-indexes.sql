@@ -0,0 +1,5 @@
+-- Only for databases that created the per-side battle history indexes on battles, which
+-- player_battles supersedes. Run after the deploy that reads battle history from player_battles,
+-- outside a transaction: DROP INDEX CONCURRENTLY cannot run inside one.
+DROP INDEX CONCURRENTLY IF EXISTS idx_battles_player1_battle_at;
+DROP INDEX CONCURRENTLY IF EXISTS idx_battles_player2_battle_at;
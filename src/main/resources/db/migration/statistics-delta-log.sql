@@ -0,0 +1,33 @@
+-- A statistics run reads character_stats through one snapshot and then replaces the published cells
+-- of its game version. Ingest deltas committed meanwhile are applied to aggregated_statistics as usual
+-- and, while a run of their game version is in progress, also logged here with their transaction id.
+-- The swap re-applies the logged deltas the run's snapshot did not see, then drops the log of its
+-- game version. Requires PostgreSQL 13 or later (xid8 transaction ids and pg_snapshot).
+CREATE TABLE IF NOT EXISTS statistics_rebuilds
+(
+    game_version INTEGER NOT NULL,
+    started_at   BIGINT  NOT NULL,
+    CONSTRAINT pk_statistics_rebuilds PRIMARY KEY (game_version)
+);
+
+CREATE TABLE IF NOT EXISTS aggregated_statistics_delta_log
+(
+    xid           XID8         NOT NULL DEFAULT pg_current_xact_id(),
+    game_version  INTEGER      NOT NULL,
+    character_id  VARCHAR(255) NOT NULL,
+    dan_rank      INTEGER      NOT NULL,
+    category      VARCHAR(255) NOT NULL,
+    region_id     INTEGER      NOT NULL,
+    area_id       INTEGER      NOT NULL,
+    total_wins    INTEGER      NOT NULL,
+    total_losses  INTEGER      NOT NULL,
+    total_players INTEGER      NOT NULL,
+    total_replays INTEGER      NOT NULL,
+    -- players entering the cell, merged into the run's sketches at the swap
+    player_sketch BYTEA
+);
+
+ALTER TABLE aggregated_statistics_delta_log ADD COLUMN IF NOT EXISTS player_sketch BYTEA;
+
+CREATE INDEX IF NOT EXISTS idx_aggregated_statistics_delta_log_version
+    ON aggregated_statistics_delta_log (game_version);
@@ -0,0 +1,80 @@
+-- Immutable, numbered generations of published statistics. Every statistics publish of a game
+-- version creates a generation holding a copy of the cells and rollups it published. A reader pins
+-- the newest generation of each game version at the start of a request and reads only those rows,
+-- so a request never mixes two runs, while aggregated_statistics stays the live table that ingest
+-- deltas keep current. Generations replaced by a newer one of their game version are dropped
+-- after a grace period, see StatisticsGenerationService.
+-- Run after rank-band-statistics.sql, whose table it moves onto generations below, and after
+-- player-sketches.sql, whose player_sketch_rollups it copies into the first generations.
+CREATE TABLE IF NOT EXISTS statistics_generations
+(
+    generation   BIGSERIAL NOT NULL,
+    game_version INTEGER   NOT NULL,
+    published_at BIGINT    NOT NULL, -- Postgres clock, epoch milliseconds
+    CONSTRAINT pk_statistics_generations PRIMARY KEY (generation)
+);
+
+CREATE INDEX IF NOT EXISTS idx_statistics_generations_version
+    ON statistics_generations (game_version, generation);
+
+CREATE TABLE IF NOT EXISTS aggregated_statistics_snapshots
+(
+    generation    BIGINT       NOT NULL,
+    game_version  INTEGER      NOT NULL,
+    character_id  VARCHAR(255) NOT NULL,
+    dan_rank      INTEGER      NOT NULL,
+    category      VARCHAR(255) NOT NULL,
+    region_id     INTEGER      NOT NULL,
+    area_id       INTEGER      NOT NULL,
+    total_wins    INTEGER,
+    total_losses  INTEGER,
+    total_players INTEGER,
+    total_replays INTEGER,
+    computed_at   TIMESTAMP WITHOUT TIME ZONE,
+    CONSTRAINT pk_aggregated_statistics_snapshots PRIMARY KEY (generation, category, character_id, dan_rank, region_id, area_id)
+);
+
+CREATE TABLE IF NOT EXISTS player_sketch_rollup_snapshots
+(
+    generation    BIGINT       NOT NULL,
+    game_version  INTEGER      NOT NULL,
+    category      VARCHAR(255) NOT NULL,
+    character_id  VARCHAR(255) NOT NULL,
+    dan_rank      INTEGER      NOT NULL,
+    player_sketch BYTEA        NOT NULL,
+    CONSTRAINT pk_player_sketch_rollup_snapshots PRIMARY KEY (generation, category, character_id, dan_rank)
+);
+
+-- rank_band_statistics rows now belong to the generation they were published with
+ALTER TABLE rank_band_statistics ADD COLUMN IF NOT EXISTS generation BIGINT;
+
+-- One-off: the currently published statistics of every game version become its first generation.
+INSERT INTO statistics_generations (game_version, published_at)
+SELECT DISTINCT game_version, (EXTRACT(EPOCH FROM clock_timestamp()) * 1000)::bigint
+FROM aggregated_statistics
+WHERE NOT EXISTS (SELECT 1 FROM statistics_generations);
+
+INSERT INTO aggregated_statistics_snapshots (generation, game_version, character_id, dan_rank, category,
+    region_id, area_id, total_wins, total_losses, total_players, total_replays, computed_at)
+SELECT g.generation, a.game_version, a.character_id, a.dan_rank, a.category,
+    a.region_id, a.area_id, a.total_wins, a.total_losses, a.total_players, a.total_replays, a.computed_at
+FROM aggregated_statistics a
+JOIN statistics_generations g ON g.game_version = a.game_version
+ON CONFLICT DO NOTHING;
+
+INSERT INTO player_sketch_rollup_snapshots (generation, game_version, category, character_id, dan_rank, player_sketch)
+SELECT g.generation, r.game_version, r.category, r.character_id, r.dan_rank, r.player_sketch
+FROM player_sketch_rollups r
+JOIN statistics_generations g ON g.game_version = r.game_version
+ON CONFLICT DO NOTHING;
+
+UPDATE rank_band_statistics r
+SET generation = g.generation
+FROM statistics_generations g
+WHERE g.game_version = r.game_version AND r.generation IS NULL;
+
+DELETE FROM rank_band_statistics WHERE generation IS NULL;
+
+ALTER TABLE rank_band_statistics ALTER COLUMN generation SET NOT NULL;
+ALTER TABLE rank_band_statistics DROP CONSTRAINT IF EXISTS pk_rank_band_statistics;
+ALTER TABLE rank_band_statistics ADD CONSTRAINT pk_rank_band_statistics PRIMARY KEY (generation, rank_band, character_id);
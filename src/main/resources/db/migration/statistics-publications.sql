@@ -0,0 +1,12 @@
+-- Last published full statistics recompute per game version, written by whichever node ran it
+-- while holding the game version's recompute lease, see StatisticsRecomputeScheduler.
+-- Times are Postgres clock times in epoch milliseconds. Every change committed before
+-- started_at is reflected in the published statistics.
+CREATE TABLE IF NOT EXISTS statistics_publications
+(
+    game_version INTEGER      NOT NULL,
+    started_at   BIGINT       NOT NULL,
+    published_at BIGINT       NOT NULL,
+    node         VARCHAR(255) NOT NULL,
+    CONSTRAINT pk_statistics_publications PRIMARY KEY (game_version)
+);
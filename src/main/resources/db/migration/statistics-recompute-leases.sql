@@ -0,0 +1,13 @@
+-- The node currently recomputing a game version's statistics, see StatisticsRecomputeScheduler.
+-- A lease is taken over once expires_at has passed, so a node that died mid-run cannot block the
+-- version for longer than the lease; running nodes renew theirs well before that.
+-- Times are Postgres clock times in epoch milliseconds.
+CREATE TABLE IF NOT EXISTS statistics_recompute_leases
+(
+    game_version INTEGER      NOT NULL,
+    lease_id     VARCHAR(36)  NOT NULL,
+    node         VARCHAR(255) NOT NULL,
+    acquired_at  BIGINT       NOT NULL,
+    expires_at   BIGINT       NOT NULL,
+    CONSTRAINT pk_statistics_recompute_leases PRIMARY KEY (game_version)
+);
@@ -0,0 +1,12 @@
+-- Quantile sketches of per-side battle values (rating, Tekken Power) per game version,
+-- character and rank band. sketch is a serialized QuantileSketch, samples its value count.
+CREATE TABLE IF NOT EXISTS value_distributions
+(
+    game_version INTEGER      NOT NULL,
+    character_id VARCHAR(255) NOT NULL,
+    rank_band    VARCHAR(16)  NOT NULL,
+    metric       VARCHAR(32)  NOT NULL,
+    samples      BIGINT       NOT NULL DEFAULT 0,
+    sketch       BYTEA,
+    CONSTRAINT pk_value_distributions PRIMARY KEY (game_version, character_id, rank_band, metric)
+);
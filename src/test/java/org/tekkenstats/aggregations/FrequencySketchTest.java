@@ -0,0 +1,63 @@
+package org.tekkenstats.aggregations;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrequencySketchTest {
+
+    @Test
+    void neverUnderestimatesAFrequency()
+    {
+        FrequencySketch sketch = new FrequencySketch(4096);
+        for (int key = 0; key < 1000; key++)
+        {
+            for (int i = 0; i < key % 10; i++)
+            {
+                sketch.increment("player-" + key);
+            }
+        }
+
+        int exact = 0;
+        for (int key = 0; key < 1000; key++)
+        {
+            int frequency = sketch.frequency("player-" + key);
+            assertTrue(frequency >= key % 10, "player-" + key);
+            if (frequency == key % 10) exact++;
+        }
+        // a wide sketch rarely collides on all four rows
+        assertTrue(exact > 950, exact + " exact frequencies");
+    }
+
+    @Test
+    void saturatesAtFifteen()
+    {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 100; i++)
+        {
+            sketch.increment("player");
+        }
+
+        assertEquals(15, sketch.frequency("player"));
+        assertEquals(0, sketch.frequency("someone else"));
+    }
+
+    @Test
+    void halvesEveryCounterOnceEnoughAccessesAreRecorded()
+    {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 15; i++)
+        {
+            sketch.increment("popular");
+        }
+        assertEquals(15, sketch.frequency("popular"));
+
+        // ten accesses per counter, so at least one reset happens
+        for (int key = 0; key < 10 * 2048; key++)
+        {
+            sketch.increment("player-" + key);
+        }
+
+        assertTrue(sketch.frequency("popular") <= 8, "frequency " + sketch.frequency("popular"));
+    }
+}
@@ -0,0 +1,92 @@
+package org.tekkenstats.aggregations;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlayerSketchTest {
+
+    @Test
+    void estimatesNothingForAnEmptySketch()
+    {
+        assertEquals(0, new PlayerSketch().estimate());
+    }
+
+    @Test
+    void ranksTheFirstSetBitAboveTheRegisterBits()
+    {
+        PlayerSketch sketch = new PlayerSketch();
+        sketch.addHash(Long.MIN_VALUE | 5);
+        sketch.addHash(1L << PlayerSketch.PRECISION | 7);
+        sketch.addHash(9);
+
+        byte[] registers = sketch.toBytes();
+        assertEquals(1, registers[5]);
+        assertEquals(54, registers[7]);
+        // no bit set at all ranks one past the last bit, like the rank expression of the sketch SQL
+        assertEquals(55, registers[9]);
+    }
+
+    @Test
+    void estimatesSmallAndLargeCardinalities()
+    {
+        assertEquals(100, sketchOf(1, 100).estimate(), 100 * 0.05);
+        assertEquals(1_000, sketchOf(2, 1_000).estimate(), 1_000 * 0.08);
+        assertEquals(200_000, sketchOf(3, 200_000).estimate(), 200_000 * 0.08);
+    }
+
+    @Test
+    void ignoresPlayersSeenBefore()
+    {
+        PlayerSketch once = sketchOf(4, 5_000);
+        PlayerSketch twice = sketchOf(4, 5_000).merge(sketchOf(4, 5_000));
+
+        assertArrayEquals(once.toBytes(), twice.toBytes());
+    }
+
+    @Test
+    void mergesIntoTheSketchOfTheUnion()
+    {
+        PlayerSketch first = new PlayerSketch();
+        PlayerSketch second = new PlayerSketch();
+        PlayerSketch union = new PlayerSketch();
+        SplittableRandom random = new SplittableRandom(5);
+        for (int i = 0; i < 30_000; i++)
+        {
+            long hash = random.nextLong();
+            // a third of the players is in both sketches
+            if (i % 3 != 0) first.addHash(hash);
+            if (i % 3 != 1) second.addHash(hash);
+            union.addHash(hash);
+        }
+
+        assertFalse(first.covers(second));
+        first.merge(second);
+
+        assertArrayEquals(union.toBytes(), first.toBytes());
+        assertTrue(first.covers(second));
+        assertEquals(30_000, first.estimate(), 30_000 * 0.08);
+    }
+
+    @Test
+    void roundTripsThroughBytes()
+    {
+        PlayerSketch sketch = sketchOf(6, 1_000);
+
+        assertArrayEquals(sketch.toBytes(), PlayerSketch.fromBytes(sketch.toBytes()).toBytes());
+        assertEquals(0, PlayerSketch.fromBytes(null).estimate());
+    }
+
+    private static PlayerSketch sketchOf(long seed, int players)
+    {
+        PlayerSketch sketch = new PlayerSketch();
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < players; i++)
+        {
+            sketch.addHash(random.nextLong());
+        }
+        return sketch;
+    }
+}
@@ -0,0 +1,109 @@
+package org.tekkenstats.aggregations;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuantileSketchTest {
+
+    private static final double[] QUANTILES = {0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 1};
+
+    @Test
+    void answersNothingWhenEmpty()
+    {
+        QuantileSketch sketch = new QuantileSketch();
+
+        assertEquals(0, sketch.getCount());
+        assertTrue(Double.isNaN(sketch.quantile(0.5)));
+    }
+
+    @Test
+    void staysWithinTheRelativeAccuracy()
+    {
+        SplittableRandom random = new SplittableRandom(1);
+        double[] values = new double[50_000];
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < values.length; i++)
+        {
+            // spread over several orders of magnitude, like ratings and Tekken Power
+            values[i] = Math.exp(random.nextDouble(0, 14));
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, sketch.getCount());
+        for (double quantile : QUANTILES)
+        {
+            double expected = values[(int) Math.floor(quantile * (values.length - 1))];
+            assertEquals(expected, sketch.quantile(quantile), expected * QuantileSketch.RELATIVE_ACCURACY, "quantile " + quantile);
+        }
+    }
+
+    @Test
+    void countsZeroAndNegativeValuesAsZero()
+    {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(-5);
+        sketch.add(0);
+        sketch.add(0);
+        sketch.add(100);
+
+        assertEquals(0, sketch.quantile(0));
+        assertEquals(0, sketch.quantile(0.5));
+        assertEquals(100, sketch.quantile(1), 100 * QuantileSketch.RELATIVE_ACCURACY);
+    }
+
+    @Test
+    void mergesIntoTheSketchOfAllValues()
+    {
+        SplittableRandom random = new SplittableRandom(2);
+        QuantileSketch low = new QuantileSketch();
+        QuantileSketch high = new QuantileSketch();
+        QuantileSketch all = new QuantileSketch();
+        for (int i = 0; i < 10_000; i++)
+        {
+            // disjoint bucket ranges, so the merge has to grow the range on both ends
+            double lowValue = random.nextDouble(0.5, 10);
+            double highValue = random.nextDouble(1_000, 100_000);
+            low.add(lowValue);
+            high.add(highValue);
+            all.add(lowValue);
+            all.add(highValue);
+        }
+        high.add(0);
+        all.add(0);
+
+        QuantileSketch merged = new QuantileSketch().merge(high).merge(low);
+
+        assertEquals(all.getCount(), merged.getCount());
+        assertArrayEquals(all.toBytes(), merged.toBytes());
+        for (double quantile : QUANTILES)
+        {
+            assertEquals(all.quantile(quantile), merged.quantile(quantile), "quantile " + quantile);
+        }
+    }
+
+    @Test
+    void roundTripsThroughBytes()
+    {
+        QuantileSketch sketch = new QuantileSketch();
+        // values below one land in negative bucket indexes
+        for (double value : new double[]{0, 0.001, 0.5, 1, 1_500, 2_000_000})
+        {
+            sketch.add(value);
+        }
+
+        QuantileSketch copy = QuantileSketch.fromBytes(sketch.toBytes());
+
+        assertEquals(sketch.getCount(), copy.getCount());
+        assertArrayEquals(sketch.toBytes(), copy.toBytes());
+        for (double quantile : QUANTILES)
+        {
+            assertEquals(sketch.quantile(quantile), copy.quantile(quantile), "quantile " + quantile);
+        }
+        assertEquals(0, QuantileSketch.fromBytes(null).getCount());
+    }
+}
@@ -0,0 +1,125 @@
+package org.tekkenstats.aggregations;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatisticsAccumulatorTest {
+
+    private static final int GAME_VERSION = 10901;
+
+    @Test
+    void countsEveryCharacterOverallAndOnlyTheMainOneStandard()
+    {
+        StatisticsAccumulator accumulator = new StatisticsAccumulator(GAME_VERSION);
+        accumulator.accept("p1", "8", 20, 7, 3, 1, 2);
+        accumulator.accept("p1", "12", 15, 30, 20, 1, 2);
+        accumulator.accept("p2", "8", 20, 1, 1, 1, 2);
+        accumulator.finish();
+
+        Map<AggregatedStatisticId, List<Integer>> cells = cells(accumulator);
+
+        assertEquals(List.of(8, 4, 2), cells.get(id("8", 20, "overall", 1, 2)));
+        assertEquals(List.of(30, 20, 1), cells.get(id("12", 15, "overall", 1, 2)));
+        assertEquals(List.of(30, 20, 1), cells.get(id("12", 15, "standard", 1, 2)));
+        assertEquals(List.of(1, 1, 1), cells.get(id("8", 20, "standard", 1, 2)));
+        assertEquals(4, cells.size());
+        assertEquals(4, accumulator.cellCount());
+    }
+
+    @Test
+    void resolvesTiedMainCharactersToTheLowestCharacterId()
+    {
+        StatisticsAccumulator accumulator = new StatisticsAccumulator(GAME_VERSION);
+        accumulator.accept("p1", "9", 10, 5, 5, 1, 1);
+        accumulator.accept("p1", "10", 12, 6, 4, 1, 1);
+        accumulator.finish();
+
+        Map<AggregatedStatisticId, List<Integer>> cells = cells(accumulator);
+
+        // "10" sorts before "9" as character ids are compared as strings
+        assertEquals(List.of(6, 4, 1), cells.get(id("10", 12, "standard", 1, 1)));
+        assertNull(cells.get(id("9", 10, "standard", 1, 1)));
+    }
+
+    @Test
+    void mergesPartitionsThatAssignedOrdinalsDifferently()
+    {
+        StatisticsAccumulator whole = new StatisticsAccumulator(GAME_VERSION);
+        StatisticsAccumulator first = new StatisticsAccumulator(GAME_VERSION);
+        StatisticsAccumulator second = new StatisticsAccumulator(GAME_VERSION);
+
+        List<Object[]> firstRows = List.of(
+                new Object[]{"p1", "1", 5, 3, 2, 1, 1},
+                new Object[]{"p1", "2", 7, 10, 0, 2, 3},
+                new Object[]{"p2", "3", 30, 4, 4, 5, 9});
+        // other characters and locations first, so the second partition numbers them differently
+        List<Object[]> secondRows = List.of(
+                new Object[]{"p3", "3", 30, 1, 2, 5, 9},
+                new Object[]{"p3", "1", 5, 0, 1, 1, 1},
+                new Object[]{"p4", "2", 7, 2, 2, 2, 3});
+
+        firstRows.forEach(row -> accept(first, row));
+        secondRows.forEach(row -> accept(second, row));
+        firstRows.forEach(row -> accept(whole, row));
+        secondRows.forEach(row -> accept(whole, row));
+        whole.finish();
+
+        assertEquals(cells(whole), cells(first.merge(second)));
+    }
+
+    @Test
+    void keepsCountsWhileTheCubeGrows()
+    {
+        StatisticsAccumulator accumulator = new StatisticsAccumulator(GAME_VERSION);
+        // past the initial 64 characters, 32 dan ranks and 16 locations, and outside the region lookup
+        for (int i = 0; i < 100; i++)
+        {
+            accumulator.accept("p" + i, "c" + i, i % 40, i, 1, i % 20, 100_000 + i % 3);
+        }
+        accumulator.accept("p99", "c100", 39, 1000, 0, 19, 100_000);
+        accumulator.finish();
+
+        Map<AggregatedStatisticId, List<Integer>> cells = cells(accumulator);
+
+        for (int i = 0; i < 99; i++)
+        {
+            AggregatedStatisticId overall = id("c" + i, i % 40, "overall", i % 20, 100_000 + i % 3);
+            AggregatedStatisticId standard = id("c" + i, i % 40, "standard", i % 20, 100_000 + i % 3);
+            assertEquals(List.of(i, 1, 1), cells.get(overall), "player " + i);
+            assertEquals(List.of(i, 1, 1), cells.get(standard), "player " + i);
+        }
+        assertEquals(List.of(99, 1, 1), cells.get(id("c99", 19, "overall", 19, 100_000)));
+        assertNull(cells.get(id("c99", 19, "standard", 19, 100_000)));
+        assertEquals(List.of(1000, 0, 1), cells.get(id("c100", 39, "overall", 19, 100_000)));
+        assertEquals(List.of(1000, 0, 1), cells.get(id("c100", 39, "standard", 19, 100_000)));
+        assertEquals(2 * 99 + 3, cells.size());
+    }
+
+    private static void accept(StatisticsAccumulator accumulator, Object[] row)
+    {
+        accumulator.accept((String) row[0], (String) row[1], (int) row[2], (int) row[3], (int) row[4], (int) row[5], (int) row[6]);
+    }
+
+    private static AggregatedStatisticId id(String characterId, int danRank, String category, int regionId, int areaId)
+    {
+        return new AggregatedStatisticId(GAME_VERSION, characterId, danRank, category, regionId, areaId);
+    }
+
+    // wins, losses and players of every cell
+    private static Map<AggregatedStatisticId, List<Integer>> cells(StatisticsAccumulator accumulator)
+    {
+        Map<AggregatedStatisticId, List<Integer>> cells = new HashMap<>();
+        for (AggregatedStatistic statistic : accumulator.toAggregatedStatistics(LocalDateTime.now()))
+        {
+            assertEquals(statistic.getTotalWins() + statistic.getTotalLosses(), statistic.getTotalReplays());
+            cells.put(statistic.getId(), List.of(statistic.getTotalWins(), statistic.getTotalLosses(), statistic.getTotalPlayers()));
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,191 @@
+package org.tekkenstats.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlayerProfileCacheTest {
+
+    // a 100 byte window in front of a 9900 byte main region
+    private static final long MAX_BYTES = 10_000;
+    private static final int PROFILE_BYTES = 100;
+    private static final long TTL_MS = 60_000;
+
+    private SimpleMeterRegistry meterRegistry;
+    private PlayerProfileCache cache;
+    private AtomicInteger loads;
+
+    @BeforeEach
+    void setUp()
+    {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new PlayerProfileCache(meterRegistry, true, MAX_BYTES, TTL_MS);
+        loads = new AtomicInteger();
+    }
+
+    @Test
+    void loadsOnceAndServesHitsAfterwards()
+    {
+        byte[] profile = get("p1");
+
+        assertSame(profile, get("p1"));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void cachesNothingForMissingPlayers()
+    {
+        assertNull(cache.get("p1", () -> { loads.incrementAndGet(); return null; }));
+        assertNull(cache.get("p1", () -> { loads.incrementAndGet(); return null; }));
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void dropsInvalidatedProfilesAndLoadsRacingTheInvalidation()
+    {
+        get("p1");
+        cache.invalidate(List.of("p1"));
+        get("p1");
+        assertEquals(2, loads.get());
+
+        cache.invalidate(List.of("p2"));
+        cache.get("p2", () -> {
+            // ingest upserts the player while the profile is being read
+            cache.invalidate(List.of("p2"));
+            return new byte[PROFILE_BYTES];
+        });
+        get("p2");
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    void expiresProfilesOnceTheirTimeToLiveHasPassed() throws InterruptedException
+    {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new PlayerProfileCache(meterRegistry, true, MAX_BYTES, 50);
+        get("p1");
+        get("p1");
+        assertEquals(1, loads.get());
+
+        Thread.sleep(100);
+
+        get("p1");
+        assertEquals(2, loads.get());
+        assertEquals(1, meterRegistry.get("player.profile.cache.expirations").functionCounter().count());
+    }
+
+    @Test
+    void sharesAFailingLoadWithTheCallersWaitingOnIt() throws Exception
+    {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch fail = new CountDownLatch(1);
+        CompletableFuture<byte[]> first = CompletableFuture.supplyAsync(() -> cache.get("p1", () -> {
+            loading.countDown();
+            await(fail);
+            throw new OutOfMemoryError("loading p1");
+        }));
+        loading.await();
+
+        CompletableFuture<Throwable> waiting = new CompletableFuture<>();
+        Thread waiter = Thread.ofPlatform().start(() -> {
+            try
+            {
+                cache.get("p1", () -> fail("the waiting caller ran its own load"));
+                waiting.complete(null);
+            }
+            catch (Throwable e)
+            {
+                waiting.complete(e);
+            }
+        });
+        while (waiter.getState() != Thread.State.WAITING)
+        {
+            Thread.onSpinWait();
+        }
+        fail.countDown();
+
+        ExecutionException failed = assertThrows(ExecutionException.class, first::get);
+        assertInstanceOf(OutOfMemoryError.class, failed.getCause());
+        assertInstanceOf(OutOfMemoryError.class, waiting.get());
+
+        // the failed load is not left behind, the next request loads again
+        assertNotNull(get("p1"));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void keepsFrequentProfilesAgainstOneOffLookups()
+    {
+        for (int i = 0; i < 99; i++)
+        {
+            for (int request = 0; request < 3; request++)
+            {
+                get("frequent-" + i);
+            }
+        }
+        for (int i = 0; i < 50; i++)
+        {
+            get("one-off-" + i);
+        }
+        int loadsBefore = loads.get();
+
+        for (int i = 0; i < 99; i++)
+        {
+            get("frequent-" + i);
+        }
+
+        assertEquals(loadsBefore, loads.get());
+        assertTrue(meterRegistry.get("player.profile.cache.rejections").functionCounter().count() >= 48);
+    }
+
+    @Test
+    void admitsAProfileRequestedMoreOftenThanTheLeastRecentOne()
+    {
+        for (int i = 0; i < 99; i++)
+        {
+            get("rare-" + i);
+        }
+        for (int request = 0; request < 5; request++)
+        {
+            get("popular");
+        }
+        // pushes popular out of the window, the main region is full
+        get("next");
+        int loadsBefore = loads.get();
+
+        get("popular");
+        assertEquals(loadsBefore, loads.get());
+        get("rare-0");
+        assertEquals(loadsBefore + 1, loads.get());
+        assertEquals(1, meterRegistry.get("player.profile.cache.evictions").functionCounter().count());
+    }
+
+    private byte[] get(String polarisId)
+    {
+        return cache.get(polarisId, () -> {
+            loads.incrementAndGet();
+            return new byte[PROFILE_BYTES];
+        });
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
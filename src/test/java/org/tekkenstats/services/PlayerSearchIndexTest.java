@@ -0,0 +1,119 @@
+package org.tekkenstats.services;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.tekkenstats.models.Player;
+
+import javax.sql.DataSource;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class PlayerSearchIndexTest {
+
+    private PlayerSearchIndex index;
+
+    @BeforeEach
+    void setUp()
+    {
+        index = new PlayerSearchIndex(mock(DataSource.class), mock(PlatformTransactionManager.class), true, 100, 600);
+    }
+
+    @Test
+    void isNotReadyUntilWarmed()
+    {
+        index.recordPlayers(List.of(player("p1", "Arslan", "1111-2222", 10)));
+
+        assertFalse(index.isReady());
+        assertFalse(index.canSearch("arslan"));
+
+        index.finishWarming();
+
+        assertTrue(index.isReady());
+        assertEquals(List.of("p1"), ids(index.search("arslan", 20)));
+    }
+
+    @Test
+    void leavesShortQueriesToTheDatabase()
+    {
+        index.finishWarming();
+
+        assertFalse(index.canSearch("ar"));
+        assertTrue(index.canSearch("ars"));
+        assertThrows(IllegalArgumentException.class, () -> index.search("ar", 20));
+    }
+
+    @Test
+    void ranksExactThenPrefixThenSubstringMatches()
+    {
+        index.finishWarming();
+        index.recordPlayers(List.of(
+                player("p1", "xxKingxx", "1111", 10),
+                player("p2", "Kingdom", "2222", 10),
+                player("p3", "KING", "3333", 10),
+                player("p4", "Queen", "4444", 10)));
+
+        assertEquals(List.of("p3", "p2", "p1"), ids(index.search("king", 20)));
+        assertEquals(List.of("p3", "p2"), ids(index.search("king", 2)));
+    }
+
+    @Test
+    void matchesPolarisIdsAndPastNames()
+    {
+        index.finishWarming();
+        index.recordPlayers(List.of(player("p1", "Oldname", "abcd-1234", 10)));
+        index.recordPlayers(List.of(player("p1", "Newname", "abcd-1234", 20)));
+
+        assertEquals(List.of("p1"), ids(index.search("d-12", 20)));
+        assertEquals(List.of("p1"), ids(index.search("oldn", 20)));
+        assertEquals("Newname", index.search("oldn", 20).getFirst().name());
+    }
+
+    @Test
+    void requiresEveryTrigramOfTheQuery()
+    {
+        index.finishWarming();
+        // shares the trigrams "abc" and "bcd" but never contains "abcd"
+        index.recordPlayers(List.of(player("p1", "abcxbcd", "1111", 10)));
+
+        assertTrue(index.search("abcd", 20).isEmpty());
+        assertEquals(List.of("p1"), ids(index.search("xbcd", 20)));
+    }
+
+    @Test
+    void ignoresUpdatesOlderThanTheIndexedBattle()
+    {
+        index.finishWarming();
+        index.recordPlayers(List.of(player("p1", "Current", "1111", 20)));
+        index.recordPlayers(List.of(player("p1", "Stale", "1111", 10)));
+
+        assertEquals("Current", index.search("curr", 20).getFirst().name());
+        assertTrue(index.search("stale", 20).isEmpty());
+    }
+
+    @Test
+    void appliesPlayersHeldBackDuringWarming()
+    {
+        index.recordPlayers(List.of(player("p1", "Heldback", "1111", 10)));
+
+        assertEquals(1, index.finishWarming());
+        assertEquals(List.of("p1"), ids(index.search("held", 20)));
+    }
+
+    private static Player player(String playerId, String name, String polarisId, long latestBattle)
+    {
+        Player player = new Player();
+        player.setPlayerId(playerId);
+        player.setName(name);
+        player.setPolarisId(polarisId);
+        player.setLatestBattle(latestBattle);
+        return player;
+    }
+
+    private static List<String> ids(List<PlayerSearchIndex.SearchHit> hits)
+    {
+        return hits.stream().map(PlayerSearchIndex.SearchHit::playerId).toList();
+    }
+}
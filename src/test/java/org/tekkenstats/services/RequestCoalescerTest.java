@@ -0,0 +1,106 @@
+package org.tekkenstats.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestCoalescerTest {
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    @Test
+    void computesAgainOnceTheSharedComputationCompleted()
+    {
+        AtomicInteger computations = new AtomicInteger();
+
+        assertEquals(1, coalescer.coalesce("key", computations::incrementAndGet));
+        assertEquals(2, coalescer.coalesce("key", computations::incrementAndGet));
+    }
+
+    @Test
+    void sharesTheResultWithConcurrentCallers() throws Exception
+    {
+        CountDownLatch computing = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> coalescer.coalesce("key", () -> {
+            computing.countDown();
+            await(finish);
+            return "result";
+        }));
+        computing.await();
+
+        CompletableFuture<Object> second = waitingCaller("key");
+        finish.countDown();
+
+        assertEquals("result", first.get());
+        assertEquals("result", second.get());
+    }
+
+    @Test
+    void propagatesRuntimeExceptionsAndErrorsToEveryCaller() throws Exception
+    {
+        for (Throwable failure : new Throwable[]{new IllegalStateException("query failed"), new StackOverflowError()})
+        {
+            CountDownLatch computing = new CountDownLatch(1);
+            CountDownLatch fail = new CountDownLatch(1);
+            CompletableFuture<Object> first = CompletableFuture.supplyAsync(() -> coalescer.coalesce("key", () -> {
+                computing.countDown();
+                await(fail);
+                if (failure instanceof Error error)
+                {
+                    throw error;
+                }
+                throw (RuntimeException) failure;
+            }));
+            computing.await();
+
+            CompletableFuture<Object> second = waitingCaller("key");
+            fail.countDown();
+
+            ExecutionException failed = assertThrows(ExecutionException.class, first::get);
+            assertSame(failure, failed.getCause());
+            assertSame(failure, assertThrows(ExecutionException.class, second::get).getCause());
+        }
+
+        // nothing is left in flight after the failures
+        assertEquals("recovered", coalescer.coalesce("key", () -> "recovered"));
+    }
+
+    // Completes with the caller's result once it has joined the computation in flight
+    private CompletableFuture<Object> waitingCaller(String key)
+    {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        Thread caller = Thread.ofPlatform().start(() -> {
+            try
+            {
+                result.complete(coalescer.coalesce(key, () -> fail("the waiting caller ran its own computation")));
+            }
+            catch (Throwable e)
+            {
+                result.completeExceptionally(e);
+            }
+        });
+        while (caller.getState() != Thread.State.WAITING)
+        {
+            Thread.onSpinWait();
+        }
+        return result;
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}